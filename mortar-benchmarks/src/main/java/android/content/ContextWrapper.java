@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.content;
+
+/** Plain JVM stand-in for the framework class, covering only what mortar calls. */
+public class ContextWrapper extends Context {
+  private final Context base;
+
+  public ContextWrapper(Context base) {
+    this.base = base;
+  }
+
+  public Context getBaseContext() {
+    return base;
+  }
+
+  @Override public Object getSystemService(String name) {
+    return base.getSystemService(name);
+  }
+
+  @Override public Context getApplicationContext() {
+    return base.getApplicationContext();
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plain JVM stand-in for the framework class, covering only what mortar calls. Backed by a
+ * {@link LinkedHashMap}, which is close enough to the real thing's {@code ArrayMap} for
+ * measuring mortar's own overhead.
+ */
+public final class Bundle {
+  private final Map<String, Object> map = new LinkedHashMap<>();
+
+  public Bundle() {
+  }
+
+  public Bundle(Bundle b) {
+    map.putAll(b.map);
+  }
+
+  public void putAll(Bundle b) {
+    map.putAll(b.map);
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  public boolean containsKey(String key) {
+    return map.containsKey(key);
+  }
+
+  public Set<String> keySet() {
+    return map.keySet();
+  }
+
+  public Object get(String key) {
+    return map.get(key);
+  }
+
+  public void remove(String key) {
+    map.remove(key);
+  }
+
+  public void putBoolean(String key, boolean value) {
+    map.put(key, value);
+  }
+
+  public boolean getBoolean(String key) {
+    Object o = map.get(key);
+    return o instanceof Boolean && (Boolean) o;
+  }
+
+  public void putInt(String key, int value) {
+    map.put(key, value);
+  }
+
+  public int getInt(String key) {
+    Object o = map.get(key);
+    return o instanceof Integer ? (Integer) o : 0;
+  }
+
+  public void putLong(String key, long value) {
+    map.put(key, value);
+  }
+
+  public long getLong(String key) {
+    Object o = map.get(key);
+    return o instanceof Long ? (Long) o : 0L;
+  }
+
+  public void putString(String key, String value) {
+    map.put(key, value);
+  }
+
+  public String getString(String key) {
+    Object o = map.get(key);
+    return o instanceof String ? (String) o : null;
+  }
+
+  public void putByteArray(String key, byte[] value) {
+    map.put(key, value);
+  }
+
+  public byte[] getByteArray(String key) {
+    Object o = map.get(key);
+    return o instanceof byte[] ? (byte[]) o : null;
+  }
+
+  public void putBundle(String key, Bundle value) {
+    map.put(key, value);
+  }
+
+  public Bundle getBundle(String key) {
+    Object o = map.get(key);
+    return o instanceof Bundle ? (Bundle) o : null;
+  }
+
+  public void putParcelable(String key, Parcelable value) {
+    map.put(key, value);
+  }
+
+  @SuppressWarnings("unchecked") //
+  public <T extends Parcelable> T getParcelable(String key) {
+    Object o = map.get(key);
+    return o instanceof Parcelable ? (T) o : null;
+  }
+}
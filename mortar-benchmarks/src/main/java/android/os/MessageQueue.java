@@ -0,0 +1,29 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+/**
+ * Plain JVM stand-in for the framework class, covering only what mortar calls. There is no loop
+ * to go idle, so idle handlers are never run.
+ */
+public final class MessageQueue {
+  public interface IdleHandler {
+    boolean queueIdle();
+  }
+
+  public void addIdleHandler(IdleHandler handler) {
+  }
+}
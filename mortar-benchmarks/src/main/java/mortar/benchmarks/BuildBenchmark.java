@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import mortar.MortarScope;
+import mortar.ServiceKey;
+import mortar.ServiceProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link MortarScope.Builder#build} of a screen-like child scope with {@link #services} eager
+ * services and as many lazy ones, under a parent {@link #depth} scopes deep.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuildBenchmark {
+  private static final ServiceKey<Object> KEYED = ServiceKey.create("keyed", Object.class);
+  private static final ServiceProvider<Object> PROVIDER = new ServiceProvider<Object>() {
+    @Override public Object get() {
+      return new Object();
+    }
+  };
+
+  @Param({ "1", "8" }) int services;
+  @Param({ "2", "8" }) int depth;
+
+  private MortarScope root;
+  private MortarScope parent;
+  private MortarScope built;
+  private String[] names;
+  private String[] lazyNames;
+  private Object service;
+
+  @Setup public void setUp() {
+    root = MortarScope.buildRootScope().build("root");
+    parent = root;
+    for (int i = 1; i < depth; i++) {
+      parent = parent.buildChild().build("scope" + i);
+    }
+    names = new String[services];
+    lazyNames = new String[services];
+    for (int i = 0; i < services; i++) {
+      names[i] = "service" + i;
+      lazyNames[i] = "lazy" + i;
+    }
+    service = new Object();
+  }
+
+  @TearDown public void tearDown() {
+    root.destroy();
+  }
+
+  @TearDown(Level.Invocation) public void destroyBuilt() {
+    built.destroy();
+  }
+
+  @Benchmark public MortarScope build() {
+    MortarScope.Builder builder = parent.buildChild().withService(KEYED, service);
+    for (int i = 0; i < services; i++) {
+      builder.withService(names[i], service).withLazyService(lazyNames[i], PROVIDER);
+    }
+    return built = builder.build("screen");
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.benchmarks;
+
+import android.os.Bundle;
+import java.util.concurrent.TimeUnit;
+import mortar.MortarScope;
+import mortar.benchmarks.BundleServiceRunnerBenchmark.ValueBundler;
+import mortar.bundler.BundleService;
+import mortar.bundler.BundleServiceRunner;
+import mortar.bundler.BundleStateContainer;
+import mortar.bundler.CompactStateCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link BundleServiceRunner#onSaveInstanceState} and {@link BundleServiceRunner#onCreate} with
+ * the {@code nested} bundle per scope and per bundler, or the {@code compact} one {@link
+ * BundleServiceRunner#setBundleCodec encoded} value. Setup prints the parcel size of each, as
+ * {@link BundleStateContainer#estimateSize estimated}.
+ * <p>
+ * The stand-in {@link android.os.Parcel} does no work, so the nested layout's times leave out
+ * the parceling it costs on a device, which grows with that size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BundleEncodingBenchmark {
+  private static final int BUNDLERS_PER_SCOPE = 10;
+
+  @Param({ "10", "50" }) int scopes;
+  @Param({ "nested", "compact" }) String layout;
+
+  private MortarScope root;
+  private BundleServiceRunner runner;
+  private Bundle saved;
+
+  @Setup public void setUp() {
+    runner = new BundleServiceRunner();
+    if (layout.equals("compact")) runner.setBundleCodec(new CompactStateCodec());
+    root = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+    runner.onCreate(null);
+    for (int i = 0; i < scopes; i++) {
+      MortarScope scope = root.buildChild().build("com.example.app.ScreenNumber" + i);
+      BundleService bundleService = BundleService.getBundleService(scope);
+      for (int j = 0; j < BUNDLERS_PER_SCOPE; j++) {
+        bundleService.register(new ValueBundler("com.example.app.SomePresenter" + j));
+      }
+    }
+    saved = save();
+    System.out.printf("%s, %d scopes: %d bytes%n", layout, scopes,
+        new BundleStateContainer(saved).estimateSize());
+  }
+
+  @TearDown public void tearDown() {
+    root.destroy();
+  }
+
+  @Benchmark public Bundle save() {
+    Bundle outState = new Bundle();
+    runner.onSaveInstanceState(outState);
+    return outState;
+  }
+
+  @Benchmark public void restore() {
+    runner.onCreate(saved);
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.benchmarks;
+
+import android.os.Bundle;
+import java.util.concurrent.TimeUnit;
+import mortar.MortarScope;
+import mortar.bundler.BundleService;
+import mortar.bundler.BundleServiceRunner;
+import mortar.bundler.BundleStateContainer;
+import mortar.bundler.InMemoryStateContainer;
+import mortar.bundler.StateBundler;
+import mortar.bundler.StateContainer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link BundleServiceRunner#saveState} and {@link BundleServiceRunner#restoreState} for an
+ * activity scope with {@link #scopes} child scopes, each with {@link #bundlersPerScope} bundlers
+ * that save and restore a few small values. State is kept in {@link #container}: {@code bundle}
+ * for what {@code onSaveInstanceState} and {@code onCreate} do, or {@code memory} to measure the
+ * engine alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BundleServiceRunnerBenchmark {
+  @Param({ "1", "10", "50" }) int scopes;
+  @Param({ "1", "10", "100" }) int bundlersPerScope;
+  @Param({ "bundle", "memory" }) String container;
+
+  private MortarScope root;
+  private BundleServiceRunner runner;
+  private StateContainer saved;
+
+  @Setup public void setUp() {
+    runner = new BundleServiceRunner();
+    root = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+    runner.restoreState(null);
+    for (int i = 0; i < scopes; i++) {
+      MortarScope scope = root.buildChild().build("screen" + i);
+      BundleService bundleService = BundleService.getBundleService(scope);
+      for (int j = 0; j < bundlersPerScope; j++) {
+        bundleService.register(new ValueBundler("bundler" + j));
+      }
+    }
+    saved = newContainer();
+    runner.saveState(saved);
+  }
+
+  @TearDown public void tearDown() {
+    root.destroy();
+  }
+
+  private StateContainer newContainer() {
+    return container.equals("bundle") ? new BundleStateContainer(new Bundle())
+        : new InMemoryStateContainer();
+  }
+
+  @Benchmark public StateContainer save() {
+    StateContainer outState = newContainer();
+    runner.saveState(outState);
+    return outState;
+  }
+
+  @Benchmark public void restore() {
+    runner.restoreState(saved);
+  }
+
+  static final class ValueBundler implements StateBundler {
+    private final String key;
+    private int count;
+    private String title = "title";
+
+    ValueBundler(String key) {
+      this.key = key;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return key;
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      if (savedState == null) return;
+      count = savedState.getInt("count");
+      title = savedState.getString("title");
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      outState.putInt("count", ++count);
+      outState.putString("title", title);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import mortar.MortarScope;
+import mortar.benchmarks.BundleServiceRunnerBenchmark.ValueBundler;
+import mortar.bundler.BundleService;
+import mortar.bundler.BundleServiceRunner;
+import mortar.bundler.Checkpointer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Checkpointer#checkpoint} with {@link #bundlers} bundlers spread over ten child scopes.
+ * {@link #capture} is the part that runs on the main thread, {@link #captureAndWrite} adds
+ * encoding and writing the file, which normally run on a background thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckpointBenchmark {
+  private static final int SCOPES = 10;
+
+  @Param({ "10", "100", "1000" }) int bundlers;
+
+  private MortarScope root;
+  private File file;
+  private Checkpointer capturing;
+  private Checkpointer writing;
+
+  @Setup public void setUp() throws IOException {
+    BundleServiceRunner runner = new BundleServiceRunner();
+    root = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+    runner.restoreState(null);
+    for (int i = 0; i < bundlers; i++) {
+      MortarScope scope = root.findChild("screen" + i % SCOPES);
+      if (scope == null) scope = root.buildChild().build("screen" + i % SCOPES);
+      BundleService.getBundleService(scope).register(new ValueBundler("bundler" + i));
+    }
+
+    file = File.createTempFile("checkpoint", null);
+    // Never runs the writer, so captures are all that is measured.
+    capturing = new Checkpointer(runner, file, new Executor() {
+      @Override public void execute(Runnable command) {
+      }
+    }, 0, TimeUnit.SECONDS);
+    writing = new Checkpointer(runner, file, new Executor() {
+      @Override public void execute(Runnable command) {
+        command.run();
+      }
+    }, 0, TimeUnit.SECONDS);
+  }
+
+  @TearDown public void tearDown() {
+    root.destroy();
+    file.delete();
+  }
+
+  @Benchmark public void capture() {
+    capturing.checkpoint();
+  }
+
+  @Benchmark public void captureAndWrite() {
+    writing.checkpoint();
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import mortar.MortarScope;
+import mortar.Scoped;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link MortarScope#destroy()} of a tree of {@link #scopes} scopes, each with a service and
+ * {@link #registrants} registrants. A {@code wide} tree is a root and its children, a {@code
+ * deep} one a single chain.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DestroyBenchmark {
+  @Param({ "wide", "deep" }) String shape;
+  @Param({ "10", "100" }) int scopes;
+  @Param({ "1", "4" }) int registrants;
+
+  private MortarScope root;
+
+  /** The tree is rebuilt for every call, outside of the measurement. */
+  @Setup(Level.Invocation) public void buildTree() {
+    root = populate(MortarScope.buildRootScope().withService("service", new Object())
+        .build("root"));
+    MortarScope parent = root;
+    for (int i = 1; i < scopes; i++) {
+      MortarScope child = populate(parent.buildChild().withService("service", new Object())
+          .build("scope" + i));
+      if (shape.equals("deep")) parent = child;
+    }
+  }
+
+  private MortarScope populate(MortarScope scope) {
+    for (int i = 0; i < registrants; i++) {
+      scope.register(new NoOpScoped());
+    }
+    return scope;
+  }
+
+  @Benchmark public MortarScope destroy() {
+    root.destroy();
+    return root;
+  }
+
+  static final class NoOpScoped implements Scoped {
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import mortar.MortarScope;
+import mortar.Scoped;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link MortarScope#register} in a hierarchy with {@link #liveScopes} other live scopes, each
+ * with a registrant of its own. Every registration is checked against the whole hierarchy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegisterBenchmark {
+  static final int BATCH = 1000;
+
+  @Param({ "10", "100", "1000" }) int liveScopes;
+
+  private MortarScope root;
+  private MortarScope target;
+  private Scoped[] fresh;
+  private Scoped registered;
+  private int count;
+
+  @Setup public void setUp() {
+    root = MortarScope.buildRootScope().build("root");
+    for (int i = 0; i < liveScopes; i++) {
+      root.buildChild().build("live" + i).register(new NoOpScoped());
+    }
+    registered = new NoOpScoped();
+    root.register(registered);
+  }
+
+  @TearDown public void tearDown() {
+    root.destroy();
+  }
+
+  /**
+   * A fresh scope and registrants per call, so that each registration is new. A registration is
+   * too quick to time alone against this per-call setup, so each call registers a batch.
+   */
+  @Setup(Level.Invocation) public void newTarget() {
+    target = root.buildChild().build("target" + count++);
+    fresh = new Scoped[BATCH];
+    for (int i = 0; i < BATCH; i++) {
+      fresh[i] = new NoOpScoped();
+    }
+  }
+
+  @TearDown(Level.Invocation) public void destroyTarget() {
+    target.destroy();
+  }
+
+  @Benchmark @OperationsPerInvocation(BATCH) public void register() {
+    for (Scoped scoped : fresh) {
+      target.register(scoped);
+    }
+  }
+
+  /** The common case of a presenter re-registering on each view attach. */
+  @Benchmark public void registerRedundant() {
+    root.register(registered);
+  }
+
+  static final class NoOpScoped implements Scoped {
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+}
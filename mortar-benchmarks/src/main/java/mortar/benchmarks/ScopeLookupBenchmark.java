@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.benchmarks;
+
+import android.content.Context;
+import java.util.concurrent.TimeUnit;
+import mortar.MortarScope;
+import mortar.ServiceKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Service lookups from the leaf of a linear scope hierarchy {@link #depth} scopes deep, with the
+ * service provided by the root. The context benchmarks mirror the calls Android makes on a
+ * view's context, including misses for framework services mortar doesn't provide.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScopeLookupBenchmark {
+  private static final String SERVICE_NAME = "service";
+  private static final ServiceKey<Object> SERVICE_KEY =
+      ServiceKey.create(SERVICE_NAME, Object.class);
+  private static final String FRAMEWORK_SERVICE_NAME = "framework";
+
+  @Param({ "2", "8", "32" }) int depth;
+
+  private MortarScope leaf;
+  private Context leafContext;
+
+  @Setup public void setUp() {
+    MortarScope scope =
+        MortarScope.buildRootScope().withService(SERVICE_NAME, new Object()).build("root");
+    for (int i = 1; i < depth; i++) {
+      scope = scope.buildChild().build("scope" + i);
+    }
+    leaf = scope;
+    leafContext = leaf.createContext(new FrameworkContext());
+  }
+
+  @Benchmark public Object getService() {
+    return leaf.getService(SERVICE_NAME);
+  }
+
+  @Benchmark public Object getServiceByKey() {
+    return leaf.getService(SERVICE_KEY);
+  }
+
+  @Benchmark public boolean hasServiceMiss() {
+    return leaf.hasService(FRAMEWORK_SERVICE_NAME);
+  }
+
+  @Benchmark public Object contextGetSystemService() {
+    return leafContext.getSystemService(SERVICE_NAME);
+  }
+
+  @Benchmark public Object contextGetSystemServiceMiss() {
+    return leafContext.getSystemService(FRAMEWORK_SERVICE_NAME);
+  }
+
+  /** Stands in for the activity's base context, which answers for framework services. */
+  static final class FrameworkContext extends Context {
+    private final Object frameworkService = new Object();
+
+    @Override public Object getSystemService(String name) {
+      return FRAMEWORK_SERVICE_NAME.equals(name) ? frameworkService : null;
+    }
+
+    @Override public Context getApplicationContext() {
+      return this;
+    }
+  }
+}
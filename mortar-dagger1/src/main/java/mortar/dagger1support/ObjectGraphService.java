@@ -4,12 +4,16 @@ import android.app.Activity;
 import android.content.Context;
 import dagger.ObjectGraph;
 import mortar.MortarScope;
+import mortar.ServiceKey;
+import mortar.ServiceProvider;
 
 /**
  * Provides utility methods for using Mortar with Dagger 1.
  */
 public class ObjectGraphService {
   public static final String SERVICE_NAME = ObjectGraphService.class.getName();
+  public static final ServiceKey<ObjectGraph> SERVICE_KEY =
+      ServiceKey.create(SERVICE_NAME, ObjectGraph.class);
 
   /**
    * Create a new {@link ObjectGraph} based on the given module. The new graph will extend
@@ -22,13 +26,27 @@ public class ObjectGraphService {
         : parentGraph.plus(daggerModules);
   }
 
+  /**
+   * Returns a provider that will {@link #create} the graph when it is first requested, for use
+   * with {@link MortarScope.Builder#withLazyService(ServiceKey, ServiceProvider)}. Saves building
+   * graphs for scopes that are destroyed without ever being injected from.
+   */
+  public static ServiceProvider<ObjectGraph> createLazily(final MortarScope parent,
+      final Object... daggerModules) {
+    return new ServiceProvider<ObjectGraph>() {
+      @Override public ObjectGraph get() {
+        return create(parent, daggerModules);
+      }
+    };
+  }
+
   public static ObjectGraph getObjectGraph(Context context) {
     //noinspection ResourceType
     return (ObjectGraph) context.getSystemService(ObjectGraphService.SERVICE_NAME);
   }
 
   public static ObjectGraph getObjectGraph(MortarScope scope) {
-    return scope.getService(ObjectGraphService.SERVICE_NAME);
+    return scope.getService(SERVICE_KEY);
   }
 
   /**
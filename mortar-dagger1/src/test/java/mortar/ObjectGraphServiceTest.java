@@ -33,6 +33,7 @@ import org.mockito.stubbing.Answer;
 import static java.lang.annotation.RetentionPolicy.RUNTIME;
 import static mortar.dagger1support.ObjectGraphService.SERVICE_NAME;
 import static mortar.dagger1support.ObjectGraphService.create;
+import static mortar.dagger1support.ObjectGraphService.createLazily;
 import static mortar.dagger1support.ObjectGraphService.getObjectGraph;
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.fest.assertions.api.Assertions.fail;
@@ -374,6 +375,19 @@ import static org.mockito.MockitoAnnotations.initMocks;
     assertThat(i.get()).isEqualTo(1);
   }
 
+  @Test public void lazyGraphExtendsParentWhenRequested() {
+    MortarScope root = createRootScope(ObjectGraph.create(new AppleModule()));
+    MortarScope child = root.buildChild()
+        .withLazyService(ObjectGraphService.SERVICE_KEY, createLazily(root, new BagelModule()))
+        .build("child");
+
+    HasApple apple = new HasApple();
+    getObjectGraph(child).inject(apple);
+    assertThat(apple.string).isEqualTo(Apple.class.getName());
+    assertThat(getObjectGraph(child)).isSameAs(getObjectGraph(child));
+    assertThat(getObjectGraph(child)).isNotSameAs(getObjectGraph(root));
+  }
+
   @Test public void inject() {
     final MortarScope root = createRootScope(ObjectGraph.create(new AppleModule()));
     when(context.getSystemService(any(String.class))).then(new Answer<Object>() {
@@ -50,8 +50,8 @@ public class ScreenScoper {
     MortarScope childScope = parentScope.findChild(name);
     if (childScope == null) {
       childScope = parentScope.buildChild()
-          .withService(ObjectGraphService.SERVICE_NAME,
-              ObjectGraphService.create(parentScope, childModule))
+          .withLazyService(ObjectGraphService.SERVICE_KEY,
+              ObjectGraphService.createLazily(parentScope, childModule))
           .build(name);
     }
 
@@ -0,0 +1,24 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar;
+
+/**
+ * A {@link Scoped} whose {@link #onExitScope()} may be called from a background thread, when its
+ * scope is destroyed via {@link MortarScope#destroyAsync}. Good candidates are registrants that
+ * close files or databases, or drop caches, and that touch no views.
+ */
+public interface BackgroundSafeScoped extends Scoped {
+}
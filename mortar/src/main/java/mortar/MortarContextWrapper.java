@@ -36,6 +36,7 @@ class MortarContextWrapper extends ContextWrapper {
       }
       return inflater;
     }
-    return scope.hasService(name) ? scope.getService(name) : super.getSystemService(name);
+    Object service = scope.getServiceIfPresent(name);
+    return service != null ? service : super.getSystemService(name);
   }
 }
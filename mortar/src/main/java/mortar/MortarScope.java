@@ -17,12 +17,16 @@ package mortar;
 
 import android.content.Context;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import static java.lang.Integer.toHexString;
 import static java.lang.String.format;
@@ -30,8 +34,18 @@ import static java.lang.String.format;
 public class MortarScope {
   public static final String DIVIDER = ">>>";
 
+  /** The priority of {@link Scoped} instances registered via {@link #register(Scoped)}. */
+  public static final int DEFAULT_TEARDOWN_PRIORITY = 0;
+
   private static final String MORTAR_SERVICE = MortarScope.class.getName();
 
+  /** Memoized in {@link #resolutions} for names that no scope in the chain provides. */
+  private static final Object NOT_FOUND = new Object();
+
+  private static final Object[] NO_KEYED_SERVICES = new Object[0];
+
+  private static final String[] NO_SERVICE_NAMES = new String[0];
+
   /**
    * Retrieves a MortarScope from the given context. If none is found, retrieves a MortarScope from
    * the application context.
@@ -69,19 +83,81 @@ public class MortarScope {
     return new Builder(null);
   }
 
-  final Map<String, MortarScope> children = new LinkedHashMap<>();
+  /**
+   * This and the other collections below are swapped for shared empty instances on {@link
+   * #destroy()}, so that a destroyed scope still held by a context or a view pins nothing.
+   */
+  volatile Map<String, MortarScope> children;
 
-  private boolean dead;
+  private volatile boolean dead;
 
-  private final Set<Scoped> tearDowns = new HashSet<>();
+  /** In registration order. */
+  private List<TearDown> tearDowns = new ArrayList<>();
   final MortarScope parent;
+  private final MortarScope root;
+  /** True if this hierarchy was built {@link Builder#withConcurrentAccess() for concurrency}. */
+  private final boolean concurrent;
+  private final TeardownListener teardownListener;
+  private final ScopeLeakWatcher leakWatcher;
+  /**
+   * Shared by the whole hierarchy. Held while it is changed: scopes built or destroyed, {@link
+   * Scoped} instances registered, lazy services created. Lookups only take it briefly to fill a
+   * cache, so that they can't refill one that {@link #destroy()} has emptied.
+   */
+  private final Object lock;
   private final String name;
-  private final Map<String, Object> services;
+  private final String path;
+  private volatile Map<String, Object> services;
+
+  /**
+   * Sorted names of the services this scope provided before it was destroyed, which is all that
+   * {@link #hasService} needs from a destroyed scope.
+   */
+  private volatile String[] deadServiceNames = NO_SERVICE_NAMES;
 
-  MortarScope(String name, MortarScope parent, Map<String, Object> services) {
+  /**
+   * Service name to the scope that provides it, or {@link #NOT_FOUND}. A live scope's services
+   * and ancestry never change, so entries stay valid until {@link #destroy()}.
+   */
+  private volatile Map<String, Object> resolutions;
+
+  /**
+   * Services already found via {@link #getService(ServiceKey)}, indexed by {@link
+   * ServiceKey#index}. Copied on write so that it can be read without locking, and emptied on
+   * {@link #destroy()}.
+   */
+  private volatile Object[] keyedServices = NO_KEYED_SERVICES;
+
+  /**
+   * Only used on the root scope: every {@link Scoped} registered anywhere in the hierarchy, mapped
+   * to the scope it is registered with. Keyed by identity: registrants that are merely equal are
+   * still separate registrations.
+   */
+  private Map<Scoped, MortarScope> registrations;
+
+  MortarScope(String name, MortarScope parent, boolean concurrent,
+      TeardownListener teardownListener, ScopeLeakWatcher leakWatcher,
+      Map<String, Object> services) {
     this.parent = parent;
+    this.root = parent == null ? this : parent.root;
+    this.concurrent = concurrent;
+    this.teardownListener = teardownListener;
+    this.leakWatcher = leakWatcher;
+    this.lock = parent == null ? new Object() : parent.lock;
+    this.registrations = parent == null ? new IdentityHashMap<Scoped, MortarScope>() : null;
     this.name = name;
-    this.services = services;
+    this.path = parent == null ? name : parent.path + DIVIDER + name;
+    this.services = newMap(services);
+    this.children = newMap(null);
+    this.resolutions = newMap(null);
+  }
+
+  /** Lookups read these maps without locking if this hierarchy allows concurrent access. */
+  private <V> Map<String, V> newMap(Map<String, V> contents) {
+    Map<String, V> map = concurrent ? new ConcurrentHashMap<String, V>()
+        : new LinkedHashMap<String, V>();
+    if (contents != null) map.putAll(contents);
+    return map;
   }
 
   /**
@@ -92,9 +168,12 @@ public class MortarScope {
     return name;
   }
 
+  /**
+   * Returns the names of this scope and its ancestors, root first, joined by {@link #DIVIDER}.
+   * Computed when the scope is built.
+   */
   public String getPath() {
-    if (parent == null) return getName();
-    return parent.getPath() + DIVIDER + getName();
+    return path;
   }
 
   /**
@@ -102,7 +181,7 @@ public class MortarScope {
    * It is safe to call this method on destroyed scopes.
    */
   public boolean hasService(String serviceName) {
-    return serviceName.equals(MORTAR_SERVICE) || findService(serviceName, false) != null;
+    return serviceName.equals(MORTAR_SERVICE) || resolve(serviceName) != null;
   }
 
   /**
@@ -113,7 +192,7 @@ public class MortarScope {
    * @see #hasService
    */
   public <T> T getService(String serviceName) {
-    T service = findService(serviceName, true);
+    T service = findService(serviceName);
     if (service == null) {
       throw new IllegalArgumentException(format("No service found named \"%s\"", serviceName));
     }
@@ -121,55 +200,154 @@ public class MortarScope {
     return service;
   }
 
+  /**
+   * Returns true if the service associated with the given key is provided by mortar.
+   * It is safe to call this method on destroyed scopes.
+   */
+  public boolean hasService(ServiceKey<?> key) {
+    return resolve(key.name) != null;
+  }
+
+  /**
+   * Returns the service associated with the given key.
+   *
+   * @throws IllegalArgumentException if no such service can be found
+   * @throws IllegalStateException if this scope is dead
+   * @throws ClassCastException if the service found is not of the key's type
+   * @see #hasService(ServiceKey)
+   */
+  public <T> T getService(ServiceKey<T> key) {
+    assertNotDead();
+
+    int index = key.index;
+    // Read once: destroy() may swap in the empty array at any time.
+    Object[] cached = keyedServices;
+    if (index < cached.length) {
+      Object service = cached[index];
+      if (service != null) return key.type.cast(service);
+    }
+
+    T service = key.type.cast(getService(key.name));
+    synchronized (lock) {
+      if (!dead) {
+        cached = keyedServices;
+        Object[] cache = Arrays.copyOf(cached, Math.max(cached.length, index + 1));
+        cache[index] = service;
+        keyedServices = cache;
+      }
+    }
+    return service;
+  }
+
+  /**
+   * Equivalent to {@code hasService(name) ? getService(name) : null}, but resolves the name only
+   * once. Backs {@link MortarContextWrapper#getSystemService}, which Android calls constantly.
+   *
+   * @throws IllegalStateException if the service is found but this scope is dead
+   */
+  Object getServiceIfPresent(String serviceName) {
+    if (MORTAR_SERVICE.equals(serviceName)) return this;
+
+    MortarScope owner = resolve(serviceName);
+    if (owner == null) return null;
+
+    assertNotDead();
+    return owner.provide(serviceName);
+  }
+
+  /**
+   * Throws if this scope is dead, and instantiates the service if it is {@link
+   * Builder#withLazyService lazy}.
+   */
   @SuppressWarnings("unchecked") //
-  private <T> T findService(String serviceName, boolean strict) {
+  private <T> T findService(String serviceName) {
     // Always honor requests for the scope itself, even if we're destroyed.
     // Otherwise things like if (MortarScope.getScope(context).isDestroyed()) are impossible.
     if (MORTAR_SERVICE.equals(serviceName)) return (T) this;
 
-    if (strict) {
+    assertNotDead();
+    MortarScope owner = resolve(serviceName);
+    if (owner == null) {
+      // Not found because destroy() emptied this scope since the check above.
       assertNotDead();
+      return null;
     }
-
-    T service = (T) services.get(serviceName);
-    if (service != null) return service;
-
-    if (parent != null) {
-      return parent.findService(serviceName, strict);
-    }
-
-    return null;
+    return (T) owner.provide(serviceName);
   }
 
   /**
-   * Find the scope from the root of the hierarchy, in which the scoped object is registered.
+   * Returns the named service bound in this scope, first creating it if it was bound lazily and
+   * has not yet been requested. Only to be called on live scopes.
    */
-  private MortarScope searchFromRoot(Scoped scoped)
-  {
-    // Ascend to the root.
-    MortarScope root = this;
-    while (root.parent != null) {
-      root = root.parent;
+  private Object provide(String serviceName) {
+    Object service = services.get(serviceName);
+    if (service == null) {
+      // Only possible if this scope was destroyed by another thread since the caller checked.
+      assertNotDead();
     }
+    if (!(service instanceof LazyService)) return service;
 
-    // Do the non-recursive search.
-    List<MortarScope> scopes = new LinkedList<>();
-    scopes.add(root);
+    synchronized (lock) {
+      assertNotDead();
+      service = services.get(serviceName);
+      if (!(service instanceof LazyService)) return service;
+
+      LazyService lazy = (LazyService) service;
+      if (lazy.providing) {
+        throw new IllegalStateException(
+            format("Cycle detected: service \"%s\" was requested while it was being created",
+                serviceName));
+      }
+
+      lazy.providing = true;
+      try {
+        service = lazy.provider.get();
+      } finally {
+        lazy.providing = false;
+      }
+      if (service == null) {
+        throw new NullPointerException(format("Provider for \"%s\" returned null", serviceName));
+      }
 
-    while (!scopes.isEmpty()) {
-      // Check first scope in the list.
-      MortarScope scope = scopes.get(0);
+      services.put(serviceName, service);
+      if (service instanceof Scoped) register((Scoped) service);
+      return service;
+    }
+  }
 
-      if (scope.tearDowns.contains(scoped)) {
-        return scope;
+  /** Returns the nearest scope, starting with this one, that provides the named service. */
+  private MortarScope resolve(String serviceName) {
+    if (dead) {
+      // Destroyed scopes still answer hasService, but are detached and not worth caching for.
+      for (MortarScope scope = this; scope != null; scope = scope.parent) {
+        if (scope.provided(serviceName)) return scope;
       }
+      return null;
+    }
 
-      // Replace the first scope with its children (breadth-first search).
-      scopes.addAll(scope.children.values());
-      scopes.remove(0);
+    Object resolution = resolutions.get(serviceName);
+    if (resolution == null) {
+      MortarScope owner;
+      if (services.get(serviceName) != null) {
+        owner = this;
+      } else {
+        owner = parent == null ? null : parent.resolve(serviceName);
+      }
+      synchronized (lock) {
+        // A lookup racing with destroy() must not pin the owner in the cache it just emptied.
+        if (!dead) resolutions.put(serviceName, owner == null ? NOT_FOUND : owner);
+      }
+      return owner;
     }
 
-    return null;
+    return resolution == NOT_FOUND ? null : (MortarScope) resolution;
+  }
+
+  /** True if this scope provides the named service, or did before it was destroyed. */
+  private boolean provided(String serviceName) {
+    // Read services first: destroy() publishes deadServiceNames before it empties services.
+    return services.get(serviceName) != null
+        || Arrays.binarySearch(deadServiceNames, serviceName) >= 0;
   }
 
   /**
@@ -178,25 +356,42 @@ public class MortarScope {
    * they will not lead to additional calls to these two methods.
    * <p>
    * {@link Scoped#onEnterScope(MortarScope) onEnterScope} is called synchronously.
+   * Registrants exit in the reverse of the order they were registered in, like nested
+   * try / finally blocks; see {@link #register(Scoped, int)} to change that.
    *
    * @throws IllegalStateException if this scope has been destroyed, or if the scoped object
    * is already registered with another scope in the same scope hierarchy.
    */
   public void register(Scoped scoped) {
-    assertNotDead();
-    if (tearDowns.contains(scoped)) {
-      // Ignore redundant registrations.
-      return;
-    }
+    register(scoped, DEFAULT_TEARDOWN_PRIORITY);
+  }
 
-    MortarScope scope = searchFromRoot(scoped);
-    if (scope != null) {
-      throw new IllegalStateException(
-          format("\"%s\" is already registered within \"%s\".", scoped, scope));
-    }
+  /**
+   * Like {@link #register(Scoped)}, but when this scope is destroyed the given instance exits
+   * before any registrant with a lower priority, regardless of registration order. Use a
+   * positive priority to release expensive resources first. Redundant registrations keep their
+   * original priority.
+   *
+   * @see MortarScope.Builder#withTeardownListener
+   */
+  public void register(Scoped scoped, int teardownPriority) {
+    synchronized (lock) {
+      assertNotDead();
+      MortarScope scope = root.registrations.get(scoped);
+      if (scope == this) {
+        // Ignore redundant registrations.
+        return;
+      }
+
+      if (scope != null) {
+        throw new IllegalStateException(
+            format("\"%s\" is already registered within \"%s\".", scoped, scope));
+      }
 
-    tearDowns.add(scoped);
-    scoped.onEnterScope(this);
+      tearDowns.add(new TearDown(scoped, teardownPriority));
+      root.registrations.put(scoped, this);
+      scoped.onEnterScope(this);
+    }
   }
 
   /**
@@ -227,31 +422,134 @@ public class MortarScope {
   }
 
   /**
-   * Sends {@link Scoped#onExitScope()} to all registrants. Parent scope drops its reference to
-   * this instance. Prior to this, recursively destroys all children. Redundant calls to this method
-   * are safe.
+   * Sends {@link Scoped#onExitScope()} to all registrants, highest {@link #register(Scoped, int)
+   * priority} first and otherwise most recently registered first. Parent scope drops its
+   * reference to this instance. Prior to this, recursively destroys all children. Redundant calls
+   * to this method are safe.
    */
   public void destroy() {
+    destroy(null);
+  }
+
+  /**
+   * Like {@link #destroy()}, except that registrants that implement {@link BackgroundSafeScoped}
+   * exit on the given executor. This scope and its descendants are destroyed and detached from
+   * their parents before this method returns, and all other registrants have exited.
+   * <p>
+   * Each destroyed scope submits at most one task, which exits its background-safe registrants
+   * in the usual order. Children submit their tasks before their parents, so a serial executor
+   * preserves the children-first ordering of {@link #destroy()}. A scope's {@link
+   * TeardownListener} is notified from its task, if it submits one.
+   * <p>
+   * Until its task runs, a background-safe registrant is still considered to be registered, and
+   * cannot be registered with another scope.
+   */
+  public void destroyAsync(Executor executor) {
+    if (executor == null) throw new NullPointerException("executor == null");
+    destroy(executor);
+  }
+
+  private void destroy(Executor executor) {
+    List<Runnable> backgroundTasks = new ArrayList<>();
+    synchronized (lock) {
+      destroy(executor != null, backgroundTasks);
+    }
+    // Submitted only once the lock is released: a direct or saturated executor would otherwise run
+    // or block on them while holding it.
+    for (Runnable task : backgroundTasks) {
+      executor.execute(task);
+    }
+  }
+
+  /**
+   * Called with {@link #lock} held. If {@code inBackground}, adds a task that exits this scope's
+   * background-safe registrants to {@code backgroundTasks}, after those of its children.
+   */
+  private void destroy(boolean inBackground, List<Runnable> backgroundTasks) {
     if (dead) return;
     dead = true;
 
     List<MortarScope> snapshot = new ArrayList<>(children.values());
     for (MortarScope child : snapshot) {
-      child.destroy();
+      child.destroy(inBackground, backgroundTasks);
     }
 
-    for (Scoped s : tearDowns) {
-      s.onExitScope();
+    List<TearDown> exits = new ArrayList<>(tearDowns);
+    Collections.reverse(exits);
+    // Stable, so equal priorities stay last in, first out.
+    Collections.sort(exits, TearDown.HIGHEST_PRIORITY_FIRST);
+
+    final List<TearDown> backgroundExits = new ArrayList<>();
+    if (inBackground) {
+      for (Iterator<TearDown> i = exits.iterator(); i.hasNext(); ) {
+        TearDown t = i.next();
+        if (t.scoped instanceof BackgroundSafeScoped) {
+          backgroundExits.add(t);
+          i.remove();
+        }
+      }
     }
-    tearDowns.clear();
 
-    Set<String> keys = services.keySet();
-    for (String key : keys) {
-      services.put(key, "Dead service");
-    }
+    final List<TeardownReport.Entry> timings =
+        teardownListener == null ? null : new ArrayList<TeardownReport.Entry>(tearDowns.size());
+    exit(exits, timings);
+
+    // Drop every reference this shell could pin: services (and whole object graphs with them),
+    // registrants, children and cached lookups.
+    String[] names = services.keySet().toArray(NO_SERVICE_NAMES);
+    Arrays.sort(names);
+    deadServiceNames = names;
+    services = Collections.emptyMap();
+    tearDowns = Collections.emptyList();
+    children = Collections.emptyMap();
+    resolutions = Collections.emptyMap();
+    keyedServices = NO_KEYED_SERVICES;
+    trimRegistrations();
+
     if (parent != null) {
       parent.children.remove(getName());
     }
+    if (leakWatcher != null) leakWatcher.watch(this, deadServiceNames);
+
+    if (!backgroundExits.isEmpty()) {
+      backgroundTasks.add(new Runnable() {
+        @Override public void run() {
+          exit(backgroundExits, timings);
+          reportTeardown(timings);
+        }
+      });
+    } else {
+      reportTeardown(timings);
+    }
+  }
+
+  /**
+   * Calls {@link Scoped#onExitScope()} on each, in order, timing them if asked. Each is dropped
+   * from the registration index once it has exited.
+   */
+  private void exit(List<TearDown> exits, List<TeardownReport.Entry> timings) {
+    for (TearDown t : exits) {
+      long start = timings == null ? 0 : System.nanoTime();
+      t.scoped.onExitScope();
+      if (timings != null) {
+        timings.add(new TeardownReport.Entry(t.scoped, t.priority, System.nanoTime() - start));
+      }
+      synchronized (lock) {
+        root.registrations.remove(t.scoped);
+        root.trimRegistrations();
+      }
+    }
+  }
+
+  /** Drops a destroyed root's registration index once no background exits are pending. */
+  private void trimRegistrations() {
+    if (parent == null && dead && registrations.isEmpty()) {
+      registrations = Collections.emptyMap();
+    }
+  }
+
+  private void reportTeardown(List<TeardownReport.Entry> timings) {
+    if (timings != null) teardownListener.onScopeTornDown(new TeardownReport(path, timings));
   }
 
   @Override public String toString() {
@@ -267,9 +565,61 @@ public class MortarScope {
   public static final class Builder {
     private final MortarScope parent;
     private final Map<String, Object> serviceProviders = new LinkedHashMap<>();
+    private boolean concurrent;
+    private TeardownListener teardownListener;
+    private ScopeLeakWatcher leakWatcher;
 
     Builder(MortarScope parent) {
       this.parent = parent;
+      this.concurrent = parent != null && parent.concurrent;
+      this.teardownListener = parent == null ? null : parent.teardownListener;
+      this.leakWatcher = parent == null ? null : parent.leakWatcher;
+    }
+
+    /**
+     * Reports how long each registrant of the new scope takes to {@link Scoped#onExitScope()
+     * exit} it when it is destroyed. Descendants inherit the listener unless their builders
+     * are given their own. Timings are only taken when there is a listener.
+     */
+    public Builder withTeardownListener(TeardownListener listener) {
+      if (listener == null) throw new NullPointerException("listener == null");
+      teardownListener = listener;
+      return this;
+    }
+
+    /**
+     * Has the given watcher track the new scope once it is destroyed, so that it can report it
+     * if it is still reachable later on. Descendants inherit the watcher unless their builders are
+     * given their own.
+     */
+    public Builder withLeakWatcher(ScopeLeakWatcher watcher) {
+      if (watcher == null) throw new NullPointerException("watcher == null");
+      leakWatcher = watcher;
+      return this;
+    }
+
+    /**
+     * Makes the new root scope and all of its descendants safe to use from any thread. Service
+     * lookups, {@link MortarScope#findChild} and {@link MortarScope#isDestroyed} read concurrent
+     * maps and volatile fields without locking, so background threads can use them freely and
+     * will see a scope as destroyed as soon as {@link MortarScope#destroy} begins.
+     * <p>
+     * Changes to the hierarchy are serialized on a lock it shares: building and destroying
+     * scopes, registering {@link Scoped} instances, and creating {@link #withLazyService lazy}
+     * services. {@link Scoped} callbacks and service providers run while that lock is held, so
+     * they must not block on other threads that use the same hierarchy.
+     * <p>
+     * Without this, scopes are meant to be used only from the main thread.
+     *
+     * @throws IllegalStateException if this builder is for a child scope, which inherits its
+     * parent's setting
+     */
+    public Builder withConcurrentAccess() {
+      if (parent != null) {
+        throw new IllegalStateException("Only root scopes can opt in to concurrent access");
+      }
+      concurrent = true;
+      return this;
     }
 
     /**
@@ -294,6 +644,36 @@ public class MortarScope {
       return doWithService(serviceName, service);
     }
 
+    /**
+     * Like {@link #withService(String, Object)}, but the service is not created until it is first
+     * requested from a live scope via {@link MortarScope#getService}. If it is {@link Scoped} it
+     * is {@link MortarScope#register(Scoped) registered} with the new scope at that time. If the
+     * scope is destroyed before anyone asks for the service, it is never created.
+     * {@link MortarScope#hasService} reports lazy services without creating them.
+     */
+    public Builder withLazyService(String serviceName, ServiceProvider<?> provider) {
+      if (provider == null) throw new NullPointerException("provider == null");
+      return doWithService(serviceName, new LazyService(provider));
+    }
+
+    /**
+     * Like {@link #withLazyService(String, ServiceProvider)}, but keyed like {@link
+     * #withService(ServiceKey, Object)}.
+     */
+    public <T> Builder withLazyService(ServiceKey<T> key, ServiceProvider<? extends T> provider) {
+      return withLazyService(key.name, provider);
+    }
+
+    /**
+     * Makes this service available via the new scope's {@link MortarScope#getService(ServiceKey)}
+     * method, and under the key's name via {@link MortarScope#getService(String)}. If the service
+     * is {@link Scoped} it is also {@link MortarScope#register(Scoped) registered} with the new
+     * scope.
+     */
+    public <T> Builder withService(ServiceKey<T> key, T service) {
+      return doWithService(key.name, key.type.cast(service));
+    }
+
     public MortarScope build(String name) {
 
       if (name.contains(DIVIDER)) {
@@ -301,18 +681,22 @@ public class MortarScope {
             format("Name \"%s\" must not contain '%s'", name, DIVIDER));
       }
 
-      MortarScope newScope = new MortarScope(name, parent, serviceProviders);
-      if (parent != null) {
-        if (parent.children.containsKey(name)) {
-          throw new IllegalArgumentException(
-              format("Scope \"%s\" already has a child named \"%s\"", name, name));
+      MortarScope newScope = new MortarScope(name, parent, concurrent, teardownListener,
+          leakWatcher, serviceProviders);
+      synchronized (newScope.lock) {
+        if (parent != null) {
+          parent.assertNotDead();
+          if (parent.children.containsKey(name)) {
+            throw new IllegalArgumentException(
+                format("Scope \"%s\" already has a child named \"%s\"", name, name));
+          }
+
+          parent.children.put(name, newScope);
         }
 
-        parent.children.put(name, newScope);
-      }
-
-      for (Object service : serviceProviders.values()) {
-        if (service instanceof Scoped) newScope.register((Scoped) service);
+        for (Object service : serviceProviders.values()) {
+          if (service instanceof Scoped) newScope.register((Scoped) service);
+        }
       }
       return newScope;
     }
@@ -330,4 +714,30 @@ public class MortarScope {
       return this;
     }
   }
+
+  private static final class TearDown {
+    static final Comparator<TearDown> HIGHEST_PRIORITY_FIRST = new Comparator<TearDown>() {
+      @Override public int compare(TearDown lhs, TearDown rhs) {
+        return lhs.priority < rhs.priority ? 1 : lhs.priority > rhs.priority ? -1 : 0;
+      }
+    };
+
+    final Scoped scoped;
+    final int priority;
+
+    TearDown(Scoped scoped, int priority) {
+      this.scoped = scoped;
+      this.priority = priority;
+    }
+  }
+
+  /** Placeholder for a service bound via {@link Builder#withLazyService}. */
+  private static final class LazyService {
+    final ServiceProvider<?> provider;
+    boolean providing;
+
+    LazyService(ServiceProvider<?> provider) {
+      this.provider = provider;
+    }
+  }
 }
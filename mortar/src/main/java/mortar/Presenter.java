@@ -18,6 +18,9 @@ package mortar;
 import android.os.Bundle;
 import mortar.bundler.BundleService;
 import mortar.bundler.Bundler;
+import mortar.bundler.DeferrableLoad;
+import mortar.bundler.LoadPriority;
+import mortar.bundler.VersionedState;
 
 public abstract class Presenter<V> {
   private V view = null;
@@ -25,7 +28,10 @@ public abstract class Presenter<V> {
   /** Load has been called for the current {@link #view}. */
   private boolean loaded;
 
-  private Bundler registration = new Bundler() {
+  private Bundler registration = new Registration();
+
+  private final class Registration implements Bundler, LoadPriority, DeferrableLoad,
+      VersionedState {
     @Override public String getMortarBundleKey() {
       return Presenter.this.getMortarBundleKey();
     }
@@ -48,7 +54,21 @@ public abstract class Presenter<V> {
     @Override public void onExitScope() {
       Presenter.this.onExitScope();
     }
-  };
+
+    /** Presenters with a view are on screen, and load before those without. */
+    @Override public int getLoadPriority() {
+      return hasView() ? VISIBLE : DEFAULT;
+    }
+
+    /** Loads are ignored without a view, and {@link #takeView} registers again. */
+    @Override public boolean canDeferLoad() {
+      return !hasView();
+    }
+
+    @Override public int getStateVersion() {
+      return Presenter.this.getStateVersion();
+    }
+  }
 
   /**
    * Called to give this presenter control of a view, typically from 
@@ -133,6 +153,15 @@ public abstract class Presenter<V> {
   protected void onLoad(Bundle savedInstanceState) {
   }
 
+  /**
+   * The version of what {@link #onSave} writes, zero by default. Raise it when that changes
+   * shape, and register {@link mortar.bundler.StateMigration}s for the older versions, so that
+   * {@link #onLoad} never sees state it can't read. See {@link VersionedState}.
+   */
+  protected int getStateVersion() {
+    return 0;
+  }
+
   /** Like {@link Bundler#onSave}. */
   protected void onSave(Bundle outState) {
   }
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Finds destroyed scopes that are still strongly reachable, typically through a view, a
+ * presenter or a subscription that outlived them. Install it with {@link
+ * MortarScope.Builder#withLeakWatcher}; each scope in that hierarchy is watched from the moment
+ * it is {@link MortarScope#destroy() destroyed}.
+ * <p>
+ * Nothing happens in the background. Call {@link #check()} when convenient, e.g. from a
+ * delayed main thread message in debug builds, or at the end of a test:
+ *
+ * <pre>{@code
+ * ScopeLeakWatcher watcher = new ScopeLeakWatcher(0, SECONDS);
+ * MortarScope root = MortarScope.buildRootScope().withLeakWatcher(watcher).build("root");
+ * ...
+ * root.destroy();
+ * assertThat(watcher.check()).isEmpty();
+ * }</pre>
+ */
+public final class ScopeLeakWatcher {
+  public interface Listener {
+    /** Called from {@link #check()}, once per leaked scope. */
+    void onScopeLeaked(Leak leak);
+  }
+
+  /** A destroyed scope that was still reachable after the watcher's delay and a GC. */
+  public static final class Leak {
+    private final String scopePath;
+    private final List<String> serviceNames;
+    private final long retainedNanos;
+
+    Leak(String scopePath, List<String> serviceNames, long retainedNanos) {
+      this.scopePath = scopePath;
+      this.serviceNames = serviceNames;
+      this.retainedNanos = retainedNanos;
+    }
+
+    /** The {@link MortarScope#getPath() path} of the leaked scope. */
+    public String getScopePath() {
+      return scopePath;
+    }
+
+    /** Names of the services the scope held before it was destroyed, sorted. */
+    public List<String> getServiceNames() {
+      return serviceNames;
+    }
+
+    /** How long it had been since the scope was destroyed when it was found reachable. */
+    public long getRetainedNanos() {
+      return retainedNanos;
+    }
+
+    @Override public String toString() {
+      return format("%s still reachable %.0fms after destroy, held %s", scopePath,
+          retainedNanos / 1e6, serviceNames);
+    }
+  }
+
+  private final long delayNanos;
+  private final Listener listener;
+  private final ReferenceQueue<MortarScope> queue = new ReferenceQueue<>();
+  /** In the order the scopes were destroyed. */
+  private final Set<WatchedScope> watched = new LinkedHashSet<>();
+
+  /**
+   * @param delay how long after its destruction a scope must still be reachable to be reported
+   * by {@link #check()}. Gives frameworks time to let go, e.g. of views that are animating out.
+   */
+  public ScopeLeakWatcher(long delay, TimeUnit unit) {
+    this(delay, unit, null);
+  }
+
+  /**
+   * Like {@link #ScopeLeakWatcher(long, TimeUnit)}, and also reports each leak to the given
+   * listener.
+   */
+  public ScopeLeakWatcher(long delay, TimeUnit unit, Listener listener) {
+    if (delay < 0) throw new IllegalArgumentException("delay < 0: " + delay);
+    this.delayNanos = unit.toNanos(delay);
+    this.listener = listener;
+  }
+
+  /** Called as the scope is destroyed, with the names of the services it held. */
+  synchronized void watch(MortarScope scope, String[] serviceNames) {
+    List<String> names = Collections.unmodifiableList(Arrays.asList(serviceNames.clone()));
+    watched.add(new WatchedScope(scope, queue, names, System.nanoTime()));
+  }
+
+  /** The number of destroyed scopes that have been neither collected nor reported yet. */
+  public synchronized int watchedCount() {
+    removeCollected();
+    return watched.size();
+  }
+
+  /**
+   * Reports destroyed scopes that are still reachable at least the watcher's delay after they
+   * were destroyed, running the garbage collector first if there are any. Each leak is reported
+   * once.
+   */
+  public synchronized List<Leak> check() {
+    removeCollected();
+    if (!hasDue(System.nanoTime())) return Collections.emptyList();
+
+    runGc();
+    removeCollected();
+    long now = System.nanoTime();
+    List<Leak> leaks = new ArrayList<>();
+    for (Iterator<WatchedScope> i = watched.iterator(); i.hasNext(); ) {
+      WatchedScope scope = i.next();
+      if (now - scope.destroyedAtNanos < delayNanos) continue;
+      i.remove();
+      leaks.add(new Leak(scope.path, scope.serviceNames, now - scope.destroyedAtNanos));
+    }
+
+    if (listener != null) {
+      for (Leak leak : leaks) {
+        listener.onScopeLeaked(leak);
+      }
+    }
+    return leaks;
+  }
+
+  private boolean hasDue(long now) {
+    for (WatchedScope scope : watched) {
+      if (now - scope.destroyedAtNanos >= delayNanos) return true;
+    }
+    return false;
+  }
+
+  private void removeCollected() {
+    WatchedScope ref;
+    while ((ref = (WatchedScope) queue.poll()) != null) {
+      watched.remove(ref);
+    }
+    // Cleared references are enqueued by another thread, possibly later than this.
+    for (Iterator<WatchedScope> i = watched.iterator(); i.hasNext(); ) {
+      if (i.next().get() == null) i.remove();
+    }
+  }
+
+  private static void runGc() {
+    // System.gc() is only a hint; a pause gives the collector and the reference queue time.
+    Runtime.getRuntime().gc();
+    try {
+      Thread.sleep(100);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    System.runFinalization();
+  }
+
+  private static final class WatchedScope extends WeakReference<MortarScope> {
+    final String path;
+    final List<String> serviceNames;
+    final long destroyedAtNanos;
+
+    WatchedScope(MortarScope scope, ReferenceQueue<MortarScope> queue, List<String> serviceNames,
+        long destroyedAtNanos) {
+      super(scope, queue);
+      this.path = scope.getPath();
+      this.serviceNames = serviceNames;
+      this.destroyedAtNanos = destroyedAtNanos;
+    }
+  }
+}
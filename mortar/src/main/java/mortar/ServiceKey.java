@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A typed handle for a service, meant to be allocated once and kept in a constant. Each key is
+ * given a small integer slot, which lets {@link MortarScope#getService(ServiceKey)} answer
+ * repeat lookups from an array rather than a hash map.
+ * <p>
+ * A service bound with a key is also bound under the key's {@link #getName() name}, so it
+ * remains visible to {@link MortarScope#getService(String)} and so to
+ * {@link android.content.Context#getSystemService}. Likewise a key finds services bound by name
+ * alone.
+ */
+public final class ServiceKey<T> {
+  private static final AtomicInteger nextIndex = new AtomicInteger();
+
+  /** Creates a key for a service of the given type, named with the type's class name. */
+  public static <T> ServiceKey<T> create(Class<T> type) {
+    return create(type.getName(), type);
+  }
+
+  public static <T> ServiceKey<T> create(String name, Class<T> type) {
+    if (name == null) throw new NullPointerException("name == null");
+    if (type == null) throw new NullPointerException("type == null");
+    return new ServiceKey<>(name, type, nextIndex.getAndIncrement());
+  }
+
+  final String name;
+  final Class<T> type;
+  final int index;
+
+  private ServiceKey(String name, Class<T> type, int index) {
+    this.name = name;
+    this.type = type;
+    this.index = index;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Class<T> getType() {
+    return type;
+  }
+
+  @Override public String toString() {
+    return "ServiceKey{" + name + ": " + type.getName() + '}';
+  }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar;
+
+/**
+ * Told how long each registrant of a scope took to {@link Scoped#onExitScope() exit} it.
+ *
+ * @see MortarScope.Builder#withTeardownListener
+ */
+public interface TeardownListener {
+  /**
+   * Called at the end of {@link MortarScope#destroy()}, once for each destroyed scope, children
+   * before parents.
+   */
+  void onScopeTornDown(TeardownReport report);
+}
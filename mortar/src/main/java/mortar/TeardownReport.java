@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar;
+
+import java.util.Collections;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/** Timings of the {@link Scoped#onExitScope()} calls made while destroying one scope. */
+public final class TeardownReport {
+  /** One registrant's {@link Scoped#onExitScope()} call. */
+  public static final class Entry {
+    private final Scoped scoped;
+    private final int priority;
+    private final long elapsedNanos;
+
+    Entry(Scoped scoped, int priority, long elapsedNanos) {
+      this.scoped = scoped;
+      this.priority = priority;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    public Scoped getScoped() {
+      return scoped;
+    }
+
+    /** The priority the registrant was {@link MortarScope#register(Scoped, int) registered} at. */
+    public int getPriority() {
+      return priority;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    @Override public String toString() {
+      return format("%8.3fms  [%d] %s", elapsedNanos / 1e6, priority, scoped);
+    }
+  }
+
+  private final String scopePath;
+  private final List<Entry> entries;
+
+  TeardownReport(String scopePath, List<Entry> entries) {
+    this.scopePath = scopePath;
+    this.entries = Collections.unmodifiableList(entries);
+  }
+
+  /** The {@link MortarScope#getPath() path} of the destroyed scope. */
+  public String getScopePath() {
+    return scopePath;
+  }
+
+  /** In the order the registrants exited. */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  public long getTotalNanos() {
+    long total = 0;
+    for (Entry entry : entries) {
+      total += entry.elapsedNanos;
+    }
+    return total;
+  }
+
+  @Override public String toString() {
+    StringBuilder result = new StringBuilder(format("Teardown of %s took %.3fms\n", scopePath,
+        getTotalNanos() / 1e6));
+    for (Entry entry : entries) {
+      result.append(entry).append('\n');
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Set;
+
+/**
+ * A simple tagged binary {@link StateCodec} for the value types {@link StateContainer} has
+ * accessors for. Built on {@link DataOutputStream}; the format is stable across releases.
+ */
+public final class BasicStateCodec implements StateCodec {
+  private static final int MAGIC = 0x4d535431; // MST1
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final byte BOOLEAN = 1;
+  private static final byte INT = 2;
+  private static final byte LONG = 3;
+  private static final byte STRING = 4;
+  private static final byte BYTES = 5;
+  private static final byte CHILD = 6;
+  private static final byte NULL = 7;
+
+  @Override public byte[] encode(StateContainer state) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(state.estimateSize());
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(MAGIC);
+      write(state, out);
+      out.flush();
+    } catch (IOException e) {
+      throw new AssertionError(e); // Not from a ByteArrayOutputStream.
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void write(StateContainer state, DataOutputStream out) throws IOException {
+    Set<String> keys = state.keySet();
+    out.writeInt(keys.size());
+    for (String key : keys) {
+      out.writeUTF(key);
+      Object value = state.get(key);
+      if (value instanceof Boolean) {
+        out.writeByte(BOOLEAN);
+        out.writeBoolean((Boolean) value);
+      } else if (value instanceof Integer) {
+        out.writeByte(INT);
+        out.writeInt((Integer) value);
+      } else if (value instanceof Long) {
+        out.writeByte(LONG);
+        out.writeLong((Long) value);
+      } else if (value instanceof String) {
+        // Not writeUTF(), which is limited to 64k.
+        byte[] utf8 = ((String) value).getBytes(UTF_8);
+        out.writeByte(STRING);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+      } else if (value instanceof byte[]) {
+        byte[] array = (byte[]) value;
+        out.writeByte(BYTES);
+        out.writeInt(array.length);
+        out.write(array);
+      } else if (value instanceof StateContainer) {
+        out.writeByte(CHILD);
+        write((StateContainer) value, out);
+      } else if (value == null) {
+        out.writeByte(NULL);
+      } else {
+        throw new IllegalArgumentException(
+            String.format("Cannot encode \"%s\", a %s", key, value.getClass().getName()));
+      }
+    }
+  }
+
+  @Override public void decode(byte[] bytes, StateContainer into) {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    try {
+      if (in.readInt() != MAGIC) throw new IllegalArgumentException("Not a BasicStateCodec blob");
+      read(in, into);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Truncated or corrupt state", e);
+    }
+  }
+
+  private static void read(DataInputStream in, StateContainer into) throws IOException {
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      String key = in.readUTF();
+      byte tag = in.readByte();
+      switch (tag) {
+        case BOOLEAN:
+          into.putBoolean(key, in.readBoolean());
+          break;
+        case INT:
+          into.putInt(key, in.readInt());
+          break;
+        case LONG:
+          into.putLong(key, in.readLong());
+          break;
+        case STRING:
+          into.putString(key, new String(readBytes(in), UTF_8));
+          break;
+        case BYTES:
+          into.putByteArray(key, readBytes(in));
+          break;
+        case CHILD:
+          read(in, into.putChild(key));
+          break;
+        case NULL:
+          into.putString(key, null);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown tag " + tag + " for \"" + key + "\"");
+      }
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    // Don't let a corrupt length allocate more than is left; available() is exact here.
+    if (length < 0 || length > in.available()) throw new IOException("Bad length " + length);
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -2,9 +2,11 @@ package mortar.bundler;
 
 import android.content.Context;
 import android.os.Bundle;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import mortar.MortarScope;
 import mortar.Scoped;
@@ -12,17 +14,46 @@ import mortar.Scoped;
 import static java.lang.String.format;
 
 public class BundleService {
+  /** Key of the only value in the state of a bundler whose real state was spilled. */
+  static final String SPILL_HANDLE = "mortar:spill";
+  /** Key of the only value in the state of a bundler whose real state was compressed. */
+  static final String COMPRESSED = "mortar:compressed";
+  /**
+   * Prefix of the key, next to a {@link VersionedState} bundler's state, of the version it was
+   * saved at.
+   */
+  static final String VERSION_PREFIX = "mortar:version:";
+
   final BundleServiceRunner runner;
   final MortarScope scope;
-  final Set<Bundler> bundlers = new LinkedHashSet<>();
+  /** The scope's path split on {@link MortarScope#DIVIDER}, for {@link BundleServiceComparator}. */
+  final String[] pathSegments;
+  final Set<StateBundler> bundlers = new LinkedHashSet<>();
 
-  Bundle scopeBundle;
-  private List<Bundler> toBeLoaded = new ArrayList<>();
+  StateContainer scopeState;
+  /** True if {@link #scopeState} is to be found in the runner's root state when next needed. */
+  boolean scopeStateDeferred;
+  /** The registered bundlers that are, or wrap, a {@link LoadPriority}. Most are not. */
+  private final Map<StateBundler, LoadPriority> loadPriorities = new HashMap<>();
+  /** The registered bundlers that are, or wrap, a {@link VersionedState}. */
+  private final Map<StateBundler, VersionedState> versionedStates = new HashMap<>();
+  /** This service's part of the runner's {@link LoadQueue}. */
+  final LoadQueue.Pending pendingLoads = new LoadQueue.Pending();
+  /** {@link DeferrableLoad}s waiting for the runner's {@link IdleScheduler}. */
+  private final Set<StateBundler> deferredLoads = new LinkedHashSet<>();
+  /** Bundlers registered before a {@link BundleServiceRunner#setLazyRestore lazy} restore. */
+  private final Set<StateBundler> lazyLoads = new LinkedHashSet<>();
+  /** What each clean {@link DirtyTracking} bundler last saved, reused until it is dirtied. */
+  private final Map<StateBundler, StateContainer> cleanStates = new HashMap<>();
+  /** {@link SpillStore} handles of this scope's spilled state, by bundle key. */
+  private final Map<String, String> spillHandles = new HashMap<>();
 
   BundleService(BundleServiceRunner runner, MortarScope scope) {
     this.runner = runner;
     this.scope = scope;
-    scopeBundle = findScopeBundle(runner.rootBundle);
+    this.pathSegments = scope.getPath().split(MortarScope.DIVIDER);
+    // Found when a bundler first loads, so that a scope with none doesn't read its state.
+    scopeStateDeferred = true;
   }
 
   public static BundleService getBundleService(Context context) {
@@ -45,31 +76,45 @@ public class BundleService {
 
   /**
    * <p>Registers {@link Bundler} instances with this service. See that interface for details.
+   * Requires the {@link BundleServiceRunner} to be driven with {@link Bundle}s.
    */
   public void register(Bundler bundler) {
     if (bundler == null) throw new NullPointerException("Cannot register null bundler.");
+    register(new BundlerAdapter(bundler));
+  }
+
+  /**
+   * Like {@link #register(Bundler)}, for bundlers that work with any {@link StateContainer}.
+   */
+  public void register(StateBundler bundler) {
+    if (bundler == null) throw new NullPointerException("Cannot register null bundler.");
 
     if (runner.state == BundleServiceRunner.State.SAVING) {
       throw new IllegalStateException("Cannot register during onSave");
     }
 
-    if (bundlers.add(bundler)) bundler.onEnterScope(scope);
+    if (bundlers.add(bundler)) {
+      LoadPriority loadPriority = asLoadPriority(bundler);
+      if (loadPriority != null) loadPriorities.put(bundler, loadPriority);
+      VersionedState versionedState = asVersionedState(bundler);
+      if (versionedState != null) versionedStates.put(bundler, versionedState);
+      bundler.onEnterScope(scope);
+    }
     String mortarBundleKey = bundler.getMortarBundleKey();
     if (mortarBundleKey == null || mortarBundleKey.trim().equals("")) {
       throw new IllegalArgumentException(format("%s has null or empty bundle key", bundler));
     }
 
+    // Loaded now instead.
+    deferredLoads.remove(bundler);
+    queueLazyLoads();
     switch (runner.state) {
       case IDLE:
-        toBeLoaded.add(bundler);
-        runner.servicesToBeLoaded.add(this);
+        runner.toBeLoaded.add(this, bundler);
         runner.finishLoading();
         break;
       case LOADING:
-        if (!toBeLoaded.contains(bundler)) {
-          toBeLoaded.add(bundler);
-          runner.servicesToBeLoaded.add(this);
-        }
+        runner.toBeLoaded.add(this, bundler);
         break;
 
       default:
@@ -77,65 +122,539 @@ public class BundleService {
     }
   }
 
+  /**
+   * Tells this service that the given {@link DirtyTracking} bundler has state to save, so that
+   * its {@link Bundler#onSave} is called on the next save. Safe to call for bundlers that are not
+   * registered.
+   */
+  public void markDirty(Bundler bundler) {
+    cleanStates.remove(new BundlerAdapter(bundler));
+  }
+
+  /** Like {@link #markDirty(Bundler)}. */
+  public void markDirty(StateBundler bundler) {
+    cleanStates.remove(bundler);
+  }
+
   void init() {
     scope.register(new Scoped() {
       @Override public void onEnterScope(MortarScope scope) {
-        runner.scopedServices.put(runner.bundleKey(scope), BundleService.this);
+        String bundleKey = runner.bundleKey(scope);
+        runner.bundleKeys.put(scope, bundleKey);
+        runner.scopedServices.put(bundleKey, BundleService.this);
       }
 
       @Override public void onExitScope() {
-        if (runner.rootBundle != null) runner.rootBundle.remove(runner.bundleKey(scope));
-        for (Bundler b : bundlers) b.onExitScope();
-        runner.scopedServices.remove(runner.bundleKey(scope));
-        runner.servicesToBeLoaded.remove(BundleService.this);
+        String bundleKey = runner.bundleKey(scope);
+        runner.dropRestoredState(bundleKey);
+        for (StateBundler b : bundlers) b.onExitScope();
+        cleanStates.clear();
+        loadPriorities.clear();
+        versionedStates.clear();
+        deferredLoads.clear();
+        runner.deferredServices.remove(BundleService.this);
+        lazyLoads.clear();
+        runner.lazyServices.remove(BundleService.this);
+        deleteSpills();
+        runner.scopedServices.remove(bundleKey);
+        runner.bundleKeys.remove(scope);
+        runner.toBeLoaded.remove(BundleService.this);
       }
     });
   }
 
-  boolean needsLoading() {
-    return !toBeLoaded.isEmpty();
+  void load(StateBundler next, StatePass pass) {
+    long start = pass.bundlerStats != null ? System.nanoTime() : 0;
+    if (pass.tracer != null) pass.tracer.beginSection("mortar.load:" + next.getMortarBundleKey());
+    StateContainer leafState;
+    try {
+      leafState = loadBundler(next, pass);
+    } finally {
+      if (pass.tracer != null) pass.tracer.endSection();
+    }
+    if (pass.bundlerStats != null) {
+      long nanos = System.nanoTime() - start;
+      pass.bundlerStats.recordLoad(scope.getPath(), next.getMortarBundleKey(), nanos,
+          leafState == null ? 0 : leafState.estimateSize());
+    }
   }
 
-  void loadOne() {
-    if (toBeLoaded.isEmpty()) return;
+  /** Feeds the given bundler its state, and returns that state. */
+  private StateContainer loadBundler(StateBundler next, StatePass pass) {
+    // The bundler may or may not adopt what it loads, so it has to save again.
+    cleanStates.remove(next);
+    if (scopeStateDeferred) {
+      scopeState = findScopeState();
+      scopeStateDeferred = false;
+    }
+    StateContainer savedState =
+        scopeState == null ? null : scopeState.getChild(next.getMortarBundleKey());
+    StateContainer leafState = savedState;
+    if (leafState != null) leafState = unspill(pass, next.getMortarBundleKey(), leafState);
+    if (leafState != null) leafState = decompress(pass, next.getMortarBundleKey(), leafState);
+    if (leafState != null) leafState = migrate(next, leafState, leafState != savedState);
+    next.onLoad(leafState);
+    return leafState;
+  }
+
+  /** Queues all bundlers to be loaded from the runner's newly restored root state. */
+  void updateScopedStateOnCreate() {
+    scopeState = findScopeState();
+    scopeStateDeferred = false;
+    deferredLoads.clear();
+    lazyLoads.clear();
+    runner.toBeLoaded.addAll(this, bundlers);
+  }
+
+  /**
+   * Like {@link #updateScopedStateOnCreate}, for a {@link BundleServiceRunner#setLazyRestore lazy}
+   * restore: leaves the state alone, and the bundlers unloaded, until the scope is next used.
+   */
+  void deferScopedStateOnCreate() {
+    scopeState = null;
+    scopeStateDeferred = true;
+    deferredLoads.clear();
+    lazyLoads.clear();
+    lazyLoads.addAll(bundlers);
+    if (!lazyLoads.isEmpty()) runner.lazyServices.add(this);
+  }
+
+  /**
+   * Queues the bundlers that {@link #deferScopedStateOnCreate} left unloaded. Returns false if
+   * there are none.
+   */
+  boolean queueLazyLoads() {
+    if (lazyLoads.isEmpty()) return false;
+    runner.toBeLoaded.addAll(this, lazyLoads);
+    lazyLoads.clear();
+    runner.lazyServices.remove(this);
+    return true;
+  }
 
-    Bundler next = toBeLoaded.remove(0);
-    Bundle leafBundle =
-        scopeBundle == null ? null : scopeBundle.getBundle(next.getMortarBundleKey());
-    next.onLoad(leafBundle);
+  /** Sets the given bundler aside if it is a {@link DeferrableLoad} that can wait. */
+  boolean deferLoad(StateBundler bundler) {
+    Object target =
+        bundler instanceof BundlerAdapter ? ((BundlerAdapter) bundler).bundler : bundler;
+    if (!(target instanceof DeferrableLoad) || !((DeferrableLoad) target).canDeferLoad()) {
+      return false;
+    }
+    deferredLoads.add(bundler);
+    return true;
   }
 
-  /** @return true if we have clients that now need to be loaded */
-  boolean updateScopedBundleOnCreate(Bundle rootBundle) {
-    scopeBundle = findScopeBundle(rootBundle);
-    toBeLoaded.addAll(bundlers);
-    return !toBeLoaded.isEmpty();
+  /** Queues the bundlers {@link #deferLoad} set aside. */
+  void queueDeferredLoads() {
+    runner.toBeLoaded.addAll(this, deferredLoads);
+    deferredLoads.clear();
   }
 
-  private Bundle findScopeBundle(Bundle root) {
-    return root == null ? null : root.getBundle(runner.bundleKey(scope));
+  private StateContainer findScopeState() {
+    return runner.findScopeState(runner.bundleKey(scope));
   }
 
-  void saveToRootBundle(Bundle rootBundle) {
+  void saveToRootState(StateContainer rootState, StatePass pass) {
+    if (pass.tracer != null) pass.tracer.beginSection("mortar.saveScope:" + scope.getName());
+    try {
+      saveBundlers(rootState, pass);
+    } finally {
+      if (pass.tracer != null) pass.tracer.endSection();
+    }
+  }
+
+  private void saveBundlers(StateContainer rootState, StatePass pass) {
     String key = runner.bundleKey(scope);
-    scopeBundle = rootBundle.getBundle(key);
+    // A checkpoint keeps what was restored for bundlers that have yet to load it.
+    StateContainer restoredState = null;
+    if (pass.checkpointing && !lazyLoads.isEmpty()) {
+      if (runner.copyEncodedScope(key, rootState)) return;
+      restoredState = runner.restoredScopeState(key);
+    } else if (pass.checkpointing && !deferredLoads.isEmpty()) {
+      restoredState = scopeState;
+    }
 
-    if (scopeBundle == null) {
-      scopeBundle = new Bundle();
-      rootBundle.putBundle(key, scopeBundle);
+    scopeState = rootState.getChild(key);
+    scopeStateDeferred = false;
+
+    if (scopeState == null) {
+      scopeState = rootState.putChild(key);
     }
 
-    for (Bundler bundler : bundlers) {
-      Bundle childBundle = scopeBundle.getBundle(bundler.getMortarBundleKey());
-      if (childBundle == null) {
-        childBundle = new Bundle();
-        scopeBundle.putBundle(bundler.getMortarBundleKey(), childBundle);
+    for (StateBundler bundler : bundlers) {
+      if (pass.checkpointing && (lazyLoads.contains(bundler) || deferredLoads.contains(bundler))) {
+        copyRestored(pass, bundler, restoredState);
+        continue;
+      }
+      if (!versionedStates.isEmpty()) putVersion(bundler);
+      StateContainer cleanState = cleanStates.get(bundler);
+      // Only reusable within the same kind of container, and not by checkpoints if spilled.
+      if (cleanState != null && cleanState.getClass() == scopeState.getClass()
+          && !(pass.checkpointing && cleanState.containsKey(SPILL_HANDLE))) {
+        scopeState.putChild(bundler.getMortarBundleKey(), cleanState);
+        pass.skippedCount++;
+        measure(pass, bundler, cleanState);
+        if (pass.bundlerStats != null) {
+          pass.bundlerStats.recordSkippedSave(scope.getPath(), bundler.getMortarBundleKey());
+        }
+        continue;
+      }
+
+      long start = pass.bundlerStats != null ? System.nanoTime() : 0;
+      if (pass.tracer != null) {
+        pass.tracer.beginSection("mortar.save:" + bundler.getMortarBundleKey());
+      }
+      if (pass.pendingSaves != null && bundler instanceof SnapshotBundler) {
+        PendingSave save;
+        try {
+          save = startSave((SnapshotBundler) bundler, pass);
+        } finally {
+          if (pass.tracer != null) pass.tracer.endSection();
+        }
+        // Recorded once the save is put in place.
+        if (pass.bundlerStats != null) save.snapshotNanos = System.nanoTime() - start;
+        if (scope.isDestroyed()) return;
+        continue;
       }
 
-      bundler.onSave(childBundle);
+      StateContainer childState;
+      try {
+        childState = saveBundler(bundler, pass);
+      } finally {
+        if (pass.tracer != null) pass.tracer.endSection();
+      }
+      if (pass.bundlerStats != null) {
+        long nanos = System.nanoTime() - start;
+        pass.bundlerStats.recordSave(scope.getPath(), bundler.getMortarBundleKey(), nanos,
+            childState.estimateSize());
+      }
+      measure(pass, bundler, childState);
+      if (tracksDirt(bundler) && !pass.checkpointing) cleanStates.put(bundler, childState);
 
       // Short circuit if the scope was destroyed by the save call.
       if (scope.isDestroyed()) return;
     }
   }
+
+  /**
+   * For a checkpoint: copies what was restored for the given bundler, which has yet to load it,
+   * to {@link #scopeState} along with its version. Spilled state is read back in, since the
+   * checkpoint must not depend on spill files.
+   */
+  private void copyRestored(StatePass pass, StateBundler bundler, StateContainer restoredState) {
+    if (restoredState == null) return;
+    String key = bundler.getMortarBundleKey();
+    StateContainer leafState = restoredState.getChild(key);
+    if (leafState == null) return;
+    String handle = leafState.getString(SPILL_HANDLE);
+    if (handle != null) leafState = readSpill(pass, handle, leafState);
+    if (leafState == null) return;
+
+    putCopy(scopeState, key, leafState);
+    String versionKey = VERSION_PREFIX + key;
+    if (restoredState.containsKey(versionKey)) {
+      scopeState.putInt(versionKey, restoredState.getInt(versionKey));
+    }
+  }
+
+  /** Takes the given bundler's snapshot, and has it written on the pass's save executor. */
+  private PendingSave startSave(SnapshotBundler bundler, StatePass pass) {
+    PendingSave save = new PendingSave(this, bundler, bundler.snapshot(), pass);
+    pass.savedCount++;
+    pass.pendingSaves.add(save);
+    save.start(pass.saveExecutor);
+    return save;
+  }
+
+  /**
+   * Has the given bundler save to {@link #scopeState}, and compresses and spills what it saved if
+   * it is large. Returns what is left in the scope's state.
+   */
+  private StateContainer saveBundler(StateBundler bundler, StatePass pass) {
+    StateContainer childState = scopeState.getChild(bundler.getMortarBundleKey());
+    if (childState == null) {
+      childState = scopeState.putChild(bundler.getMortarBundleKey());
+    }
+
+    bundler.onSave(childState);
+    pass.savedCount++;
+    compress(pass, bundler.getMortarBundleKey(), childState);
+    if (!pass.checkpointing) {
+      childState = putSpill(pass, bundler.getMortarBundleKey(), childState,
+          writeSpill(pass, childState));
+    }
+    return childState;
+  }
+
+  /** Puts the state written by a {@link PendingSave} in place, on the main thread. */
+  void finishSave(PendingSave save) {
+    if (scope.isDestroyed()) {
+      save.discard();
+      return;
+    }
+
+    StatePass pass = save.pass;
+    long start = pass.bundlerStats != null ? System.nanoTime() : 0;
+    StateBundler bundler = save.bundler;
+    String key = bundler.getMortarBundleKey();
+    StateContainer childState = null;
+    if (save.spillHandle == null) {
+      childState = scopeState.putChild(key);
+      save.state.copyTo(childState);
+    }
+    if (!pass.checkpointing) childState = putSpill(pass, key, childState, save.spillHandle);
+    if (pass.bundlerStats != null) {
+      long nanos = save.snapshotNanos + System.nanoTime() - start;
+      pass.bundlerStats.recordSave(scope.getPath(), key, nanos,
+          childState == null ? 0 : childState.estimateSize());
+    }
+    measure(pass, bundler, childState);
+    if (tracksDirt(bundler) && !pass.checkpointing) cleanStates.put(bundler, childState);
+  }
+
+  /**
+   * Writes the given state to the pass's {@link SpillStore}, if it has one, is not a checkpoint,
+   * and the state is large enough. Returns the handle, or null if the state was not spilled. Safe
+   * to call from any thread.
+   */
+  static String writeSpill(StatePass pass, StateContainer state) {
+    if (pass.spillStore == null || pass.checkpointing
+        || state.estimateSize() <= pass.spillThresholdBytes) {
+      return null;
+    }
+    try {
+      return pass.spillStore.write(pass.codec.encode(state));
+    } catch (IllegalArgumentException | IOException e) {
+      // Better a large transaction than lost state.
+      return null;
+    }
+  }
+
+  /**
+   * Replaces the contents of the given state with a {@link #COMPRESSED} encoding of them, if it
+   * is large enough and shrinks. Safe to call from any thread.
+   */
+  static void compress(StatePass pass, String bundleKey, StateContainer state) {
+    // Off, so don't pay for measuring.
+    if (pass.compressionThresholdBytes == Integer.MAX_VALUE) return;
+    if (state.estimateSize() <= pass.compressionThresholdBytes) return;
+    long start = System.nanoTime();
+    byte[] encoded;
+    try {
+      encoded = pass.codec.encode(state);
+    } catch (IllegalArgumentException e) {
+      return;
+    }
+    byte[] compressed = pass.compressor.compress(encoded);
+    pass.compressionStats.recordCompression(bundleKey, encoded.length, compressed.length,
+        System.nanoTime() - start);
+    if (compressed.length >= encoded.length) return;
+
+    for (String key : new ArrayList<>(state.keySet())) {
+      state.remove(key);
+    }
+    state.putByteArray(COMPRESSED, compressed);
+  }
+
+  /**
+   * If the given state was {@link #compress compressed}, returns the original contents, read into
+   * a new container like {@link #unspill} does. Returns null if they can't be read.
+   */
+  private StateContainer decompress(StatePass pass, String bundleKey, StateContainer leafState) {
+    byte[] compressed = leafState.getByteArray(COMPRESSED);
+    if (compressed == null) return leafState;
+
+    long start = System.nanoTime();
+    try {
+      byte[] encoded = pass.compressor.decompress(compressed);
+      StateContainer decompressed = emptyLike(leafState);
+      pass.codec.decode(encoded, decompressed);
+      pass.compressionStats.recordDecompression(bundleKey, System.nanoTime() - start);
+      return decompressed;
+    } catch (IllegalArgumentException | IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Brings the given state up to the bundler's {@link VersionedState version} with the runner's
+   * {@link StateMigration}s. Unless the state is {@code detached} already, e.g. by {@link
+   * #unspill}, migrations change a copy: the saved state and its version are left alone until the
+   * bundler saves again. Returns null if the state can't be brought up to date.
+   */
+  private StateContainer migrate(StateBundler bundler, StateContainer leafState,
+      boolean detached) {
+    VersionedState versionedState = versionedStates.get(bundler);
+    if (versionedState == null) return leafState;
+    int version = versionedState.getStateVersion();
+    String bundleKey = bundler.getMortarBundleKey();
+    int from = scopeState.getInt(VERSION_PREFIX + bundleKey);
+    if (from == version) return leafState;
+
+    StateContainer migrated = detached ? leafState : copyOf(leafState);
+    while (from < version) {
+      StateMigration migration = runner.migration(bundleKey, from);
+      if (migration == null || !migration.migrate(migrated)) return null;
+      from++;
+    }
+    // Otherwise saved by a newer release.
+    return from == version ? migrated : null;
+  }
+
+  private void putVersion(StateBundler bundler) {
+    VersionedState versionedState = versionedStates.get(bundler);
+    // Absent reads as zero.
+    int version = versionedState == null ? 0 : versionedState.getStateVersion();
+    if (version != 0) scopeState.putInt(VERSION_PREFIX + bundler.getMortarBundleKey(), version);
+  }
+
+  /**
+   * Records the given {@link #writeSpill} handle as the bundle key's, deleting its previous one.
+   * If the handle is not null, replaces the state with it. Returns what is left in {@link
+   * #scopeState}.
+   */
+  private StateContainer putSpill(StatePass pass, String bundleKey, StateContainer childState,
+      String handle) {
+    String oldHandle = handle == null
+        ? spillHandles.remove(bundleKey) : spillHandles.put(bundleKey, handle);
+    if (oldHandle != null && pass.spillStore != null) pass.spillStore.delete(oldHandle);
+    if (handle == null) return childState;
+
+    StateContainer handleState = scopeState.putChild(bundleKey);
+    handleState.putString(SPILL_HANDLE, handle);
+    return handleState;
+  }
+
+  /**
+   * If the given state is a {@link #putSpill spill} handle, returns the spilled state, read into
+   * a new container: the handle may be in a container that is yet to be parceled, and must stay
+   * small. Returns null if the spilled state can't be read.
+   */
+  private StateContainer unspill(StatePass pass, String bundleKey, StateContainer leafState) {
+    String handle = leafState.getString(SPILL_HANDLE);
+    if (handle == null) return leafState;
+
+    if (pass.spillStore == null) return null;
+    spillHandles.put(bundleKey, handle);
+    return readSpill(pass, handle, leafState);
+  }
+
+  /**
+   * Reads the spilled state with the given handle into a new container of the same kind as the
+   * given one. Returns null if it can't be read.
+   */
+  private static StateContainer readSpill(StatePass pass, String handle, StateContainer like) {
+    if (pass.spillStore == null) return null;
+    try {
+      byte[] bytes = pass.spillStore.read(handle);
+      if (bytes == null) return null;
+      StateContainer spilled = emptyLike(like);
+      pass.codec.decode(bytes, spilled);
+      return spilled;
+    } catch (IllegalArgumentException | IOException e) {
+      return null;
+    }
+  }
+
+  /** Adds the {@link SpillStore} handles of this scope's spilled state to the given set. */
+  void collectSpillHandles(Set<String> handles) {
+    handles.addAll(spillHandles.values());
+  }
+
+  private void deleteSpills() {
+    runner.deleteSpills(spillHandles.values());
+    spillHandles.clear();
+  }
+
+  /** Returns a copy of the given state, of the same kind, that can be changed on its own. */
+  private static StateContainer copyOf(StateContainer state) {
+    if (state instanceof BundleStateContainer) return ((BundleStateContainer) state).deepCopy();
+    StateContainer copy = new InMemoryStateContainer();
+    StateDelta.copy(state, copy);
+    return copy;
+  }
+
+  /** Puts a copy of the given state, which may be of another kind, into the given container. */
+  static void putCopy(StateContainer into, String key, StateContainer state) {
+    if (state.getClass() == into.getClass()) {
+      into.putChild(key, copyOf(state));
+    } else {
+      StateDelta.copy(state, into.putChild(key));
+    }
+  }
+
+  /** Returns a new, detached container of the same kind as the given one. */
+  private static StateContainer emptyLike(StateContainer state) {
+    return state instanceof BundleStateContainer
+        ? new BundleStateContainer(new Bundle()) : new InMemoryStateContainer();
+  }
+
+  private void measure(StatePass pass, StateBundler bundler, StateContainer childState) {
+    if (pass.measured == null) return;
+    pass.measured.add(new StateSizeReport.Entry(scope.getPath(), bundler.getMortarBundleKey(),
+        childState.estimateSize(), false, scopeState));
+  }
+
+  /** The current priority of the given registered bundler. */
+  int loadPriority(StateBundler bundler) {
+    if (loadPriorities.isEmpty()) return LoadPriority.DEFAULT;
+    LoadPriority loadPriority = loadPriorities.get(bundler);
+    return loadPriority == null ? LoadPriority.DEFAULT : loadPriority.getLoadPriority();
+  }
+
+  private static LoadPriority asLoadPriority(StateBundler bundler) {
+    Object target =
+        bundler instanceof BundlerAdapter ? ((BundlerAdapter) bundler).bundler : bundler;
+    return target instanceof LoadPriority ? (LoadPriority) target : null;
+  }
+
+  private static VersionedState asVersionedState(StateBundler bundler) {
+    Object target =
+        bundler instanceof BundlerAdapter ? ((BundlerAdapter) bundler).bundler : bundler;
+    return target instanceof VersionedState ? (VersionedState) target : null;
+  }
+
+  private static boolean tracksDirt(StateBundler bundler) {
+    return bundler instanceof DirtyTracking || bundler instanceof BundlerAdapter
+        && ((BundlerAdapter) bundler).bundler instanceof DirtyTracking;
+  }
+
+  /** Presents a {@link Bundler} as a {@link StateBundler}, equal to any other for the same one. */
+  private static final class BundlerAdapter implements StateBundler {
+    final Bundler bundler;
+
+    BundlerAdapter(Bundler bundler) {
+      this.bundler = bundler;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+      bundler.onEnterScope(scope);
+    }
+
+    @Override public String getMortarBundleKey() {
+      return bundler.getMortarBundleKey();
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      bundler.onLoad(BundleStateContainer.toBundle(savedState));
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      bundler.onSave(BundleStateContainer.toBundle(outState));
+    }
+
+    @Override public void onExitScope() {
+      bundler.onExitScope();
+    }
+
+    @Override public boolean equals(Object o) {
+      return o instanceof BundlerAdapter && ((BundlerAdapter) o).bundler.equals(bundler);
+    }
+
+    @Override public int hashCode() {
+      return bundler.hashCode();
+    }
+
+    @Override public String toString() {
+      return bundler.toString();
+    }
+  }
 }
@@ -1,12 +1,11 @@
 package mortar.bundler;
 
 import java.util.Comparator;
-import mortar.MortarScope;
 
 class BundleServiceComparator implements Comparator<BundleService> {
   @Override public int compare(BundleService left, BundleService right) {
-    String[] leftPath = left.scope.getPath().split(MortarScope.DIVIDER);
-    String[] rightPath = right.scope.getPath().split(MortarScope.DIVIDER);
+    String[] leftPath = left.pathSegments;
+    String[] rightPath = right.pathSegments;
 
     if (leftPath.length != rightPath.length) {
       return leftPath.length < rightPath.length ? -1 : 1;
@@ -3,31 +3,62 @@ package mortar.bundler;
 import android.content.Context;
 import android.os.Bundle;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableSet;
-import java.util.TreeSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import mortar.MortarScope;
 import mortar.Presenter;
 import mortar.Scoped;
+import mortar.ServiceKey;
 
 public class BundleServiceRunner implements Scoped {
   public static final String SERVICE_NAME = BundleServiceRunner.class.getName();
+  public static final ServiceKey<BundleServiceRunner> SERVICE_KEY =
+      ServiceKey.create(SERVICE_NAME, BundleServiceRunner.class);
+  /** Where {@link #setBundleCodec} keeps the encoded state in the activity's bundle. */
+  static final String ENCODED_STATE = "mortar:state";
+  /** Like {@link #ENCODED_STATE}, for {@link #setLazyRestore lazy} mode: a scope per value. */
+  static final String ENCODED_SCOPES = "mortar:scopes";
+  /** Where a save lists the {@link SpillStore} handles it refers to, as keys. */
+  static final String SPILLS = "mortar:spills";
 
   public static BundleServiceRunner getBundleServiceRunner(Context context) {
     return (BundleServiceRunner) context.getSystemService(SERVICE_NAME);
   }
 
   public static BundleServiceRunner getBundleServiceRunner(MortarScope scope) {
-    return scope.getService(SERVICE_NAME);
+    return scope.getService(SERVICE_KEY);
   }
 
   final Map<String, BundleService> scopedServices = new LinkedHashMap<>();
-  final NavigableSet<BundleService> servicesToBeLoaded =
-      new TreeSet<>(new BundleServiceComparator());
+  /** Memoized {@link #bundleKey} results, for scopes with a live {@link BundleService}. */
+  final Map<MortarScope, String> bundleKeys = new HashMap<>();
+  final LoadQueue toBeLoaded = new LoadQueue();
 
-  Bundle rootBundle;
+  StateContainer rootState;
+  /**
+   * The state of scopes restored from {@link #ENCODED_SCOPES} and not yet decoded into {@link
+   * #rootState}, by bundle key. Null if there are none.
+   */
+  private StateContainer encodedScopes;
+  private boolean lazyRestore;
+  /** Services whose bundlers are waiting for their scope to be used after a lazy restore. */
+  final Set<BundleService> lazyServices = new LinkedHashSet<>();
+  private StateCodec bundleCodec;
+
+  private IdleScheduler idleScheduler;
+  /** True while a restore is loading, and {@link DeferrableLoad}s may wait. */
+  private boolean deferringLoads;
+  /** Services with {@link DeferrableLoad}s that are waiting, in the order they were set aside. */
+  final Set<BundleService> deferredServices = new LinkedHashSet<>();
+  private boolean deferredLoadScheduled;
 
   enum State {
     IDLE, LOADING, SAVING
@@ -35,6 +66,31 @@ public class BundleServiceRunner implements Scoped {
 
   State state = State.IDLE;
 
+  /** Bundlers asked to save, and {@link DirtyTracking clean} ones skipped, by the last save. */
+  private int savedCount;
+  private int skippedCount;
+
+  private StateBudget budget;
+  private int saveCount;
+  private StateSizeReport lastSaveReport;
+
+  SpillStore spillStore;
+  int spillThresholdBytes;
+  StateCodec codec = new BasicStateCodec();
+
+  Compressor compressor = new DeflateCompressor();
+  int compressionThresholdBytes = Integer.MAX_VALUE;
+  final CompressionStats compressionStats = new CompressionStats();
+
+  StateTracer tracer = StateTracer.NONE;
+  boolean profiling;
+  final BundlerStats bundlerStats = new BundlerStats();
+
+  /** {@link StateMigration}s by bundle key, then by the version they upgrade from. */
+  private final Map<String, Map<Integer, StateMigration>> migrations = new HashMap<>();
+
+  Executor saveExecutor;
+
   private String rootScopePath;
 
   BundleService requireBundleService(MortarScope scope) {
@@ -42,6 +98,9 @@ public class BundleServiceRunner implements Scoped {
     if (service == null) {
       service = new BundleService(this, scope);
       service.init();
+    } else if (state != State.SAVING && service.queueLazyLoads()) {
+      // The scope's first use since a lazy restore.
+      if (state == State.IDLE) finishLoading();
     }
     return service;
   }
@@ -62,15 +121,95 @@ public class BundleServiceRunner implements Scoped {
    * {@link android.app.Activity#setContentView}.
    */
   public void onCreate(Bundle savedInstanceState) {
-    rootBundle = savedInstanceState;
+    Bundle scopes =
+        savedInstanceState == null ? null : savedInstanceState.getBundle(ENCODED_SCOPES);
+    if (scopes != null && bundleCodec != null) {
+      // A checkpoint may hold some scopes decoded, next to the encoded ones.
+      Bundle decoded = new Bundle(savedInstanceState);
+      decoded.remove(ENCODED_SCOPES);
+      restoreState(new BundleStateContainer(decoded), new BundleStateContainer(scopes));
+      return;
+    }
+    byte[] encoded =
+        savedInstanceState == null ? null : savedInstanceState.getByteArray(ENCODED_STATE);
+    if (encoded != null && bundleCodec != null) {
+      Bundle decoded = new Bundle();
+      try {
+        bundleCodec.decode(encoded, new BundleStateContainer(decoded));
+      } catch (IllegalArgumentException e) {
+        // Better none of the state than part of it, or a crash.
+        restoreState(null);
+        return;
+      }
+      restoreState(new BundleStateContainer(decoded));
+      return;
+    }
+    restoreState(savedInstanceState == null ? null : new BundleStateContainer(savedInstanceState));
+  }
+
+  /**
+   * Like {@link #onCreate(Bundle)}, for hosts that keep their state in some other {@link
+   * StateContainer}. Plain {@link Bundler}s can only load from a {@link BundleStateContainer}.
+   */
+  public void restoreState(StateContainer savedState) {
+    restoreState(savedState, null);
+  }
+
+  private void restoreState(StateContainer savedState, StateContainer encodedScopes) {
+    rootState = savedState;
+    this.encodedScopes = encodedScopes;
+    lazyServices.clear();
+    sweepSpills();
 
     for (Map.Entry<String, BundleService> entry : scopedServices.entrySet()) {
       BundleService scopedService = entry.getValue();
-      if (scopedService.updateScopedBundleOnCreate(rootBundle)) {
-        servicesToBeLoaded.add(scopedService);
+      if (lazyRestore) {
+        scopedService.deferScopedStateOnCreate();
+      } else {
+        scopedService.updateScopedStateOnCreate();
       }
     }
-    finishLoading();
+    deferringLoads = idleScheduler != null;
+    try {
+      finishLoading();
+    } finally {
+      deferringLoads = false;
+    }
+    scheduleDeferredLoads();
+  }
+
+  /**
+   * In lazy mode, {@link #onCreate} and {@link #restoreState} only keep the restored state. None
+   * of a scope's state is read until the scope is next used: a bundler is {@link
+   * BundleService#register registered} with it, typically by a {@link Presenter} that {@link
+   * Presenter#takeView takes a view}, or its {@link BundleService} is looked up. Then only that
+   * scope's state is read, and its bundlers' state is {@link #setSpillStore unspilled} and
+   * {@link #setCompressionThreshold decompressed} as each one loads. Scopes that are not shown
+   * again, and that have no bundlers registered, never have their state read at all.
+   * <p>
+   * Bundlers that are already registered when the state is restored are loaded when their scope
+   * is next used, or at the latest before the next save, so that they don't save over what was
+   * restored for them.
+   * <p>
+   * With a {@link #setBundleCodec bundle codec}, {@link #onSaveInstanceState} encodes each scope
+   * on its own in lazy mode, and a scope's state stays encoded until it is first used. Off by
+   * default.
+   */
+  public void setLazyRestore(boolean lazyRestore) {
+    this.lazyRestore = lazyRestore;
+  }
+
+  /**
+   * Has {@link #onCreate} and {@link #restoreState} leave {@link DeferrableLoad deferrable}
+   * bundlers unloaded, and load them when the given scheduler finds the main thread idle, e.g. a
+   * {@link LooperIdleScheduler}. Pass null, the default, to load every bundler right away.
+   * <p>
+   * A deferred bundler is loaded early if it is {@link BundleService#register registered} again,
+   * as a {@link Presenter} is when it {@link Presenter#takeView takes a view}. All of them are
+   * loaded before the next save.
+   */
+  public void setIdleScheduler(IdleScheduler scheduler) {
+    idleScheduler = scheduler;
   }
 
   /**
@@ -79,11 +218,129 @@ public class BundleServiceRunner implements Scoped {
    * methods.
    */
   public void onSaveInstanceState(Bundle outState) {
+    if (bundleCodec == null) {
+      saveState(new BundleStateContainer(outState));
+      return;
+    }
+
+    Bundle state = new Bundle();
+    saveState(new BundleStateContainer(state));
+    try {
+      if (lazyRestore) {
+        outState.putBundle(ENCODED_SCOPES, encodeScopes(state));
+      } else {
+        outState.putByteArray(ENCODED_STATE, bundleCodec.encode(new BundleStateContainer(state)));
+      }
+    } catch (IllegalArgumentException e) {
+      // Holds something the codec can't write, e.g. a Parcelable.
+      outState.putAll(state);
+    }
+  }
+
+  /** Encodes each scope's state on its own, so that a lazy restore can decode them one by one. */
+  private Bundle encodeScopes(Bundle state) {
+    Bundle scopes = new Bundle();
+    for (String bundleKey : state.keySet()) {
+      scopes.putByteArray(bundleKey,
+          bundleCodec.encode(new BundleStateContainer(state.getBundle(bundleKey))));
+    }
+    return scopes;
+  }
+
+  /**
+   * Returns the given scope's part of the root state, or null. Decodes it first if it was
+   * restored from {@link #ENCODED_SCOPES}.
+   */
+  StateContainer findScopeState(String bundleKey) {
+    if (rootState == null) return null;
+    StateContainer scopeState = rootState.getChild(bundleKey);
+    if (scopeState != null || encodedScopes == null) return scopeState;
+    byte[] encoded = encodedScopes.getByteArray(bundleKey);
+    if (encoded == null) return null;
+
+    encodedScopes.remove(bundleKey);
+    scopeState = rootState.putChild(bundleKey);
+    try {
+      bundleCodec.decode(encoded, scopeState);
+    } catch (IllegalArgumentException e) {
+      // Better none of the scope's state than part of it.
+      rootState.remove(bundleKey);
+      return null;
+    }
+    return scopeState;
+  }
+
+  /**
+   * Returns what was restored for the given scope if it has been decoded, or null. Unlike {@link
+   * #findScopeState}, never decodes it.
+   */
+  StateContainer restoredScopeState(String bundleKey) {
+    return rootState == null ? null : rootState.getChild(bundleKey);
+  }
+
+  /**
+   * For a checkpoint: copies the given scope's restored state to the {@link #ENCODED_SCOPES} of
+   * the given container if it is still encoded, without decoding it. Returns false if it isn't.
+   */
+  boolean copyEncodedScope(String bundleKey, StateContainer outState) {
+    byte[] encoded = encodedScopes == null ? null : encodedScopes.getByteArray(bundleKey);
+    if (encoded == null) return false;
+    StateContainer scopes = outState.getChild(ENCODED_SCOPES);
+    if (scopes == null) scopes = outState.putChild(ENCODED_SCOPES);
+    scopes.putByteArray(bundleKey, encoded);
+    return true;
+  }
+
+  /** Drops what was restored for the given scope, which has exited. */
+  void dropRestoredState(String bundleKey) {
+    if (rootState != null) rootState.remove(bundleKey);
+    if (encodedScopes != null) encodedScopes.remove(bundleKey);
+  }
+
+  /** Like {@link #onSaveInstanceState(Bundle)}, for any {@link StateContainer}. */
+  public void saveState(StateContainer outState) {
+    saveState(outState, false);
+  }
+
+  private void saveState(StateContainer outState, boolean checkpointing) {
     if (state != State.IDLE) {
       throw new IllegalStateException("Cannot handle onSaveInstanceState while " + state);
     }
-    rootBundle = outState;
+    boolean measure = !checkpointing && budget != null && saveCount++ % budget.sampleEvery == 0;
+    StatePass pass = StatePass.save(this, checkpointing, measure);
+    // A checkpoint leaves the last save's counts and report alone.
+    if (!checkpointing) lastSaveReport = null;
+    long start = pass.bundlerStats != null ? System.nanoTime() : 0;
+    if (pass.tracer != null) pass.tracer.beginSection("mortar.saveState");
+    RuntimeException failure;
+    try {
+      failure = saveServices(outState, pass);
+    } finally {
+      if (pass.tracer != null) pass.tracer.endSection();
+      if (!checkpointing) {
+        savedCount = pass.savedCount;
+        skippedCount = pass.skippedCount;
+      }
+    }
+    if (pass.bundlerStats != null) pass.bundlerStats.recordSavePass(System.nanoTime() - start);
+    if (failure != null) throw failure;
 
+    if (pass.measured != null) checkBudget(pass.measured);
+  }
+
+  /**
+   * Has every service save to the given container. Returns the first failure of a {@link
+   * SnapshotBundler two-phase} save, if any.
+   */
+  private RuntimeException saveServices(StateContainer outState, StatePass pass) {
+    if (!pass.checkpointing) {
+      // Bundlers must load what they had before they are asked to save it. A checkpoint copies
+      // what was restored for them instead.
+      finishDeferredLoads();
+      finishLazyLoads();
+      rootState = outState;
+      encodedScopes = null;
+    }
     state = State.SAVING;
 
     // Make a dwindling copy of the services, in case one is deleted as a side effect
@@ -93,26 +350,371 @@ public class BundleServiceRunner implements Scoped {
 
     while (!servicesToBeSaved.isEmpty()) {
       Map.Entry<String, BundleService> entry = servicesToBeSaved.remove(0);
-      if (scopedServices.containsKey(entry.getKey())) entry.getValue().saveToRootBundle(rootBundle);
+      if (scopedServices.containsKey(entry.getKey())) {
+        entry.getValue().saveToRootState(outState, pass);
+      }
     }
+    RuntimeException failure = finishPendingSaves(pass);
+    if (failure == null && !pass.checkpointing) recordSpills();
 
     state = State.IDLE;
+    return failure;
+  }
+
+  /**
+   * Saves everything to the given container for a {@link Checkpointer}. Unlike {@link
+   * #saveState}, nothing is spilled, since the checkpoint must not depend on spill files that the
+   * next real save may delete. The container is about to be written from another thread, so it
+   * is left detached: neither the root state that scopes created later restore from, nor the
+   * state any service loads from. Clean {@link DirtyTracking} state is reused but not recorded,
+   * and the last save's counts and report are left alone.
+   * <p>
+   * Nothing is loaded either: bundlers that have yet to load what was restored for them, after a
+   * {@link #setLazyRestore lazy} restore or {@link #setIdleScheduler deferred}, have it copied
+   * instead, still encoded if it is.
+   */
+  void saveCheckpoint(StateContainer outState) {
+    // Keep what the last real save left behind.
+    Map<BundleService, StateContainer> scopeStates = new HashMap<>();
+    Set<BundleService> deferred = new HashSet<>();
+    for (BundleService service : scopedServices.values()) {
+      scopeStates.put(service, service.scopeState);
+      if (service.scopeStateDeferred) deferred.add(service);
+    }
+    try {
+      saveState(outState, true);
+    } finally {
+      for (BundleService service : scopedServices.values()) {
+        if (scopeStates.containsKey(service)) {
+          service.scopeState = scopeStates.get(service);
+          service.scopeStateDeferred = deferred.contains(service);
+        } else {
+          // Created by a bundler's onSave: find its state in the restored root when needed.
+          service.scopeState = null;
+          service.scopeStateDeferred = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Joins the snapshots being written, and puts them in place. Returns the first failure, if
+   * any, after all of them are done.
+   */
+  private RuntimeException finishPendingSaves(StatePass pass) {
+    if (pass.pendingSaves == null) return null;
+
+    RuntimeException failure = null;
+    for (PendingSave save : pass.pendingSaves) {
+      try {
+        save.join();
+      } catch (RuntimeException e) {
+        if (failure == null) failure = e;
+        continue;
+      }
+      if (failure == null) {
+        save.service.finishSave(save);
+      } else {
+        save.discard();
+      }
+    }
+    return failure;
+  }
+
+  /**
+   * Has {@link SnapshotBundler}s write their snapshots on the given executor, in parallel, during
+   * each save. Pass null to save on the calling thread only.
+   * <p>
+   * Each save still returns only once all snapshots are written and put in place, spilled to the
+   * {@link #setSpillStore spill store} if large. Snapshots the executor has not started by then
+   * are written on the calling thread, so a busy or even a same-thread executor is safe.
+   */
+  public void setSaveExecutor(Executor executor) {
+    if (state != State.IDLE) throw new IllegalStateException("Cannot set executor while " + state);
+    saveExecutor = executor;
+  }
+
+  /**
+   * Measures the state saved by bundlers, and checks it against the given budget. Pass null to
+   * stop.
+   */
+  public void setStateBudget(StateBudget budget) {
+    this.budget = budget;
+    saveCount = 0;
+  }
+
+  /**
+   * Has bundlers whose saved state is estimated to be larger than the given threshold write it to
+   * the given store instead, leaving only a small handle in the saved state. The state is read
+   * back transparently when the bundler is loaded, including after process death, and deleted
+   * once its scope is destroyed or the bundler saves again. Whatever the restored state does not
+   * refer to, e.g. state spilled by a process that died before it could delete it, is deleted on
+   * {@link #onCreate}, so set the store before then. Pass a null store to stop spilling.
+   * <p>
+   * Spilled state is encoded with the runner's {@link #setStateCodec codec}. State it can't
+   * encode, or that the store fails to write, is kept inline. State that can no longer be read is
+   * loaded as null.
+   */
+  public void setSpillStore(SpillStore store, int thresholdBytes) {
+    if (thresholdBytes < 0) {
+      throw new IllegalArgumentException("thresholdBytes < 0: " + thresholdBytes);
+    }
+    spillStore = store;
+    spillThresholdBytes = thresholdBytes;
+  }
+
+  /**
+   * Has {@link #onSaveInstanceState} encode everything mortar saves into one byte array with the
+   * given codec, e.g. a {@link CompactStateCodec}, instead of nesting a bundle per scope and per
+   * bundler. That makes for a smaller parcel, and one that is quicker to write and read. Pass
+   * null, the default, for the nested bundles.
+   * <p>
+   * Saves that hold something the codec can't write, such as a {@link android.os.Parcelable},
+   * fall back to the nested bundles. {@link #onCreate} reads either, but must use the codec that
+   * did the saving: set it first. State it can't decode is dropped.
+   */
+  public void setBundleCodec(StateCodec codec) {
+    bundleCodec = codec;
+  }
+
+  /**
+   * Has bundlers whose saved state is estimated to be larger than the given threshold store it
+   * compressed: encoded with the {@link #setStateCodec codec}, then compressed with the {@link
+   * #setCompressor compressor}. It is decompressed when loaded. State that doesn't shrink, or that
+   * holds values the codec can't write, is stored as is. Compressed state is still {@link
+   * #setSpillStore spilled} if it is large.
+   * <p>
+   * Off by default. Pass {@link Integer#MAX_VALUE} to turn it back off. See {@link
+   * #getCompressionStats} for picking a threshold.
+   */
+  public void setCompressionThreshold(int thresholdBytes) {
+    if (thresholdBytes < 0) {
+      throw new IllegalArgumentException("thresholdBytes < 0: " + thresholdBytes);
+    }
+    compressionThresholdBytes = thresholdBytes;
+  }
+
+  /**
+   * The compressor for {@link #setCompressionThreshold compressed} state, a {@link
+   * DeflateCompressor} by default. Restores need the one that did the compressing.
+   */
+  public void setCompressor(Compressor compressor) {
+    if (compressor == null) throw new NullPointerException("compressor == null");
+    this.compressor = compressor;
+  }
+
+  /** What {@link #setCompressionThreshold compression} has cost and saved, per bundle key. */
+  public CompressionStats getCompressionStats() {
+    return compressionStats;
+  }
+
+  /** The codec for {@link #setSpillStore spilled} state, {@link BasicStateCodec} by default. */
+  public void setStateCodec(StateCodec codec) {
+    if (codec == null) throw new NullPointerException("codec == null");
+    this.codec = codec;
+  }
+
+  /**
+   * Registers a migration that upgrades {@link VersionedState} saved under the given bundle key
+   * from the given version to the next one. Loading state saved at version 1 for a bundler now at
+   * version 3 runs the migrations from 1 and from 2, in that order; if either is missing, the
+   * state is dropped. Migrations run when the bundler is loaded, so scopes that are never visited
+   * again cost nothing.
+   */
+  public void registerMigration(String bundleKey, int fromVersion, StateMigration migration) {
+    if (bundleKey == null) throw new NullPointerException("bundleKey == null");
+    if (migration == null) throw new NullPointerException("migration == null");
+    if (fromVersion < 0) throw new IllegalArgumentException("fromVersion < 0: " + fromVersion);
+    Map<Integer, StateMigration> byVersion = migrations.get(bundleKey);
+    if (byVersion == null) {
+      byVersion = new HashMap<>();
+      migrations.put(bundleKey, byVersion);
+    }
+    byVersion.put(fromVersion, migration);
+  }
+
+  /** Returns the migration registered for the given bundle key and version, or null. */
+  StateMigration migration(String bundleKey, int fromVersion) {
+    Map<Integer, StateMigration> byVersion = migrations.get(bundleKey);
+    return byVersion == null ? null : byVersion.get(fromVersion);
+  }
+
+  /**
+   * Has each load pass, save, scope saved, and bundler loaded or saved reported to the given
+   * tracer as a section, named after the bundle key where there is one. {@link StateTracer#NONE},
+   * the default, turns tracing off.
+   */
+  public void setTracer(StateTracer tracer) {
+    if (tracer == null) throw new NullPointerException("tracer == null");
+    if (state != State.IDLE) throw new IllegalStateException("Cannot set tracer while " + state);
+    this.tracer = tracer;
+  }
+
+  /**
+   * Has loads and saves timed and measured per bundler, in {@link #getBundlerStats}. Off by
+   * default, since measuring means estimating the size of every bundler's state as it is loaded
+   * and saved.
+   */
+  public void setProfilingEnabled(boolean enabled) {
+    if (state != State.IDLE) throw new IllegalStateException("Cannot profile while " + state);
+    profiling = enabled;
+  }
+
+  /** What {@link #setProfilingEnabled profiling} has recorded, per bundler. */
+  public BundlerStats getBundlerStats() {
+    return bundlerStats;
+  }
+
+  /**
+   * Returns the sizes of the state written by the most recent save, or null if it was not
+   * measured.
+   *
+   * @see #setStateBudget
+   */
+  public StateSizeReport getLastSaveReport() {
+    return lastSaveReport;
+  }
+
+  private void checkBudget(List<StateSizeReport.Entry> entries) {
+    Collections.sort(entries, StateSizeReport.LARGEST_FIRST);
+    StateSizeReport report = new StateSizeReport(budget.maxBytes, entries);
+    if (!report.isOverBudget()) {
+      lastSaveReport = report;
+      return;
+    }
+
+    switch (budget.policy) {
+      case WARN:
+        break;
+      case TRIM:
+        int retained = report.getTotalBytes();
+        for (int i = 0; i < entries.size() && retained > budget.maxBytes; i++) {
+          StateSizeReport.Entry entry = entries.get(i);
+          entry.scopeState.remove(entry.getBundleKey());
+          retained -= entry.getBytes();
+          entries.set(i, entry.trim());
+        }
+        report = new StateSizeReport(budget.maxBytes, entries);
+        break;
+      case FAIL:
+        lastSaveReport = report;
+        throw new IllegalStateException(report.toString());
+      default:
+        throw new AssertionError("Unexpected policy " + budget.policy);
+    }
+
+    lastSaveReport = report;
+    if (budget.listener != null) budget.listener.onOverBudget(report);
+  }
+
+  /** The number of bundlers whose {@code onSave} was called by the most recent save. */
+  public int getLastSaveSavedCount() {
+    return savedCount;
+  }
+
+  /**
+   * The number of {@link DirtyTracking} bundlers that were clean at the most recent save, and
+   * whose previous state was reused instead of calling their {@code onSave}.
+   */
+  public int getLastSaveSkippedCount() {
+    return skippedCount;
   }
 
   void finishLoading() {
     if (state != State.IDLE) throw new AssertionError("Unexpected state " + state);
     state = State.LOADING;
+    StatePass pass = StatePass.load(this);
+    long start = pass.bundlerStats != null ? System.nanoTime() : 0;
+    if (pass.tracer != null) pass.tracer.beginSection("mortar.finishLoading");
+    try {
+      BundleService next;
+      while ((next = toBeLoaded.peekService()) != null) {
+        StateBundler bundler = toBeLoaded.poll(next);
+        if (deferringLoads && next.deferLoad(bundler)) {
+          deferredServices.add(next);
+        } else {
+          next.load(bundler, pass);
+        }
+      }
+    } finally {
+      if (pass.tracer != null) pass.tracer.endSection();
+    }
+    if (pass.bundlerStats != null) pass.bundlerStats.recordLoadPass(System.nanoTime() - start);
+    state = State.IDLE;
+  }
 
-    while (!servicesToBeLoaded.isEmpty()) {
-      BundleService next = servicesToBeLoaded.first();
-      next.loadOne();
-      if (!next.needsLoading()) servicesToBeLoaded.remove(next);
+  private void scheduleDeferredLoads() {
+    if (deferredServices.isEmpty() || deferredLoadScheduled) return;
+    deferredLoadScheduled = true;
+    idleScheduler.runWhenIdle(new Runnable() {
+      @Override public void run() {
+        deferredLoadScheduled = false;
+        // Otherwise the next save loads them.
+        if (state == State.IDLE) finishDeferredLoads();
+      }
+    });
+  }
+
+  /** Loads the bundlers that {@link #setIdleScheduler} set aside, if any. */
+  void finishDeferredLoads() {
+    if (deferredServices.isEmpty()) return;
+    for (BundleService service : deferredServices) {
+      service.queueDeferredLoads();
     }
+    deferredServices.clear();
+    finishLoading();
+  }
 
-    state = State.IDLE;
+  /** Lists the spill handles that the saved state refers to in it, for {@link #sweepSpills}. */
+  private void recordSpills() {
+    if (spillStore == null) return;
+    Set<String> handles = new HashSet<>();
+    for (BundleService service : scopedServices.values()) {
+      service.collectSpillHandles(handles);
+    }
+    if (handles.isEmpty()) return;
+    StateContainer spills = rootState.putChild(SPILLS);
+    for (String handle : handles) {
+      spills.putBoolean(handle, true);
+    }
+  }
+
+  /**
+   * Deletes the spilled state that neither the restored state nor a live scope refers to: what a
+   * process that died after spilling, and before deleting, left behind.
+   */
+  private void sweepSpills() {
+    if (spillStore == null) return;
+    Set<String> handles = new HashSet<>();
+    StateContainer spills = findScopeState(SPILLS);
+    if (spills != null) handles.addAll(spills.keySet());
+    for (BundleService service : scopedServices.values()) {
+      service.collectSpillHandles(handles);
+    }
+    spillStore.retainOnly(handles);
+  }
+
+  /** Deletes the given spilled state, for a scope that has exited. */
+  void deleteSpills(Collection<String> handles) {
+    if (spillStore == null) return;
+    for (String handle : handles) {
+      spillStore.delete(handle);
+    }
+  }
+
+  /** Loads the bundlers that {@link #setLazyRestore} left unloaded, if any. */
+  private void finishLazyLoads() {
+    if (lazyServices.isEmpty()) return;
+    for (BundleService service : new ArrayList<>(lazyServices)) {
+      service.queueLazyLoads();
+    }
+    finishLoading();
   }
 
   String bundleKey(MortarScope scope) {
+    String bundleKey = bundleKeys.get(scope);
+    if (bundleKey != null) return bundleKey;
+
     if (rootScopePath == null) throw new IllegalStateException("Was this service not registered?");
     String path = scope.getPath();
     if (!path.startsWith(rootScopePath)) {
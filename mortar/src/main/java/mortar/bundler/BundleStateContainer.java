@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import java.util.Set;
+
+/** A {@link StateContainer} backed by a {@link Bundle}, with children stored as bundles. */
+public final class BundleStateContainer implements StateContainer {
+  private final Bundle bundle;
+
+  public BundleStateContainer(Bundle bundle) {
+    if (bundle == null) throw new NullPointerException("bundle == null");
+    this.bundle = bundle;
+  }
+
+  /**
+   * Returns the bundle behind the given container, or null if it is null. This is how {@link
+   * Bundler}s, which predate {@link StateContainer}, are fed.
+   *
+   * @throws IllegalArgumentException if the container is not backed by a bundle
+   */
+  static Bundle toBundle(StateContainer container) {
+    if (container == null) return null;
+    if (!(container instanceof BundleStateContainer)) {
+      throw new IllegalArgumentException(
+          "Bundlers need state backed by a Bundle, use a StateBundler instead. Got " + container);
+    }
+    return ((BundleStateContainer) container).bundle;
+  }
+
+  public Bundle getBundle() {
+    return bundle;
+  }
+
+  /**
+   * Returns a copy of this container whose nested bundles are copies too. Other values are
+   * shared, as with {@link Bundle#Bundle(Bundle)}.
+   */
+  BundleStateContainer deepCopy() {
+    return new BundleStateContainer(deepCopy(bundle));
+  }
+
+  private static Bundle deepCopy(Bundle bundle) {
+    Bundle copy = new Bundle(bundle);
+    for (String key : bundle.keySet()) {
+      Object value = bundle.get(key);
+      if (value instanceof Bundle) copy.putBundle(key, deepCopy((Bundle) value));
+    }
+    return copy;
+  }
+
+  @Override public boolean isEmpty() {
+    return bundle.isEmpty();
+  }
+
+  @Override public boolean containsKey(String key) {
+    return bundle.containsKey(key);
+  }
+
+  @Override public Set<String> keySet() {
+    return bundle.keySet();
+  }
+
+  @Override public void remove(String key) {
+    bundle.remove(key);
+  }
+
+  /**
+   * Walks the bundle rather than parceling it whole. Values of types this interface has no
+   * accessors for, such as {@link android.os.Parcelable}s put there by other code, are parceled
+   * one at a time.
+   */
+  @Override public int estimateSize() {
+    return estimateSize(bundle);
+  }
+
+  private static int estimateSize(Bundle bundle) {
+    int size = ParcelSizes.BUNDLE_HEADER + ParcelSizes.MAP_HEADER;
+    for (String key : bundle.keySet()) {
+      size += ParcelSizes.string(key);
+      Object value = bundle.get(key);
+      if (value instanceof Bundle) {
+        size += ParcelSizes.TYPE_TAG + estimateSize((Bundle) value);
+        continue;
+      }
+      int valueSize = ParcelSizes.value(value);
+      size += valueSize >= 0 ? valueSize : parceledSize(value);
+    }
+    return size;
+  }
+
+  private static int parceledSize(Object value) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeValue(value);
+      return parcel.dataSize();
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  @Override public Object get(String key) {
+    Object value = bundle.get(key);
+    return value instanceof Bundle ? new BundleStateContainer((Bundle) value) : value;
+  }
+
+  @Override public StateContainer getChild(String key) {
+    Bundle child = bundle.getBundle(key);
+    return child == null ? null : new BundleStateContainer(child);
+  }
+
+  @Override public StateContainer putChild(String key) {
+    Bundle child = new Bundle();
+    bundle.putBundle(key, child);
+    return new BundleStateContainer(child);
+  }
+
+  @Override public void putChild(String key, StateContainer child) {
+    bundle.putBundle(key, toBundle(child));
+  }
+
+  @Override public boolean getBoolean(String key) {
+    return bundle.getBoolean(key);
+  }
+
+  @Override public void putBoolean(String key, boolean value) {
+    bundle.putBoolean(key, value);
+  }
+
+  @Override public int getInt(String key) {
+    return bundle.getInt(key);
+  }
+
+  @Override public void putInt(String key, int value) {
+    bundle.putInt(key, value);
+  }
+
+  @Override public long getLong(String key) {
+    return bundle.getLong(key);
+  }
+
+  @Override public void putLong(String key, long value) {
+    bundle.putLong(key, value);
+  }
+
+  @Override public String getString(String key) {
+    return bundle.getString(key);
+  }
+
+  @Override public void putString(String key, String value) {
+    bundle.putString(key, value);
+  }
+
+  @Override public byte[] getByteArray(String key) {
+    return bundle.getByteArray(key);
+  }
+
+  @Override public void putByteArray(String key, byte[] value) {
+    bundle.putByteArray(key, value);
+  }
+
+  @Override public String toString() {
+    return "BundleStateContainer" + bundle;
+  }
+}
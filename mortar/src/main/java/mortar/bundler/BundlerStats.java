@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Where the time in {@link BundleServiceRunner#onCreate} and {@link
+ * BundleServiceRunner#onSaveInstanceState} goes, per bundler, since {@link
+ * BundleServiceRunner#setProfilingEnabled profiling} was turned on or since the last {@link
+ * #reset}. {@link #toString} is a summary, slowest bundler first. Thread safe.
+ */
+public final class BundlerStats {
+  /** Totals for one bundle key in one scope. */
+  public static final class Entry {
+    private final String scope;
+    private final String bundleKey;
+    private int loads;
+    private long loadNanos;
+    private long loadBytes;
+    private int saves;
+    private long saveNanos;
+    private long saveBytes;
+    private int skippedSaves;
+
+    Entry(String scope, String bundleKey) {
+      this.scope = scope;
+      this.bundleKey = bundleKey;
+    }
+
+    Entry(Entry entry) {
+      scope = entry.scope;
+      bundleKey = entry.bundleKey;
+      loads = entry.loads;
+      loadNanos = entry.loadNanos;
+      loadBytes = entry.loadBytes;
+      saves = entry.saves;
+      saveNanos = entry.saveNanos;
+      saveBytes = entry.saveBytes;
+      skippedSaves = entry.skippedSaves;
+    }
+
+    /** The scope's {@link mortar.MortarScope#getPath() path}. */
+    public String getScope() {
+      return scope;
+    }
+
+    public String getBundleKey() {
+      return bundleKey;
+    }
+
+    public int getLoads() {
+      return loads;
+    }
+
+    /**
+     * Wall time spent loading, including reading back spilled, compressed or older state, and
+     * the bundler's {@code onLoad}.
+     */
+    public long getLoadNanos() {
+      return loadNanos;
+    }
+
+    /** Total estimated size of the state handed to {@code onLoad}. */
+    public long getLoadBytes() {
+      return loadBytes;
+    }
+
+    /** Times the bundler's {@code onSave} or snapshot was called. */
+    public int getSaves() {
+      return saves;
+    }
+
+    /**
+     * Main thread wall time spent saving, including compressing and spilling. For {@link
+     * SnapshotBundler}s that save on an executor, only taking the snapshot and putting the result
+     * in place count.
+     */
+    public long getSaveNanos() {
+      return saveNanos;
+    }
+
+    /** Total estimated size of what was saved, after compression and spilling. */
+    public long getSaveBytes() {
+      return saveBytes;
+    }
+
+    /** Times a clean {@link DirtyTracking} bundler's previous state was reused instead. */
+    public int getSkippedSaves() {
+      return skippedSaves;
+    }
+
+    @Override public String toString() {
+      return format("%6dus %4d loads %8d bytes  %6dus %4d saves %8d bytes  %s %s",
+          loadNanos / 1000, loads, loadBytes, saveNanos / 1000, saves, saveBytes, scope,
+          bundleKey);
+    }
+  }
+
+  private static final Comparator<Entry> SLOWEST_FIRST = new Comparator<Entry>() {
+    @Override public int compare(Entry left, Entry right) {
+      long leftNanos = left.loadNanos + left.saveNanos;
+      long rightNanos = right.loadNanos + right.saveNanos;
+      return leftNanos < rightNanos ? 1 : leftNanos > rightNanos ? -1 : 0;
+    }
+  };
+
+  private final Map<String, Entry> entries = new LinkedHashMap<>();
+  private int loadPasses;
+  private long loadPassNanos;
+  private int savePasses;
+  private long savePassNanos;
+
+  synchronized void recordLoad(String scope, String bundleKey, long nanos, int bytes) {
+    Entry entry = entry(scope, bundleKey);
+    entry.loads++;
+    entry.loadNanos += nanos;
+    entry.loadBytes += bytes;
+  }
+
+  synchronized void recordSave(String scope, String bundleKey, long nanos, int bytes) {
+    Entry entry = entry(scope, bundleKey);
+    entry.saves++;
+    entry.saveNanos += nanos;
+    entry.saveBytes += bytes;
+  }
+
+  synchronized void recordSkippedSave(String scope, String bundleKey) {
+    entry(scope, bundleKey).skippedSaves++;
+  }
+
+  synchronized void recordLoadPass(long nanos) {
+    loadPasses++;
+    loadPassNanos += nanos;
+  }
+
+  synchronized void recordSavePass(long nanos) {
+    savePasses++;
+    savePassNanos += nanos;
+  }
+
+  private Entry entry(String scope, String bundleKey) {
+    // Bundle keys can't be empty, so this can't be ambiguous.
+    String key = scope + '\n' + bundleKey;
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(scope, bundleKey);
+      entries.put(key, entry);
+    }
+    return entry;
+  }
+
+  /** A copy of the totals so far, most time spent first. */
+  public synchronized List<Entry> getEntries() {
+    List<Entry> copy = new ArrayList<>(entries.size());
+    for (Entry entry : entries.values()) {
+      copy.add(new Entry(entry));
+    }
+    Collections.sort(copy, SLOWEST_FIRST);
+    return copy;
+  }
+
+  /** Times bundlers were loaded in a batch, e.g. by {@code onCreate} or a {@code register}. */
+  public synchronized int getLoadPasses() {
+    return loadPasses;
+  }
+
+  /** Wall time of all load passes, which includes the time of every load. */
+  public synchronized long getLoadPassNanos() {
+    return loadPassNanos;
+  }
+
+  /** Saves, including those made for {@link Checkpointer}s. */
+  public synchronized int getSavePasses() {
+    return savePasses;
+  }
+
+  /** Wall time of all saves, which includes the time of every bundler's save. */
+  public synchronized long getSavePassNanos() {
+    return savePassNanos;
+  }
+
+  public synchronized void reset() {
+    entries.clear();
+    loadPasses = 0;
+    loadPassNanos = 0;
+    savePasses = 0;
+    savePassNanos = 0;
+  }
+
+  @Override public synchronized String toString() {
+    StringBuilder builder = new StringBuilder("BundlerStats");
+    builder.append(format("\n%6dus %4d load passes  %6dus %4d saves", loadPassNanos / 1000,
+        loadPasses, savePassNanos / 1000, savePasses));
+    for (Entry entry : getEntries()) {
+      builder.append('\n').append(entry);
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import android.os.Bundle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Periodically saves a {@link BundleServiceRunner}'s state to a file, so that a crash loses only
+ * what changed since the last checkpoint rather than since the last {@code
+ * onSaveInstanceState}. The state is captured on the main thread, like a regular save, then
+ * encoded and written atomically on the given executor.
+ * <p>
+ * Call {@link #onIdle} when the main thread is idle, e.g. from a {@code
+ * MessageQueue.IdleHandler}, and at most one checkpoint is captured per interval:
+ *
+ * <pre>{@code
+ * Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+ *   public boolean queueIdle() {
+ *     return checkpointer.onIdle();
+ *   }
+ * });
+ * }</pre>
+ *
+ * Call {@link #onCreate} in place of {@link BundleServiceRunner#onCreate}, to fall back to the
+ * checkpoint when there is no saved instance state. And {@link #clear} the checkpoint when the
+ * activity finishes for good, or it will be restored the next time the app starts.
+ * <p>
+ * Checkpoints are encoded with a {@link StateCodec}, so they can only hold the values it
+ * supports. {@link BasicStateCodec}, the default, does not support {@link android.os.Parcelable}s;
+ * checkpoints that contain one fail and are reported to the {@link Listener}.
+ * <p>
+ * Most of what a checkpoint holds is the same as in the one before it. {@link #setMaxDeltas} has
+ * checkpoints write only the bundle keys whose state changed, to a log next to the file.
+ */
+public final class Checkpointer {
+  private static final int LOG_MAGIC = 0x4d534431; // MSD1
+  private static final int LOG_HEADER_SIZE = 12;
+
+  public interface Listener {
+    /**
+     * Called on the executor's thread once a checkpoint is on disk, with the number of bytes
+     * written. That is a delta's size in {@link #setMaxDeltas delta mode}, or zero if nothing
+     * changed.
+     */
+    void onCheckpointWritten(int bytes);
+
+    /** Called on the executor's thread when a checkpoint cannot be encoded or written. */
+    void onCheckpointFailed(Exception e);
+  }
+
+  private final BundleServiceRunner runner;
+  private final File file;
+  private final Executor executor;
+  private final long intervalNanos;
+  private final StateCodec codec;
+  private final File deltaLog;
+  private Listener listener;
+  private int maxDeltas;
+
+  private boolean captured;
+  private long lastCaptureNanos;
+
+  /** The latest capture not written yet. Writers take whatever is newest. */
+  private final AtomicReference<Bundle> pending = new AtomicReference<>();
+  private final Object writeLock = new Object();
+  /** The last checkpoint written, which the next delta is made against, or null. */
+  private Bundle lastWritten;
+  private int snapshotBytes;
+  private int deltaCount;
+  private long deltaBytes;
+  private final Runnable writer = new Runnable() {
+    @Override public void run() {
+      write();
+    }
+  };
+
+  /** Like the full constructor, with a {@link BasicStateCodec}. */
+  public Checkpointer(BundleServiceRunner runner, File file, Executor executor, long interval,
+      TimeUnit unit) {
+    this(runner, file, executor, interval, unit, new BasicStateCodec());
+  }
+
+  /**
+   * @param file where the checkpoint is kept, e.g. under {@code Context.getFilesDir()}
+   * @param executor where checkpoints are encoded and written
+   * @param interval the least time between checkpoints taken by {@link #onIdle}
+   */
+  public Checkpointer(BundleServiceRunner runner, File file, Executor executor, long interval,
+      TimeUnit unit, StateCodec codec) {
+    if (runner == null) throw new NullPointerException("runner == null");
+    if (file == null) throw new NullPointerException("file == null");
+    if (executor == null) throw new NullPointerException("executor == null");
+    if (codec == null) throw new NullPointerException("codec == null");
+    if (interval < 0) throw new IllegalArgumentException("interval < 0: " + interval);
+    this.runner = runner;
+    this.file = file;
+    this.executor = executor;
+    this.intervalNanos = unit.toNanos(interval);
+    this.codec = codec;
+    this.deltaLog = new File(file.getPath() + ".deltas");
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Has checkpoints write only the scopes and bundle keys whose state changed since the last one,
+   * appended to a log next to the checkpoint file, rather than rewriting everything. After {@code
+   * maxDeltas} of them, or once the log outgrows the last full checkpoint, the next checkpoint is
+   * written in full and the log starts over, which keeps {@link #read} from replaying a long
+   * chain. Zero, the default, writes every checkpoint in full.
+   * <p>
+   * The first checkpoint after the process starts, and the first after a failure, are written in
+   * full.
+   */
+  public void setMaxDeltas(int maxDeltas) {
+    if (maxDeltas < 0) throw new IllegalArgumentException("maxDeltas < 0: " + maxDeltas);
+    this.maxDeltas = maxDeltas;
+  }
+
+  /**
+   * Takes a checkpoint if the interval has passed since the last one, and the runner is not busy.
+   * Returns true, to keep an {@code IdleHandler} installed.
+   */
+  public boolean onIdle() {
+    if (runner.state != BundleServiceRunner.State.IDLE) return true;
+    if (captured && System.nanoTime() - lastCaptureNanos < intervalNanos) return true;
+    checkpoint();
+    return true;
+  }
+
+  /**
+   * Captures the runner's state now, and has it written on the executor. If an earlier
+   * checkpoint has not been written yet, only this one is.
+   */
+  public void checkpoint() {
+    Bundle state = new Bundle();
+    runner.saveCheckpoint(new BundleStateContainer(state));
+    captured = true;
+    lastCaptureNanos = System.nanoTime();
+    if (pending.getAndSet(state) == null) executor.execute(writer);
+  }
+
+  private void write() {
+    synchronized (writeLock) {
+      Bundle state = pending.getAndSet(null);
+      if (state == null) return;
+
+      int bytes;
+      try {
+        bytes = lastWritten != null && deltaCount < maxDeltas
+            ? writeDelta(state)
+            : writeSnapshot(state);
+      } catch (IllegalArgumentException | IOException e) {
+        // The log may end in a partial delta now, so the next checkpoint starts it over.
+        lastWritten = null;
+        if (listener != null) listener.onCheckpointFailed(e);
+        return;
+      }
+      lastWritten = maxDeltas > 0 ? state : null;
+      if (listener != null) listener.onCheckpointWritten(bytes);
+    }
+  }
+
+  private int writeSnapshot(Bundle state) throws IOException {
+    byte[] bytes = codec.encode(new BundleStateContainer(state));
+    StateFiles.writeAtomically(file, bytes);
+    // A crash before the log is reset leaves deltas for the old snapshot behind, which read()
+    // tells apart by their checksum.
+    if (maxDeltas > 0) {
+      StateFiles.writeAtomically(deltaLog, ByteBuffer.allocate(LOG_HEADER_SIZE)
+          .putInt(LOG_MAGIC)
+          .putLong(checksum(bytes))
+          .array());
+    } else {
+      deltaLog.delete();
+    }
+    snapshotBytes = bytes.length;
+    deltaCount = 0;
+    deltaBytes = 0;
+    return bytes.length;
+  }
+
+  /** Appends what changed since the last checkpoint to the log, and returns its size. */
+  private int writeDelta(Bundle state) throws IOException {
+    InMemoryStateContainer delta = new InMemoryStateContainer();
+    BundleStateContainer current = new BundleStateContainer(state);
+    if (StateDelta.diff(new BundleStateContainer(lastWritten), current, delta) == 0) return 0;
+    byte[] bytes = codec.encode(delta);
+    if (deltaBytes + bytes.length + 4 > snapshotBytes) return writeSnapshot(state);
+
+    byte[] record = ByteBuffer.allocate(bytes.length + 4).putInt(bytes.length).put(bytes).array();
+    StateFiles.append(deltaLog, record);
+    deltaCount++;
+    deltaBytes += record.length;
+    return record.length;
+  }
+
+  /**
+   * Reads the last checkpoint written, or returns null if there is none or it cannot be read.
+   * Pending checkpoints are not waited for.
+   */
+  public Bundle read() {
+    synchronized (writeLock) {
+      try {
+        byte[] bytes = StateFiles.read(file);
+        if (bytes == null) return null;
+        Bundle state = new Bundle();
+        codec.decode(bytes, new BundleStateContainer(state));
+        replayDeltas(bytes, new BundleStateContainer(state));
+        return state;
+      } catch (IllegalArgumentException | IOException e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Applies the deltas logged against the given snapshot, oldest first. Stops at the first one
+   * that is cut short or cannot be decoded, as a crash in the middle of an append leaves behind.
+   */
+  private void replayDeltas(byte[] snapshot, StateContainer state) throws IOException {
+    byte[] log = StateFiles.read(deltaLog);
+    if (log == null || log.length < LOG_HEADER_SIZE) return;
+    ByteBuffer in = ByteBuffer.wrap(log);
+    if (in.getInt() != LOG_MAGIC || in.getLong() != checksum(snapshot)) return;
+
+    while (in.remaining() >= 4) {
+      int length = in.getInt();
+      if (length < 0 || length > in.remaining()) return;
+      byte[] bytes = new byte[length];
+      in.get(bytes);
+      // Decoded whole before any of it is applied.
+      InMemoryStateContainer delta = new InMemoryStateContainer();
+      try {
+        codec.decode(bytes, delta);
+      } catch (IllegalArgumentException e) {
+        return;
+      }
+      StateDelta.apply(delta, state);
+    }
+  }
+
+  private static long checksum(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  }
+
+  /**
+   * To be called in place of {@link BundleServiceRunner#onCreate}. Restores from the given state
+   * if there is any, or else from the last checkpoint.
+   */
+  public void onCreate(Bundle savedInstanceState) {
+    runner.onCreate(savedInstanceState != null ? savedInstanceState : read());
+  }
+
+  /** Deletes the checkpoint, and drops any that has not been written yet. */
+  public void clear() {
+    synchronized (writeLock) {
+      pending.set(null);
+      lastWritten = null;
+      file.delete();
+      deltaLog.delete();
+    }
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link StateCodec} that packs state tightly, for {@link BundleServiceRunner#setBundleCodec
+ * keeping} mortar's whole state in one byte array. Every distinct key and string value is written
+ * once, to a table up front, and referred to by index after that. Counts, lengths, indices and
+ * numbers are varints, so small ones take a byte. Supports the same values as {@link
+ * BasicStateCodec}.
+ */
+public final class CompactStateCodec implements StateCodec {
+  private static final int MAGIC = 0x4d534331; // MSC1
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final byte FALSE = 1;
+  private static final byte TRUE = 2;
+  private static final byte INT = 3;
+  private static final byte LONG = 4;
+  private static final byte STRING = 5;
+  private static final byte BYTES = 6;
+  private static final byte CHILD = 7;
+  private static final byte NULL = 8;
+
+  @Override public byte[] encode(StateContainer state) {
+    // The values go first to their own buffer, interning strings as they come.
+    Map<String, Integer> indices = new HashMap<>();
+    List<String> strings = new ArrayList<>();
+    Output values = new Output(256);
+    write(state, indices, strings, values);
+
+    Output out = new Output(values.size + 16 * strings.size());
+    for (int shift = 24; shift >= 0; shift -= 8) {
+      out.write(MAGIC >>> shift);
+    }
+    out.writeVarint(strings.size());
+    for (String string : strings) {
+      out.writeWithLength(string.getBytes(UTF_8));
+    }
+    out.write(values.bytes, values.size);
+    return out.toByteArray();
+  }
+
+  private static int intern(String string, Map<String, Integer> indices, List<String> strings) {
+    Integer index = indices.get(string);
+    if (index == null) {
+      index = strings.size();
+      indices.put(string, index);
+      strings.add(string);
+    }
+    return index;
+  }
+
+  private static void write(StateContainer state, Map<String, Integer> indices,
+      List<String> strings, Output out) {
+    Set<String> keys = state.keySet();
+    out.writeVarint(keys.size());
+    for (String key : keys) {
+      out.writeVarint(intern(key, indices, strings));
+      Object value = state.get(key);
+      if (value instanceof Boolean) {
+        out.write((Boolean) value ? TRUE : FALSE);
+      } else if (value instanceof Integer) {
+        out.write(INT);
+        int n = (Integer) value;
+        out.writeVarint(((n << 1) ^ (n >> 31)) & 0xffffffffL);
+      } else if (value instanceof Long) {
+        out.write(LONG);
+        long n = (Long) value;
+        out.writeVarint((n << 1) ^ (n >> 63));
+      } else if (value instanceof String) {
+        out.write(STRING);
+        out.writeVarint(intern((String) value, indices, strings));
+      } else if (value instanceof byte[]) {
+        out.write(BYTES);
+        out.writeWithLength((byte[]) value);
+      } else if (value instanceof StateContainer) {
+        out.write(CHILD);
+        write((StateContainer) value, indices, strings, out);
+      } else if (value == null) {
+        out.write(NULL);
+      } else {
+        throw new IllegalArgumentException(
+            String.format("Cannot encode \"%s\", a %s", key, value.getClass().getName()));
+      }
+    }
+  }
+
+  @Override public void decode(byte[] bytes, StateContainer into) {
+    Input in = new Input(bytes);
+    int magic = 0;
+    for (int i = 0; i < 4; i++) {
+      magic = magic << 8 | in.readByte() & 0xff;
+    }
+    if (magic != MAGIC) throw new IllegalArgumentException("Not a CompactStateCodec blob");
+    String[] strings = new String[in.readCount()];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = new String(in.readBytes(), UTF_8);
+    }
+    read(in, strings, into);
+    if (in.position != bytes.length) throw new IllegalArgumentException("Trailing bytes");
+  }
+
+  private static void read(Input in, String[] strings, StateContainer into) {
+    int count = in.readCount();
+    for (int i = 0; i < count; i++) {
+      String key = in.readString(strings);
+      byte tag = in.readByte();
+      switch (tag) {
+        case FALSE:
+          into.putBoolean(key, false);
+          break;
+        case TRUE:
+          into.putBoolean(key, true);
+          break;
+        case INT:
+          long zigzag = in.readVarint();
+          into.putInt(key, (int) (zigzag >>> 1) ^ -(int) (zigzag & 1));
+          break;
+        case LONG:
+          long zigzagLong = in.readVarint();
+          into.putLong(key, (zigzagLong >>> 1) ^ -(zigzagLong & 1));
+          break;
+        case STRING:
+          into.putString(key, in.readString(strings));
+          break;
+        case BYTES:
+          into.putByteArray(key, in.readBytes());
+          break;
+        case CHILD:
+          read(in, strings, into.putChild(key));
+          break;
+        case NULL:
+          into.putString(key, null);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown tag " + tag + " for \"" + key + "\"");
+      }
+    }
+  }
+
+  /** Like a {@link java.io.ByteArrayOutputStream}, without locking for every byte. */
+  private static final class Output {
+    private byte[] bytes;
+    private int size;
+
+    Output(int capacity) {
+      bytes = new byte[Math.max(capacity, 32)];
+    }
+
+    void write(int b) {
+      if (size == bytes.length) bytes = Arrays.copyOf(bytes, size * 2);
+      bytes[size++] = (byte) b;
+    }
+
+    void writeVarint(long value) {
+      while ((value & ~0x7fL) != 0) {
+        write((int) (value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    void writeWithLength(byte[] array) {
+      writeVarint(array.length);
+      write(array, array.length);
+    }
+
+    void write(byte[] array, int length) {
+      if (size + length > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(size * 2, size + length));
+      }
+      System.arraycopy(array, 0, bytes, size, length);
+      size += length;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, size);
+    }
+  }
+
+  private static final class Input {
+    final byte[] bytes;
+    int position;
+
+    Input(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    byte readByte() {
+      if (position == bytes.length) throw new IllegalArgumentException("Truncated state");
+      return bytes[position++];
+    }
+
+    long readVarint() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = readByte();
+        value |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) return value;
+      }
+      throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /** A count of things that each take at least a byte, so no more than are left. */
+    int readCount() {
+      long count = readVarint();
+      if (count < 0 || count > bytes.length - position) {
+        throw new IllegalArgumentException("Bad count " + count);
+      }
+      return (int) count;
+    }
+
+    byte[] readBytes() {
+      int length = readCount();
+      byte[] result = new byte[length];
+      System.arraycopy(bytes, position, result, 0, length);
+      position += length;
+      return result;
+    }
+
+    String readString(String[] strings) {
+      long index = readVarint();
+      if (index < 0 || index >= strings.length) {
+        throw new IllegalArgumentException("Bad string index " + index);
+      }
+      return strings[(int) index];
+    }
+  }
+}
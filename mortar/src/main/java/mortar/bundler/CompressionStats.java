@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * What {@link BundleServiceRunner#setCompressionThreshold compression} has done since the runner
+ * was created, or since the last {@link #reset}, per {@link Bundler#getMortarBundleKey() bundle
+ * key}. For tuning the threshold: keys whose state barely shrinks, or that cost a lot of time
+ * for what they save, are better left uncompressed. Thread safe.
+ */
+public final class CompressionStats {
+  /** Totals for one bundle key. */
+  public static final class Entry {
+    private final String bundleKey;
+    private int compressions;
+    private long originalBytes;
+    private long compressedBytes;
+    private long compressNanos;
+    private int decompressions;
+    private long decompressNanos;
+
+    Entry(String bundleKey) {
+      this.bundleKey = bundleKey;
+    }
+
+    Entry(Entry entry) {
+      bundleKey = entry.bundleKey;
+      compressions = entry.compressions;
+      originalBytes = entry.originalBytes;
+      compressedBytes = entry.compressedBytes;
+      compressNanos = entry.compressNanos;
+      decompressions = entry.decompressions;
+      decompressNanos = entry.decompressNanos;
+    }
+
+    public String getBundleKey() {
+      return bundleKey;
+    }
+
+    /** Times state was compressed, including ones that didn't shrink and were kept as is. */
+    public int getCompressions() {
+      return compressions;
+    }
+
+    /** Total size of the encoded state, before compression. */
+    public long getOriginalBytes() {
+      return originalBytes;
+    }
+
+    public long getCompressedBytes() {
+      return compressedBytes;
+    }
+
+    /** Compressed bytes per original byte: lower is better, 1 or more is no use. */
+    public double getRatio() {
+      return originalBytes == 0 ? 1 : (double) compressedBytes / originalBytes;
+    }
+
+    /** Time spent encoding and compressing. */
+    public long getCompressNanos() {
+      return compressNanos;
+    }
+
+    public int getDecompressions() {
+      return decompressions;
+    }
+
+    /** Time spent decompressing and decoding. */
+    public long getDecompressNanos() {
+      return decompressNanos;
+    }
+
+    @Override public String toString() {
+      return format("%5.2f ratio %8d bytes %6dus out %6dus in  %s", getRatio(), originalBytes,
+          compressNanos / 1000, decompressNanos / 1000, bundleKey);
+    }
+  }
+
+  private static final Comparator<Entry> SLOWEST_FIRST = new Comparator<Entry>() {
+    @Override public int compare(Entry left, Entry right) {
+      long leftNanos = left.compressNanos + left.decompressNanos;
+      long rightNanos = right.compressNanos + right.decompressNanos;
+      return leftNanos < rightNanos ? 1 : leftNanos > rightNanos ? -1 : 0;
+    }
+  };
+
+  private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+  synchronized void recordCompression(String bundleKey, int originalBytes, int compressedBytes,
+      long nanos) {
+    Entry entry = entry(bundleKey);
+    entry.compressions++;
+    entry.originalBytes += originalBytes;
+    entry.compressedBytes += compressedBytes;
+    entry.compressNanos += nanos;
+  }
+
+  synchronized void recordDecompression(String bundleKey, long nanos) {
+    Entry entry = entry(bundleKey);
+    entry.decompressions++;
+    entry.decompressNanos += nanos;
+  }
+
+  private Entry entry(String bundleKey) {
+    Entry entry = entries.get(bundleKey);
+    if (entry == null) {
+      entry = new Entry(bundleKey);
+      entries.put(bundleKey, entry);
+    }
+    return entry;
+  }
+
+  /** A copy of the totals so far, most time spent first. */
+  public synchronized List<Entry> getEntries() {
+    List<Entry> copy = new ArrayList<>(entries.size());
+    for (Entry entry : entries.values()) {
+      copy.add(new Entry(entry));
+    }
+    Collections.sort(copy, SLOWEST_FIRST);
+    return copy;
+  }
+
+  public synchronized void reset() {
+    entries.clear();
+  }
+
+  @Override public String toString() {
+    StringBuilder builder = new StringBuilder("CompressionStats");
+    for (Entry entry : getEntries()) {
+      builder.append('\n').append(entry);
+    }
+    return builder.toString();
+  }
+}
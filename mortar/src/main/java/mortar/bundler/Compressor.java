@@ -0,0 +1,30 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.io.IOException;
+
+/**
+ * Shrinks the encoded state of bundlers that write a lot, see {@link
+ * BundleServiceRunner#setCompressionThreshold}. {@link DeflateCompressor} by default.
+ * Implementations must be safe to call from any thread.
+ */
+public interface Compressor {
+  byte[] compress(byte[] bytes);
+
+  /** @throws IOException if the bytes were not written by {@link #compress} */
+  byte[] decompress(byte[] bytes) throws IOException;
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+/**
+ * Implemented by a {@link Bundler} or {@link StateBundler} whose {@link Bundler#onLoad} can wait
+ * until the main thread is idle, when the runner {@link BundleServiceRunner#setIdleScheduler
+ * defers loads}. Typically one whose scope is not on screen. It is still loaded before the next
+ * save, and as soon as it is {@link BundleService#register registered} again. {@link
+ * mortar.Presenter}s without a view defer their loads.
+ */
+public interface DeferrableLoad {
+  /** Read when the bundler would be loaded. */
+  boolean canDeferLoad();
+}
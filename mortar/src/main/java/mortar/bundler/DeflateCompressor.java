@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** A {@link Compressor} that uses the JDK's {@link Deflater} and {@link Inflater}. */
+public final class DeflateCompressor implements Compressor {
+  private final int level;
+
+  /** Favors speed, since saves run on the main thread. */
+  public DeflateCompressor() {
+    this(Deflater.BEST_SPEED);
+  }
+
+  /** @param level a {@link Deflater} compression level, 0 to 9, or -1 for its default */
+  public DeflateCompressor(int level) {
+    if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Bad level " + level);
+    }
+    this.level = level;
+  }
+
+  @Override public byte[] compress(byte[] bytes) {
+    Deflater deflater = new Deflater(level);
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+      byte[] buffer = new byte[Math.max(64, bytes.length / 2)];
+      int size = 0;
+      while (!deflater.finished()) {
+        if (size == buffer.length) buffer = Arrays.copyOf(buffer, size * 2);
+        size += deflater.deflate(buffer, size, buffer.length - size);
+      }
+      return Arrays.copyOf(buffer, size);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  @Override public byte[] decompress(byte[] bytes) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(bytes);
+      byte[] buffer = new byte[Math.max(64, bytes.length * 4)];
+      int size = 0;
+      while (!inflater.finished()) {
+        if (size == buffer.length) buffer = Arrays.copyOf(buffer, size * 2);
+        int inflated = inflater.inflate(buffer, size, buffer.length - size);
+        if (inflated == 0 && !inflater.finished()
+            && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Truncated compressed state");
+        }
+        size += inflated;
+      }
+      return Arrays.copyOf(buffer, size);
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+/**
+ * Implemented by a {@link Bundler} or {@link StateBundler} that calls {@link
+ * BundleService#markDirty} whenever the state it saves changes. Such a bundler is only asked to
+ * {@link Bundler#onSave save} again once it has been marked dirty. Until then, each save reuses
+ * the state it wrote last time. It is also dirty until its first save and after each load.
+ */
+public interface DirtyTracking {
+}
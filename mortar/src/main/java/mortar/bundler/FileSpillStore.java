@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A {@link SpillStore} that writes each payload to its own file in a directory, e.g. one under
+ * {@code Context.getFilesDir()}. Files are written to a temporary name and renamed into place,
+ * so a process killed mid-write never leaves a truncated payload behind a handle. They are not
+ * synced: like the saved instance state that refers to them, they only need to outlive the
+ * process, not the device.
+ * <p>
+ * Give each {@link BundleServiceRunner} a directory of its own. A runner deletes the files in it
+ * that its restored state does not refer to.
+ */
+public final class FileSpillStore implements SpillStore {
+  private static final String SUFFIX = ".spill";
+
+  private final File directory;
+
+  public FileSpillStore(File directory) {
+    if (directory == null) throw new NullPointerException("directory == null");
+    this.directory = directory;
+  }
+
+  @Override public String write(byte[] bytes) throws IOException {
+    String handle = UUID.randomUUID().toString();
+    StateFiles.writeAtomically(file(handle), bytes, false);
+    return handle;
+  }
+
+  @Override public byte[] read(String handle) throws IOException {
+    return StateFiles.read(file(handle));
+  }
+
+  @Override public void delete(String handle) {
+    file(handle).delete();
+  }
+
+  @Override public void retainOnly(Set<String> handles) {
+    File[] files = directory.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      String name = file.getName();
+      // Also catches temporary files left by a process killed mid-write.
+      if (!name.endsWith(SUFFIX)
+          || !handles.contains(name.substring(0, name.length() - SUFFIX.length()))) {
+        file.delete();
+      }
+    }
+  }
+
+  private File file(String handle) {
+    // Handles come back from saved state, which is not to be trusted with paths.
+    if (handle.indexOf('/') >= 0 || handle.indexOf(File.separatorChar) >= 0
+        || handle.startsWith(".")) {
+      throw new IllegalArgumentException("Bad handle " + handle);
+    }
+    return new File(directory, handle + SUFFIX);
+  }
+}
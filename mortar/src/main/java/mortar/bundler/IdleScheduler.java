@@ -0,0 +1,25 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+/**
+ * Runs {@link BundleServiceRunner#setIdleScheduler deferred loads} once the main thread has
+ * nothing more pressing to do. {@link LooperIdleScheduler} is the one to use on Android.
+ */
+public interface IdleScheduler {
+  /** Runs the given task on the calling thread, once it is idle. */
+  void runWhenIdle(Runnable task);
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link StateContainer} that is just a map, for running {@link BundleServiceRunner} and
+ * {@link StateBundler}s on a plain JVM: in tests, benchmarks or on a server. Values are stored
+ * as given, byte arrays included, like {@link android.os.Bundle} does. Not thread safe.
+ */
+public final class InMemoryStateContainer implements StateContainer {
+  private final Map<String, Object> values = new LinkedHashMap<>();
+
+  @Override public boolean isEmpty() {
+    return values.isEmpty();
+  }
+
+  @Override public boolean containsKey(String key) {
+    return values.containsKey(key);
+  }
+
+  @Override public Set<String> keySet() {
+    return Collections.unmodifiableSet(values.keySet());
+  }
+
+  @Override public void remove(String key) {
+    values.remove(key);
+  }
+
+  @Override public int estimateSize() {
+    int size = ParcelSizes.BUNDLE_HEADER + ParcelSizes.MAP_HEADER;
+    for (Map.Entry<String, Object> entry : values.entrySet()) {
+      size += ParcelSizes.string(entry.getKey());
+      Object value = entry.getValue();
+      size += value instanceof InMemoryStateContainer
+          ? ParcelSizes.TYPE_TAG + ((InMemoryStateContainer) value).estimateSize()
+          : ParcelSizes.value(value);
+    }
+    return size;
+  }
+
+  @Override public Object get(String key) {
+    return values.get(key);
+  }
+
+  @Override public StateContainer getChild(String key) {
+    Object value = values.get(key);
+    return value instanceof InMemoryStateContainer ? (InMemoryStateContainer) value : null;
+  }
+
+  @Override public StateContainer putChild(String key) {
+    InMemoryStateContainer child = new InMemoryStateContainer();
+    values.put(key, child);
+    return child;
+  }
+
+  @Override public void putChild(String key, StateContainer child) {
+    if (!(child instanceof InMemoryStateContainer)) {
+      throw new IllegalArgumentException("Not an InMemoryStateContainer: " + child);
+    }
+    values.put(key, child);
+  }
+
+  @Override public boolean getBoolean(String key) {
+    Object value = values.get(key);
+    return value instanceof Boolean && (Boolean) value;
+  }
+
+  @Override public void putBoolean(String key, boolean value) {
+    values.put(key, value);
+  }
+
+  @Override public int getInt(String key) {
+    Object value = values.get(key);
+    return value instanceof Integer ? (Integer) value : 0;
+  }
+
+  @Override public void putInt(String key, int value) {
+    values.put(key, value);
+  }
+
+  @Override public long getLong(String key) {
+    Object value = values.get(key);
+    return value instanceof Long ? (Long) value : 0L;
+  }
+
+  @Override public void putLong(String key, long value) {
+    values.put(key, value);
+  }
+
+  @Override public String getString(String key) {
+    Object value = values.get(key);
+    return value instanceof String ? (String) value : null;
+  }
+
+  @Override public void putString(String key, String value) {
+    values.put(key, value);
+  }
+
+  @Override public byte[] getByteArray(String key) {
+    Object value = values.get(key);
+    return value instanceof byte[] ? (byte[]) value : null;
+  }
+
+  @Override public void putByteArray(String key, byte[] value) {
+    values.put(key, value);
+  }
+
+  /** Copies everything in this container to the given one. */
+  void copyTo(StateContainer out) {
+    for (Map.Entry<String, Object> entry : values.entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      if (value instanceof InMemoryStateContainer) {
+        ((InMemoryStateContainer) value).copyTo(out.putChild(key));
+      } else if (value instanceof Boolean) {
+        out.putBoolean(key, (Boolean) value);
+      } else if (value instanceof Integer) {
+        out.putInt(key, (Integer) value);
+      } else if (value instanceof Long) {
+        out.putLong(key, (Long) value);
+      } else if (value instanceof String) {
+        out.putString(key, (String) value);
+      } else if (value instanceof byte[]) {
+        out.putByteArray(key, (byte[]) value);
+      } else if (value == null) {
+        out.putString(key, null);
+      } else {
+        throw new AssertionError("Unexpected value " + value);
+      }
+    }
+  }
+
+  @Override public String toString() {
+    return values.toString();
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+/**
+ * Implemented by a {@link Bundler} or {@link StateBundler} to be {@link Bundler#onLoad loaded}
+ * before or after other bundlers. Bundlers in shallower scopes are always loaded first; priority
+ * orders bundlers whose scopes are equally deep, higher first. Those that don't implement this
+ * have {@link #DEFAULT} priority. {@link mortar.Presenter}s that have a view load at {@link
+ * #VISIBLE}.
+ */
+public interface LoadPriority {
+  int DEFAULT = 0;
+  int VISIBLE = 100;
+
+  /** Read when the bundler is queued to be loaded. */
+  int getLoadPriority();
+}
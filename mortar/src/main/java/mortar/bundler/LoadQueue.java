@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Bundlers waiting to be loaded, in the order {@link BundleServiceRunner#finishLoading} loads
+ * them: shallower scopes first, then higher {@link LoadPriority}, then scope path, then the order
+ * they were queued in.
+ * <p>
+ * Each service has a {@link Pending} queue of its own bundlers, and the services are kept sorted
+ * by their first one. Polling a bundler costs O(log s) for s queued services, and paths are only
+ * compared between services. Most bundlers have the default priority and just go through a
+ * deque; the others through a heap.
+ */
+final class LoadQueue {
+  /** Bundlers queued for one service. */
+  static final class Pending {
+    private final ArrayDeque<StateBundler> defaults = new ArrayDeque<>();
+    /** Bundlers with other priorities. Created on demand. */
+    private PriorityQueue<Entry> prioritized;
+    /**
+     * Everything in {@link #defaults} and {@link #prioritized}, built only when a bundler is
+     * added to a non-empty queue. Restores, which {@link LoadQueue#addAll} into empty ones,
+     * never need it.
+     */
+    private Set<StateBundler> queued;
+    /** Priority of the first bundler when the service was sorted into {@link #services}. */
+    int sortedPriority;
+
+    boolean isEmpty() {
+      return defaults.isEmpty() && (prioritized == null || prioritized.isEmpty());
+    }
+
+    int firstPriority() {
+      return prioritized == null || prioritized.isEmpty() ? LoadPriority.DEFAULT
+          : defaults.isEmpty() ? prioritized.peek().priority
+              : Math.max(prioritized.peek().priority, LoadPriority.DEFAULT);
+    }
+
+    /** Returns false if the bundler was already queued. */
+    boolean add(StateBundler bundler, int priority, long sequence) {
+      if (!isEmpty()) {
+        if (queued == null) queued = allQueued();
+        if (!queued.add(bundler)) return false;
+      }
+      append(bundler, priority, sequence);
+      return true;
+    }
+
+    /** Like {@link #add}, for a bundler known not to be queued. */
+    void append(StateBundler bundler, int priority, long sequence) {
+      if (priority == LoadPriority.DEFAULT) {
+        defaults.add(bundler);
+      } else {
+        if (prioritized == null) prioritized = new PriorityQueue<>(11, ENTRY_ORDER);
+        prioritized.add(new Entry(bundler, priority, sequence));
+      }
+    }
+
+    StateBundler poll() {
+      StateBundler next;
+      if (prioritized != null && !prioritized.isEmpty()
+          && (defaults.isEmpty() || prioritized.peek().priority > LoadPriority.DEFAULT)) {
+        next = prioritized.poll().bundler;
+      } else {
+        next = defaults.poll();
+      }
+      if (queued != null) {
+        queued.remove(next);
+        if (queued.isEmpty()) queued = null;
+      }
+      return next;
+    }
+
+    void clear() {
+      defaults.clear();
+      if (prioritized != null) prioritized.clear();
+      queued = null;
+    }
+
+    private Set<StateBundler> allQueued() {
+      Set<StateBundler> all = new HashSet<>(defaults);
+      if (prioritized != null) {
+        for (Entry entry : prioritized) all.add(entry.bundler);
+      }
+      return all;
+    }
+  }
+
+  private static final class Entry {
+    final StateBundler bundler;
+    final int priority;
+    final long sequence;
+
+    Entry(StateBundler bundler, int priority, long sequence) {
+      this.bundler = bundler;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+  }
+
+  private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+    @Override public int compare(Entry left, Entry right) {
+      if (left.priority != right.priority) return left.priority > right.priority ? -1 : 1;
+      return left.sequence < right.sequence ? -1 : (left.sequence == right.sequence ? 0 : 1);
+    }
+  };
+
+  /**
+   * By each service's {@link Pending#sortedPriority}. Services are removed before it changes,
+   * and added back after.
+   */
+  private static final Comparator<BundleService> SERVICE_ORDER = new Comparator<BundleService>() {
+    private final Comparator<BundleService> pathOrder = new BundleServiceComparator();
+
+    @Override public int compare(BundleService left, BundleService right) {
+      int leftDepth = left.pathSegments.length;
+      int rightDepth = right.pathSegments.length;
+      if (leftDepth != rightDepth) return leftDepth < rightDepth ? -1 : 1;
+      int leftPriority = left.pendingLoads.sortedPriority;
+      int rightPriority = right.pendingLoads.sortedPriority;
+      if (leftPriority != rightPriority) return leftPriority > rightPriority ? -1 : 1;
+      return pathOrder.compare(left, right);
+    }
+  };
+
+  private final TreeSet<BundleService> services = new TreeSet<>(SERVICE_ORDER);
+  /** Orders prioritized bundlers of equal priority within a service. */
+  private long nextSequence;
+
+  /** Queues the given bundler, unless it is already queued. */
+  void add(BundleService service, StateBundler bundler) {
+    Pending pending = service.pendingLoads;
+    boolean wasQueued = !pending.isEmpty();
+    if (!pending.add(bundler, service.loadPriority(bundler), nextSequence++)) return;
+    if (!wasQueued) {
+      pending.sortedPriority = pending.firstPriority();
+      services.add(service);
+    } else if (pending.firstPriority() != pending.sortedPriority) {
+      resort(service);
+    }
+  }
+
+  /** Queues all of the given service's bundlers, which are distinct. */
+  void addAll(BundleService service, Collection<StateBundler> bundlers) {
+    Pending pending = service.pendingLoads;
+    if (!pending.isEmpty()) {
+      for (StateBundler bundler : bundlers) add(service, bundler);
+      return;
+    }
+    if (bundlers.isEmpty()) return;
+    for (StateBundler bundler : bundlers) {
+      pending.append(bundler, service.loadPriority(bundler), nextSequence++);
+    }
+    pending.sortedPriority = pending.firstPriority();
+    services.add(service);
+  }
+
+  /** The service whose bundler {@link #poll} would return, or null if there is none. */
+  BundleService peekService() {
+    return services.isEmpty() ? null : services.first();
+  }
+
+  /** Removes and returns the next bundler of the given {@link #peekService}. */
+  StateBundler poll(BundleService service) {
+    Pending pending = service.pendingLoads;
+    StateBundler next = pending.poll();
+    if (pending.isEmpty()) {
+      services.remove(service);
+    } else if (pending.firstPriority() != pending.sortedPriority) {
+      resort(service);
+    }
+    return next;
+  }
+
+  /** Drops everything queued for the given service, e.g. because its scope exited. */
+  void remove(BundleService service) {
+    Pending pending = service.pendingLoads;
+    if (!pending.isEmpty()) services.remove(service);
+    pending.clear();
+  }
+
+  private void resort(BundleService service) {
+    services.remove(service);
+    service.pendingLoads.sortedPriority = service.pendingLoads.firstPriority();
+    services.add(service);
+  }
+}
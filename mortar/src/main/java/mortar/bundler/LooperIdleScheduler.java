@@ -0,0 +1,31 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+
+/** Runs tasks from an {@link MessageQueue.IdleHandler} of the calling thread's {@link Looper}. */
+public final class LooperIdleScheduler implements IdleScheduler {
+  @Override public void runWhenIdle(final Runnable task) {
+    Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+      @Override public boolean queueIdle() {
+        task.run();
+        return false;
+      }
+    });
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+/**
+ * Approximates how many bytes values take once written to a {@link android.os.Parcel} by a
+ * {@link android.os.Bundle}, which is what counts against the binder transaction limit. Cheap:
+ * no parceling, no allocation.
+ */
+final class ParcelSizes {
+  /** Length and magic number. */
+  static final int BUNDLE_HEADER = 8;
+  /** Entry count. */
+  static final int MAP_HEADER = 4;
+  /** Written before every value. */
+  static final int TYPE_TAG = 4;
+
+  private ParcelSizes() {
+  }
+
+  static int string(String value) {
+    return value == null ? 4 : 4 + pad((value.length() + 1) * 2);
+  }
+
+  /**
+   * Returns the size of the given value, type tag included, or -1 if it is not one of the types
+   * {@link StateContainer} has accessors for. A null is parceled as its type tag alone.
+   */
+  static int value(Object value) {
+    if (value == null) return TYPE_TAG;
+    if (value instanceof Integer || value instanceof Boolean) return TYPE_TAG + 4;
+    if (value instanceof Long) return TYPE_TAG + 8;
+    if (value instanceof String) return TYPE_TAG + string((String) value);
+    if (value instanceof byte[]) return TYPE_TAG + 4 + pad(((byte[]) value).length);
+    return -1;
+  }
+
+  private static int pad(int size) {
+    return (size + 3) & ~3;
+  }
+}
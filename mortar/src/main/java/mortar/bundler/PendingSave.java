@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The second phase of a {@link SnapshotBundler}'s save: writing its snapshot, and compressing
+ * and spilling the result if it is large, off the main thread. {@link BundleService#finishSave}
+ * then puts it in place.
+ */
+final class PendingSave implements Callable<Void> {
+  final BundleService service;
+  final SnapshotBundler bundler;
+  private final SnapshotBundler.Snapshot snapshot;
+  /** Whose settings the task writes with, and whose save puts it in place. */
+  final StatePass pass;
+  private final FutureTask<Void> task = new FutureTask<>(this);
+
+  /** Written by the snapshot, confined to the task until it is done. */
+  final InMemoryStateContainer state = new InMemoryStateContainer();
+  /** Not null if {@link #state} was spilled. */
+  String spillHandle;
+  /** Main thread time spent taking the snapshot, when profiling. */
+  long snapshotNanos;
+
+  PendingSave(BundleService service, SnapshotBundler bundler, SnapshotBundler.Snapshot snapshot,
+      StatePass pass) {
+    this.service = service;
+    this.bundler = bundler;
+    this.snapshot = snapshot;
+    this.pass = pass;
+  }
+
+  void start(Executor executor) {
+    executor.execute(task);
+  }
+
+  @Override public Void call() {
+    snapshot.writeTo(state);
+    BundleService.compress(pass, bundler.getMortarBundleKey(), state);
+    spillHandle = BundleService.writeSpill(pass, state);
+    return null;
+  }
+
+  /**
+   * Waits for the task to be done, running it on this thread if the executor has not started it
+   * yet.
+   */
+  void join() {
+    task.run();
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          task.get();
+          return;
+        } catch (InterruptedException e) {
+          // The save has to complete regardless.
+          interrupted = true;
+        } catch (ExecutionException e) {
+          throw new RuntimeException(
+              "Failed to write snapshot of " + bundler.getMortarBundleKey(), e.getCause());
+        }
+      }
+    } finally {
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Deletes what this save wrote, once it is done, for a scope that no longer needs it. */
+  void discard() {
+    if (spillHandle != null) pass.spillStore.delete(spillHandle);
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * A {@link StateTracer} that keeps every section in memory, for tests and for dumping a trace
+ * when there is no systrace to hand. Main thread only, like the tracer calls themselves.
+ */
+public final class RecordingStateTracer implements StateTracer {
+  /** One section, begun and possibly ended. */
+  public static final class Section {
+    private final String name;
+    private final int depth;
+    private final long startNanos;
+    private long endNanos = -1;
+
+    Section(String name, int depth, long startNanos) {
+      this.name = name;
+      this.depth = depth;
+      this.startNanos = startNanos;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** How many sections this one is nested in. */
+    public int getDepth() {
+      return depth;
+    }
+
+    public boolean isEnded() {
+      return endNanos != -1;
+    }
+
+    /** Wall time from begin to end, or -1 if the section has not ended yet. */
+    public long getDurationNanos() {
+      return endNanos == -1 ? -1 : endNanos - startNanos;
+    }
+
+    @Override public String toString() {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < depth; i++) {
+        builder.append("  ");
+      }
+      String duration = isEnded() ? format("%dus", getDurationNanos() / 1000) : "open";
+      return builder.append(name).append(' ').append(duration).toString();
+    }
+  }
+
+  private final List<Section> sections = new ArrayList<>();
+  private final List<Section> open = new ArrayList<>();
+
+  @Override public void beginSection(String name) {
+    Section section = new Section(name, open.size(), System.nanoTime());
+    sections.add(section);
+    open.add(section);
+  }
+
+  /** @throws IllegalStateException if no section is open */
+  @Override public void endSection() {
+    if (open.isEmpty()) throw new IllegalStateException("No section to end");
+    open.remove(open.size() - 1).endNanos = System.nanoTime();
+  }
+
+  /** Every section recorded so far, in the order they began. */
+  public List<Section> getSections() {
+    return Collections.unmodifiableList(new ArrayList<>(sections));
+  }
+
+  /** The number of sections begun and not yet ended. */
+  public int getOpenCount() {
+    return open.size();
+  }
+
+  /** Forgets the sections that have ended. */
+  public void clear() {
+    sections.retainAll(open);
+  }
+
+  /** Every section, one per line, indented by depth. */
+  @Override public String toString() {
+    StringBuilder builder = new StringBuilder("RecordingStateTracer");
+    for (Section section : sections) {
+      builder.append('\n').append(section);
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+/**
+ * A {@link StateBundler} whose saves can be split in two: a quick {@link #snapshot} of its state
+ * on the main thread, and the slower writing of that snapshot, e.g. serializing a model to JSON,
+ * on the {@link BundleServiceRunner#setSaveExecutor save executor}. The runner still waits for
+ * all snapshots to be written before its save returns, but they are written in parallel with
+ * each other and with the rest of the save.
+ * <p>
+ * Without a save executor, {@link #onSave} is called as usual. It is typically implemented as
+ * {@code snapshot().writeTo(outState)}.
+ */
+public interface SnapshotBundler extends StateBundler {
+  /** An immutable copy of a bundler's state. */
+  interface Snapshot {
+    /**
+     * Writes this snapshot to the given state, which belongs to this call. Called from the save
+     * executor's thread.
+     */
+    void writeTo(StateContainer outState);
+  }
+
+  /**
+   * Called on the main thread in place of {@link #onSave} when the runner has a save executor.
+   * Must not share mutable state with the bundler.
+   */
+  Snapshot snapshot();
+}
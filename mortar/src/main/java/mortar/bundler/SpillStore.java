@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Somewhere app-private and durable to keep state too large to send through the binder. Spilled
+ * state must outlive the process, so that it can be restored after process death.
+ *
+ * @see BundleServiceRunner#setSpillStore
+ */
+public interface SpillStore {
+  /** Stores the given bytes, returning a short handle to {@link #read} them with. */
+  String write(byte[] bytes) throws IOException;
+
+  /** Returns the bytes stored under the given handle, or null if there are none. */
+  byte[] read(String handle) throws IOException;
+
+  /** Deletes the bytes stored under the given handle, if any. */
+  void delete(String handle);
+
+  /**
+   * Deletes everything stored except under the given handles. Called when state is restored, to
+   * drop what earlier processes spilled and left behind.
+   */
+  void retainOnly(Set<String> handles);
+}
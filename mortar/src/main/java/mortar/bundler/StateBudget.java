@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+/**
+ * Has {@link BundleServiceRunner} measure the state its bundlers save, and act when it grows
+ * past a budget. Oversized saved state is what makes Android throw {@code
+ * TransactionTooLargeException}; the limit is about 1MB, shared by everything in flight.
+ * <p>
+ * Sizes are {@link StateContainer#estimateSize() estimates}, cheap enough for release builds,
+ * and can be taken on only some saves; see {@link #sampleEvery}.
+ *
+ * @see BundleServiceRunner#setStateBudget
+ */
+public final class StateBudget {
+  public enum Policy {
+    /** Report to the listener, keep everything. */
+    WARN,
+    /**
+     * Drop the state of the largest bundlers until the rest fits, then report to the listener.
+     * Dropped bundlers are loaded with null, as if they had never saved.
+     */
+    TRIM,
+    /** Throw {@link IllegalStateException} from the save. Best for debug builds and tests. */
+    FAIL
+  }
+
+  public interface Listener {
+    /** Called once the save has finished, so the report is complete. */
+    void onOverBudget(StateSizeReport report);
+  }
+
+  /** Reports saves over the given budget to the given listener. */
+  public static StateBudget warn(int maxBytes, Listener listener) {
+    if (listener == null) throw new NullPointerException("listener == null");
+    return new StateBudget(maxBytes, Policy.WARN, 1, listener);
+  }
+
+  /** Trims saves to the given budget, and reports them to the given listener if not null. */
+  public static StateBudget trim(int maxBytes, Listener listener) {
+    return new StateBudget(maxBytes, Policy.TRIM, 1, listener);
+  }
+
+  /** Fails saves over the given budget. */
+  public static StateBudget fail(int maxBytes) {
+    return new StateBudget(maxBytes, Policy.FAIL, 1, null);
+  }
+
+  final int maxBytes;
+  final Policy policy;
+  final int sampleEvery;
+  final Listener listener;
+
+  private StateBudget(int maxBytes, Policy policy, int sampleEvery, Listener listener) {
+    if (maxBytes < 0) throw new IllegalArgumentException("maxBytes < 0: " + maxBytes);
+    if (sampleEvery < 1) throw new IllegalArgumentException("sampleEvery < 1: " + sampleEvery);
+    this.maxBytes = maxBytes;
+    this.policy = policy;
+    this.sampleEvery = sampleEvery;
+    this.listener = listener;
+  }
+
+  /**
+   * Returns a copy of this budget that only measures one save in the given number, starting
+   * with the first. Saves that are not measured are not checked against the budget.
+   */
+  public StateBudget sampleEvery(int saves) {
+    return new StateBudget(maxBytes, policy, saves, listener);
+  }
+
+  public int getMaxBytes() {
+    return maxBytes;
+  }
+
+  public Policy getPolicy() {
+    return policy;
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import mortar.MortarScope;
+
+/**
+ * Like {@link Bundler}, but reads and writes a {@link StateContainer} instead of an {@link
+ * android.os.Bundle}, so that it works wherever {@link BundleServiceRunner} does, including on a
+ * plain JVM. Register it with {@link BundleService#register(StateBundler)}.
+ */
+public interface StateBundler {
+  /** Like {@link Bundler#onEnterScope}. */
+  void onEnterScope(MortarScope scope);
+
+  /** Like {@link Bundler#getMortarBundleKey}. */
+  String getMortarBundleKey();
+
+  /** Like {@link Bundler#onLoad}. */
+  void onLoad(StateContainer savedState);
+
+  /** Like {@link Bundler#onSave}. */
+  void onSave(StateContainer outState);
+
+  /** Like {@link Bundler#onExitScope}. */
+  void onExitScope();
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+/**
+ * Turns a {@link StateContainer} into bytes and back, e.g. to {@link SpillStore spill} large
+ * state to disk.
+ */
+public interface StateCodec {
+  /**
+   * @throws IllegalArgumentException if the container holds values this codec can't write, such
+   * as {@link android.os.Parcelable}s
+   */
+  byte[] encode(StateContainer state);
+
+  /**
+   * Adds the values encoded in the given bytes to the given container.
+   *
+   * @throws IllegalArgumentException if the bytes were not written by this codec
+   */
+  void decode(byte[] bytes, StateContainer into);
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.util.Set;
+
+/**
+ * Nested key-value state, read by {@link StateBundler#onLoad} and written by {@link
+ * StateBundler#onSave}. {@link BundleServiceRunner} only talks to this interface, so the same
+ * load and save logic runs on Android, via {@link BundleStateContainer}, and on a plain JVM, via
+ * {@link InMemoryStateContainer}.
+ * <p>
+ * Getters follow {@link android.os.Bundle}: a missing key, or one that holds a value of another
+ * type, reads as zero, false or null.
+ */
+public interface StateContainer {
+  boolean isEmpty();
+
+  boolean containsKey(String key);
+
+  Set<String> keySet();
+
+  void remove(String key);
+
+  /**
+   * Returns roughly how many bytes this container and its children take when parceled, which is
+   * what counts towards Android's binder transaction limit. Meant to be cheap enough to call on
+   * every save.
+   *
+   * @see StateBudget
+   */
+  int estimateSize();
+
+  /**
+   * Returns the value stored under the given key, or null: a {@link Boolean}, {@link Integer},
+   * {@link Long}, {@link String}, {@code byte[]} or {@link StateContainer}, or possibly something
+   * else its backing store allows. For code that handles state generically, like {@link
+   * StateCodec}s.
+   */
+  Object get(String key);
+
+  /** Returns the container stored under the given key, or null if there is none. */
+  StateContainer getChild(String key);
+
+  /** Stores a new, empty container under the given key, replacing any value, and returns it. */
+  StateContainer putChild(String key);
+
+  /**
+   * Stores the given container under the given key, replacing any value. The container must
+   * have been created by this implementation, e.g. by an earlier {@link #putChild(String)}.
+   *
+   * @throws IllegalArgumentException if the container is of another kind
+   */
+  void putChild(String key, StateContainer child);
+
+  boolean getBoolean(String key);
+
+  void putBoolean(String key, boolean value);
+
+  int getInt(String key);
+
+  void putInt(String key, int value);
+
+  long getLong(String key);
+
+  void putLong(String key, long value);
+
+  String getString(String key);
+
+  void putString(String key, String value);
+
+  byte[] getByteArray(String key);
+
+  void putByteArray(String key, byte[] value);
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Structural deltas between two saves of a {@link BundleServiceRunner}'s root state, so that a
+ * {@link Checkpointer} can persist only what changed. A root holds a child per scope, which holds
+ * an entry per bundle key, and deltas are made of whole entries: those added or changed, and the
+ * keys of those removed. A delta is itself a {@link StateContainer}, so it is encoded with the
+ * same {@link StateCodec} as full snapshots.
+ */
+final class StateDelta {
+  /** Root values written whole: new scopes, and anything that is not a scope's child. */
+  static final String REPLACED = "replaced";
+  /** Per scope, the entries added or changed. */
+  static final String CHANGED = "changed";
+  /** Per scope, true if it is gone, or else a child holding the keys of its removed entries. */
+  static final String REMOVED = "removed";
+
+  /**
+   * Writes to {@code delta} what turns {@code base} into {@code current}, and returns how many
+   * root values and scope entries it holds. Zero means nothing changed, and nothing is written.
+   */
+  static int diff(StateContainer base, StateContainer current, StateContainer delta) {
+    int count = 0;
+    StateContainer replaced = null;
+    StateContainer changed = null;
+    StateContainer removed = null;
+
+    Set<String> baseKeys = base.keySet();
+    for (String key : current.keySet()) {
+      Object value = current.get(key);
+      Object baseValue = baseKeys.contains(key) ? base.get(key) : Missing.VALUE;
+      if (value instanceof StateContainer && baseValue instanceof StateContainer) {
+        StateContainer scope = (StateContainer) value;
+        StateContainer baseScope = (StateContainer) baseValue;
+        Set<String> baseEntries = baseScope.keySet();
+        StateContainer changedEntries = null;
+        for (String entry : scope.keySet()) {
+          Object entryValue = scope.get(entry);
+          if (baseEntries.contains(entry) && equal(entryValue, baseScope.get(entry))) continue;
+          if (changed == null) changed = delta.putChild(CHANGED);
+          if (changedEntries == null) changedEntries = changed.putChild(key);
+          put(changedEntries, entry, entryValue);
+          count++;
+        }
+        StateContainer removedEntries = null;
+        for (String entry : baseEntries) {
+          if (scope.containsKey(entry)) continue;
+          if (removed == null) removed = delta.putChild(REMOVED);
+          if (removedEntries == null) removedEntries = removed.putChild(key);
+          removedEntries.putBoolean(entry, true);
+          count++;
+        }
+      } else if (!equal(value, baseValue)) {
+        if (replaced == null) replaced = delta.putChild(REPLACED);
+        put(replaced, key, value);
+        count++;
+      }
+    }
+    for (String key : baseKeys) {
+      if (current.containsKey(key)) continue;
+      if (removed == null) removed = delta.putChild(REMOVED);
+      removed.putBoolean(key, true);
+      count++;
+    }
+    return count;
+  }
+
+  /** Applies a delta made by {@link #diff} to the state it was made against, in place. */
+  static void apply(StateContainer delta, StateContainer into) {
+    StateContainer removed = delta.getChild(REMOVED);
+    if (removed != null) {
+      for (String key : removed.keySet()) {
+        StateContainer removedEntries = removed.getChild(key);
+        if (removedEntries == null) {
+          into.remove(key);
+          continue;
+        }
+        StateContainer scope = into.getChild(key);
+        if (scope == null) continue;
+        for (String entry : removedEntries.keySet()) {
+          scope.remove(entry);
+        }
+      }
+    }
+    StateContainer replaced = delta.getChild(REPLACED);
+    if (replaced != null) {
+      for (String key : replaced.keySet()) {
+        put(into, key, replaced.get(key));
+      }
+    }
+    StateContainer changed = delta.getChild(CHANGED);
+    if (changed != null) {
+      for (String key : changed.keySet()) {
+        StateContainer changedEntries = changed.getChild(key);
+        StateContainer scope = into.getChild(key);
+        if (scope == null) scope = into.putChild(key);
+        for (String entry : changedEntries.keySet()) {
+          put(scope, entry, changedEntries.get(entry));
+        }
+      }
+    }
+  }
+
+  /** Deep equality of values read with {@link StateContainer#get}. */
+  static boolean equal(Object a, Object b) {
+    if (a == b) return true;
+    if (a == null || b == null) return false;
+    if (a instanceof byte[] && b instanceof byte[]) return Arrays.equals((byte[]) a, (byte[]) b);
+    if (a instanceof StateContainer && b instanceof StateContainer) {
+      StateContainer left = (StateContainer) a;
+      StateContainer right = (StateContainer) b;
+      Set<String> keys = left.keySet();
+      if (!keys.equals(right.keySet())) return false;
+      for (String key : keys) {
+        if (!equal(left.get(key), right.get(key))) return false;
+      }
+      return true;
+    }
+    return a.equals(b);
+  }
+
+  /**
+   * Copies everything in one container to another, which may be of another kind.
+   *
+   * @throws IllegalArgumentException if a value is not one of the types {@link StateContainer}
+   * has accessors for
+   */
+  static void copy(StateContainer from, StateContainer into) {
+    for (String key : from.keySet()) {
+      put(into, key, from.get(key));
+    }
+  }
+
+  /** Copies a value read with {@link StateContainer#get} into the given container. */
+  private static void put(StateContainer out, String key, Object value) {
+    if (value instanceof StateContainer) {
+      copy((StateContainer) value, out.putChild(key));
+    } else if (value instanceof Boolean) {
+      out.putBoolean(key, (Boolean) value);
+    } else if (value instanceof Integer) {
+      out.putInt(key, (Integer) value);
+    } else if (value instanceof Long) {
+      out.putLong(key, (Long) value);
+    } else if (value instanceof String) {
+      out.putString(key, (String) value);
+    } else if (value instanceof byte[]) {
+      out.putByteArray(key, (byte[]) value);
+    } else if (value == null) {
+      out.putString(key, null);
+    } else {
+      throw new IllegalArgumentException(
+          String.format("Cannot copy \"%s\", a %s", key, value.getClass().getName()));
+    }
+  }
+
+  /** Stands for a key that is not there, as opposed to one that holds null. */
+  private enum Missing {
+    VALUE
+  }
+
+  private StateDelta() {
+  }
+}
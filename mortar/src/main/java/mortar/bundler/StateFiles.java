@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/** Whole-file reads and writes for state kept on disk. */
+final class StateFiles {
+  /**
+   * Writes the given bytes to a temporary file next to the given one, and renames it into place,
+   * so that a process killed mid-write never leaves a truncated file behind. Syncs the file
+   * first, so that a crash of the device doesn't leave one behind either.
+   */
+  static void writeAtomically(File file, byte[] bytes) throws IOException {
+    writeAtomically(file, bytes, true);
+  }
+
+  /**
+   * Like {@link #writeAtomically(File, byte[])}, but only syncs if asked to. Unsynced files
+   * survive the process, which is all some state needs, and are much quicker to write.
+   */
+  static void writeAtomically(File file, byte[] bytes, boolean sync) throws IOException {
+    File directory = file.getParentFile();
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    File temp = new File(directory, file.getName() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temp);
+    try {
+      out.write(bytes);
+      if (sync) out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Cannot rename " + temp);
+    }
+  }
+
+  /**
+   * Adds the given bytes to the end of the given file, creating it if needed, and syncs it. A
+   * process killed mid-write can leave only part of them behind, so readers must check.
+   */
+  static void append(File file, byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(file, true);
+    try {
+      out.write(bytes);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Returns the contents of the given file, or null if there is no such file. */
+  static byte[] read(File file) throws IOException {
+    if (!file.isFile()) return null;
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      byte[] bytes = new byte[(int) in.length()];
+      in.readFully(bytes);
+      return bytes;
+    } finally {
+      in.close();
+    }
+  }
+
+  private StateFiles() {
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+/**
+ * Upgrades a {@link VersionedState} bundler's saved state by one version.
+ *
+ * @see BundleServiceRunner#registerMigration
+ */
+public interface StateMigration {
+  /**
+   * Rewrites the given state, saved at the version this migration was registered for, in place
+   * into the next version. Called on the main thread, right before the bundler is loaded, and only
+   * for scopes that are visited again: state that is never loaded is never migrated.
+   *
+   * @return false to drop the state instead, so the bundler loads null
+   */
+  boolean migrate(StateContainer state);
+}
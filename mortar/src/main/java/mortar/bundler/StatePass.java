@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * One load or save pass of a {@link BundleServiceRunner}: the runner's settings as they were when
+ * the pass began, and what a save has counted and measured so far. Handed to each {@link
+ * BundleService} the pass loads or saves, and kept by the pass's {@link PendingSave}s, so that
+ * neither depends on the runner's fields, nor on what a {@link Checkpointer} does to them.
+ */
+final class StatePass {
+  final SpillStore spillStore;
+  final int spillThresholdBytes;
+  final StateCodec codec;
+  final Compressor compressor;
+  final int compressionThresholdBytes;
+  final CompressionStats compressionStats;
+  /** Null if not tracing, so that section names are not built for nothing. */
+  final StateTracer tracer;
+  /** Null if not profiling. */
+  final BundlerStats bundlerStats;
+  /** True for a {@link BundleServiceRunner#saveCheckpoint checkpoint}, which doesn't spill. */
+  final boolean checkpointing;
+
+  /** Not null while a save is {@link SnapshotBundler two-phase}. */
+  final Executor saveExecutor;
+  final List<PendingSave> pendingSaves;
+  /** Not null while a save is being {@link StateBudget measured}. */
+  final List<StateSizeReport.Entry> measured;
+  /** Bundlers asked to save, and {@link DirtyTracking clean} ones skipped, so far. */
+  int savedCount;
+  int skippedCount;
+
+  static StatePass load(BundleServiceRunner runner) {
+    return new StatePass(runner, false, null, false);
+  }
+
+  static StatePass save(BundleServiceRunner runner, boolean checkpointing, boolean measure) {
+    return new StatePass(runner, checkpointing, runner.saveExecutor, measure);
+  }
+
+  private StatePass(BundleServiceRunner runner, boolean checkpointing, Executor saveExecutor,
+      boolean measure) {
+    this.spillStore = runner.spillStore;
+    this.spillThresholdBytes = runner.spillThresholdBytes;
+    this.codec = runner.codec;
+    this.compressor = runner.compressor;
+    this.compressionThresholdBytes = runner.compressionThresholdBytes;
+    this.compressionStats = runner.compressionStats;
+    this.tracer = runner.tracer == StateTracer.NONE ? null : runner.tracer;
+    this.bundlerStats = runner.profiling ? runner.bundlerStats : null;
+    this.checkpointing = checkpointing;
+    this.saveExecutor = saveExecutor;
+    this.pendingSaves = saveExecutor == null ? null : new ArrayList<PendingSave>();
+    this.measured = measure ? new ArrayList<StateSizeReport.Entry>() : null;
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Estimated sizes of the state written by one {@link BundleServiceRunner#saveState save}, per
+ * bundler, as measured for a {@link StateBudget}. See {@link StateContainer#estimateSize()}.
+ */
+public final class StateSizeReport {
+  /** What one bundler wrote. */
+  public static final class Entry {
+    private final String scopePath;
+    private final String bundleKey;
+    private final int bytes;
+    private final boolean trimmed;
+    /** Where the bundler's state is stored under {@link #bundleKey}, for trimming. */
+    final StateContainer scopeState;
+
+    Entry(String scopePath, String bundleKey, int bytes, boolean trimmed,
+        StateContainer scopeState) {
+      this.scopePath = scopePath;
+      this.bundleKey = bundleKey;
+      this.bytes = bytes;
+      this.trimmed = trimmed;
+      this.scopeState = scopeState;
+    }
+
+    /** The {@link mortar.MortarScope#getPath() path} of the bundler's scope. */
+    public String getScopePath() {
+      return scopePath;
+    }
+
+    /** The bundler's {@link Bundler#getMortarBundleKey() key}. */
+    public String getBundleKey() {
+      return bundleKey;
+    }
+
+    public int getBytes() {
+      return bytes;
+    }
+
+    /** True if the {@link StateBudget.Policy#TRIM TRIM} policy dropped this state. */
+    public boolean isTrimmed() {
+      return trimmed;
+    }
+
+    Entry trim() {
+      return new Entry(scopePath, bundleKey, bytes, true, scopeState);
+    }
+
+    @Override public String toString() {
+      return format("%8d bytes  %s %s%s", bytes, scopePath, bundleKey, trimmed ? " (trimmed)" : "");
+    }
+  }
+
+  static final Comparator<Entry> LARGEST_FIRST = new Comparator<Entry>() {
+    @Override public int compare(Entry left, Entry right) {
+      return left.bytes < right.bytes ? 1 : left.bytes > right.bytes ? -1 : 0;
+    }
+  };
+
+  private final int budgetBytes;
+  private final List<Entry> entries;
+
+  /** @param entries largest first */
+  StateSizeReport(int budgetBytes, List<Entry> entries) {
+    this.budgetBytes = budgetBytes;
+    this.entries = Collections.unmodifiableList(entries);
+  }
+
+  public int getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  /** The estimated size of everything that was written, trimmed state included. */
+  public int getTotalBytes() {
+    return sum(false);
+  }
+
+  /** The estimated size of what was left after {@link StateBudget.Policy#TRIM trimming}. */
+  public int getRetainedBytes() {
+    return sum(true);
+  }
+
+  public boolean isOverBudget() {
+    return getTotalBytes() > budgetBytes;
+  }
+
+  /** One per bundler, largest first. */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /** The given number of {@link #getEntries() entries} at most, largest first. */
+  public List<Entry> getTopContributors(int count) {
+    return entries.subList(0, Math.min(count, entries.size()));
+  }
+
+  /** Total bytes per {@link Entry#getScopePath() scope}, largest first. */
+  public Map<String, Integer> getScopeTotals() {
+    final Map<String, Integer> totals = new LinkedHashMap<>();
+    for (Entry entry : entries) {
+      Integer total = totals.get(entry.scopePath);
+      totals.put(entry.scopePath, (total == null ? 0 : total) + entry.bytes);
+    }
+    List<String> scopes = new ArrayList<>(totals.keySet());
+    Collections.sort(scopes, new Comparator<String>() {
+      @Override public int compare(String left, String right) {
+        return totals.get(right).compareTo(totals.get(left));
+      }
+    });
+    Map<String, Integer> sorted = new LinkedHashMap<>();
+    for (String scope : scopes) {
+      sorted.put(scope, totals.get(scope));
+    }
+    return sorted;
+  }
+
+  private int sum(boolean skipTrimmed) {
+    int total = 0;
+    for (Entry entry : entries) {
+      if (!skipTrimmed || !entry.trimmed) total += entry.bytes;
+    }
+    return total;
+  }
+
+  @Override public String toString() {
+    StringBuilder result = new StringBuilder(format("Saved state is ~%d bytes, budget is %d\n",
+        getTotalBytes(), budgetBytes));
+    for (Entry entry : entries) {
+      result.append(entry).append('\n');
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+/**
+ * Receives the begin and end of each section of work {@link BundleServiceRunner} does to load and
+ * save state: each load pass and save, each scope saved, and each bundler loaded or saved. Sections
+ * nest, and each {@link #beginSection} is followed by exactly one {@link #endSection}, on the
+ * main thread.
+ * <p>
+ * To see them in systrace, forward both calls to {@code android.os.Trace}, which requires names
+ * no longer than 127 characters:
+ *
+ * <pre>{@code
+ * runner.setTracer(new StateTracer() {
+ *   public void beginSection(String name) {
+ *     Trace.beginSection(name.length() > 127 ? name.substring(0, 127) : name);
+ *   }
+ *
+ *   public void endSection() {
+ *     Trace.endSection();
+ *   }
+ * });
+ * }</pre>
+ *
+ * @see BundleServiceRunner#setTracer
+ * @see RecordingStateTracer
+ */
+public interface StateTracer {
+  /** Does nothing, the default. Names are not even built for it. */
+  StateTracer NONE = new StateTracer() {
+    @Override public void beginSection(String name) {
+    }
+
+    @Override public void endSection() {
+    }
+  };
+
+  void beginSection(String name);
+
+  /** Ends the innermost section that has not ended yet. */
+  void endSection();
+}
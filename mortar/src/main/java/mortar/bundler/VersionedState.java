@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mortar.bundler;
+
+/**
+ * Implemented by a {@link Bundler} or {@link StateBundler} whose saved state changes shape from
+ * one release to the next. {@link BundleService} saves the version next to the state, and when
+ * state saved at an older version is loaded, upgrades it first with the {@link StateMigration}s
+ * {@link BundleServiceRunner#registerMigration registered} for the bundle key. State that can't
+ * be upgraded, or that was saved at a newer version, is dropped: the bundler loads null.
+ * <p>
+ * Versions start at zero, which is also the version of state saved by bundlers that don't
+ * implement this interface, and only go up. {@link mortar.Presenter}s declare theirs with {@link
+ * mortar.Presenter#getStateVersion}.
+ */
+public interface VersionedState {
+  /** Read when the bundler is loaded and saved. */
+  int getStateVersion();
+}
@@ -0,0 +1,217 @@
+package mortar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class ConcurrentMortarScopeTest {
+  private static final int THREADS = 8;
+
+  private ExecutorService executor;
+
+  @Before public void setUp() {
+    executor = Executors.newFixedThreadPool(THREADS);
+  }
+
+  @After public void tearDown() throws InterruptedException {
+    executor.shutdownNow();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test public void onlyRootCanOptIn() {
+    MortarScope root = MortarScope.buildRootScope().build("root");
+    try {
+      root.buildChild().withConcurrentAccess();
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessageContaining("root");
+    }
+  }
+
+  @Test public void backgroundThreadSeesDestroy() throws Exception {
+    final MortarScope root = MortarScope.buildRootScope().withConcurrentAccess().build("root");
+    final MortarScope child = root.buildChild().build("child");
+    final CountDownLatch started = new CountDownLatch(1);
+
+    Future<Boolean> watcher = executor.submit(new Callable<Boolean>() {
+      @Override public Boolean call() {
+        started.countDown();
+        while (!child.isDestroyed()) {
+          // Spin. Without a happens-before edge this loop may never exit.
+        }
+        return true;
+      }
+    });
+
+    started.await();
+    root.destroy();
+    assertThat(watcher.get(10, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test public void lookupsRaceWithChildChurn() throws Exception {
+    final Object rootService = new Object();
+    final MortarScope root = MortarScope.buildRootScope()
+        .withConcurrentAccess()
+        .withService("root", rootService)
+        .build("root");
+    final ServiceKey<String> key = ServiceKey.create("child", String.class);
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<MortarScope> current = new AtomicReference<>();
+    current.set(root.buildChild().withService(key, "child0").build("child0"));
+    // Churn lasts until every reader got a lookup in, which may take a while on a single core.
+    final CountDownLatch looked = new CountDownLatch(THREADS - 1);
+
+    List<Future<Integer>> readers = new ArrayList<>();
+    for (int i = 0; i < THREADS - 1; i++) {
+      readers.add(executor.submit(new Callable<Integer>() {
+        @Override public Integer call() {
+          int lookups = 0;
+          while (!done.get()) {
+            MortarScope scope = current.get();
+            try {
+              assertThat(scope.getService("root")).isSameAs(rootService);
+              assertThat(scope.getService(key)).isEqualTo(scope.getName());
+              assertThat(scope.<String>getService(key.getName())).isEqualTo(scope.getName());
+              assertThat(scope.hasService("missing")).isFalse();
+              MortarScope found = root.findChild(scope.getName());
+              if (found != null) assertThat(found).isSameAs(scope);
+              if (lookups++ == 0) looked.countDown();
+            } catch (IllegalStateException e) {
+              // Destroyed out from under us, which is fine as long as it says so.
+              assertThat(scope.isDestroyed()).isTrue();
+            }
+          }
+          return lookups;
+        }
+      }));
+    }
+
+    for (int i = 1; i <= 2000 || looked.getCount() > 0 && !anyDone(readers); i++) {
+      MortarScope previous = current.get();
+      current.set(root.buildChild().withService(key, "child" + i).build("child" + i));
+      previous.destroy();
+    }
+    done.set(true);
+
+    for (Future<Integer> reader : readers) {
+      assertThat(reader.get(10, TimeUnit.SECONDS)).isGreaterThan(0);
+    }
+    assertThat(root.children).hasSize(1);
+  }
+
+  @Test public void lazyServiceCreatedOnceUnderContention() throws Exception {
+    final AtomicInteger created = new AtomicInteger();
+    final MortarScope root = MortarScope.buildRootScope()
+        .withConcurrentAccess()
+        .withLazyService("lazy", new ServiceProvider<Object>() {
+          @Override public Object get() {
+            created.incrementAndGet();
+            return new Object();
+          }
+        })
+        .build("root");
+    final MortarScope child = root.buildChild().build("child");
+    final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+
+    List<Future<Object>> results = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      results.add(executor.submit(new Callable<Object>() {
+        @Override public Object call() throws Exception {
+          barrier.await();
+          return child.getService("lazy");
+        }
+      }));
+    }
+
+    Object first = results.get(0).get(10, TimeUnit.SECONDS);
+    for (Future<Object> result : results) {
+      assertThat(result.get(10, TimeUnit.SECONDS)).isSameAs(first);
+    }
+    assertThat(created.get()).isEqualTo(1);
+  }
+
+  @Test public void concurrentBuildAndRegister() throws Exception {
+    final MortarScope root = MortarScope.buildRootScope().withConcurrentAccess().build("root");
+    final AtomicInteger entered = new AtomicInteger();
+    final AtomicInteger exited = new AtomicInteger();
+    final Scoped shared = new CountingScoped(entered, exited);
+    final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+    final int perThread = 100;
+
+    List<Future<Integer>> builders = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      builders.add(executor.submit(new Callable<Integer>() {
+        @Override public Integer call() throws Exception {
+          barrier.await();
+          int duplicates = 0;
+          for (int i = 0; i < perThread; i++) {
+            MortarScope child = root.buildChild().build("child-" + thread + "-" + i);
+            child.register(new CountingScoped(entered, exited));
+            try {
+              child.register(shared);
+            } catch (IllegalStateException e) {
+              duplicates++;
+            }
+          }
+          return duplicates;
+        }
+      }));
+    }
+
+    int duplicates = 0;
+    for (Future<Integer> builder : builders) {
+      duplicates += builder.get(10, TimeUnit.SECONDS);
+    }
+
+    int scopes = THREADS * perThread;
+    assertThat(root.children).hasSize(scopes);
+    assertThat(duplicates).isEqualTo(scopes - 1);
+    assertThat(entered.get()).isEqualTo(scopes + 1);
+
+    root.destroy();
+    assertThat(exited.get()).isEqualTo(scopes + 1);
+    assertThat(root.children).isEmpty();
+  }
+
+  private static class CountingScoped implements Scoped {
+    final AtomicInteger entered;
+    final AtomicInteger exited;
+
+    CountingScoped(AtomicInteger entered, AtomicInteger exited) {
+      this.entered = entered;
+      this.exited = exited;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+      entered.incrementAndGet();
+    }
+
+    @Override public void onExitScope() {
+      exited.incrementAndGet();
+    }
+  }
+
+  /** True if a reader quit early, which only an assertion failure makes it do. */
+  private static boolean anyDone(List<Future<Integer>> futures) {
+    for (Future<Integer> future : futures) {
+      if (future.isDone()) return true;
+    }
+    return false;
+  }
+}
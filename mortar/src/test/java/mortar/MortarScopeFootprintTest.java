@@ -0,0 +1,207 @@
+package mortar;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+/** Checks what a destroyed scope, still held by some context or view, keeps alive. */
+public class MortarScopeFootprintTest {
+  /** Fields that point outside of the scope itself, and are retained by live scopes anyway. */
+  private static final List<String> SHARED_FIELDS =
+      Arrays.asList("parent", "root", "lock", "teardownListener");
+
+  @Test public void destroyedScopeReleasesServicesRegistrantsAndChildren() {
+    MortarScope root = MortarScope.buildRootScope().build("root");
+    Object service = new Object();
+    Object lazyService = new Object();
+    Scoped registrant = new NoOpScoped();
+    Object grandchildService = new Object();
+    ServiceKey<Object> key = ServiceKey.create("keyed", Object.class);
+
+    MortarScope child = root.buildChild()
+        .withService("service", service)
+        .withService(key, service)
+        .withLazyService("lazy", new FixedProvider(lazyService))
+        .build("child");
+    child.register(registrant);
+    child.buildChild().withService("grandchild", grandchildService).build("grandchild");
+    assertThat(child.getService("lazy")).isSameAs(lazyService);
+    assertThat(child.getService(key)).isSameAs(service);
+
+    List<WeakReference<Object>> refs = new ArrayList<>();
+    refs.add(new WeakReference<>(service));
+    refs.add(new WeakReference<>(lazyService));
+    refs.add(new WeakReference<Object>(registrant));
+    refs.add(new WeakReference<>(grandchildService));
+    refs.add(new WeakReference<Object>(child.findChild("grandchild")));
+    service = null;
+    lazyService = null;
+    registrant = null;
+    grandchildService = null;
+
+    child.destroy();
+    for (WeakReference<Object> ref : refs) {
+      awaitCleared(ref);
+    }
+
+    // The shell still answers the questions it always has.
+    assertThat(child.isDestroyed()).isTrue();
+    assertThat(child.hasService("service")).isTrue();
+    assertThat(child.hasService(key)).isTrue();
+    assertThat(child.hasService("nope")).isFalse();
+  }
+
+  @Test public void unrequestedLazyProviderIsReleased() {
+    MortarScope root = MortarScope.buildRootScope()
+        .withLazyService("lazy", new FixedProvider(new Object()))
+        .build("root");
+    WeakReference<Object> ref = new WeakReference<>(providerOf(root));
+
+    root.destroy();
+    awaitCleared(ref);
+    assertThat(root.hasService("lazy")).isTrue();
+  }
+
+  @Test public void destroyedShellDropsCollectionsItGrew() {
+    MortarScope scope = build("heavy", 500);
+    Map<Field, Object> grown = new LinkedHashMap<>();
+    for (Field field : collectionFields()) {
+      Object value = get(field, scope);
+      if (size(value) > 0) grown.put(field, value);
+    }
+    assertThat(grown).isNotEmpty();
+
+    scope.destroy();
+    for (Map.Entry<Field, Object> entry : grown.entrySet()) {
+      Field field = entry.getKey();
+      Object value = get(field, scope);
+      // Emptying in place would keep the capacity the collection grew to.
+      assertThat(value).as(field.getName()).isNotSameAs(entry.getValue());
+      if (!(value instanceof Object[])) assertThat(size(value)).as(field.getName()).isZero();
+    }
+  }
+
+  @Test public void destroyedShellKeepsOnlyServiceNames() {
+    MortarScope light = build("light", 1);
+    MortarScope heavy = build("heavy", 500);
+    assertThat(retainedElements(heavy)).isGreaterThan(retainedElements(light));
+
+    light.destroy();
+    heavy.destroy();
+    assertThat(retainedElements(light)).isEqualTo(2);
+    assertThat(retainedElements(heavy)).isEqualTo(2);
+  }
+
+  /** Same service names in every scope; the payload grows with {@code size}. */
+  private static MortarScope build(String name, int size) {
+    MortarScope scope = MortarScope.buildRootScope()
+        .withService("a", new byte[size])
+        .withService("b", new ArrayList<>(Arrays.asList(new Object[size])))
+        .build(name);
+    for (int i = 0; i < size; i++) {
+      scope.register(new NoOpScoped());
+      scope.buildChild().build("child" + i);
+      scope.hasService("miss" + i);
+    }
+    return scope;
+  }
+
+  /**
+   * Counts the elements held by the scope's own collection and array fields. Good enough to tell
+   * a shell from a scope that still holds its contents, without reaching into JDK internals.
+   */
+  private static long retainedElements(MortarScope scope) {
+    long count = 0;
+    for (Field field : collectionFields()) {
+      count += size(get(field, scope));
+    }
+    return count;
+  }
+
+  /** The scope's own map, collection and array fields, less those it shares with its parent. */
+  private static List<Field> collectionFields() {
+    List<Field> fields = new ArrayList<>();
+    for (Field field : MortarScope.class.getDeclaredFields()) {
+      if (Modifier.isStatic(field.getModifiers())) continue;
+      if (SHARED_FIELDS.contains(field.getName())) continue;
+      Class<?> type = field.getType();
+      if (Map.class.isAssignableFrom(type) || Collection.class.isAssignableFrom(type)
+          || type.isArray()) {
+        field.setAccessible(true);
+        fields.add(field);
+      }
+    }
+    return fields;
+  }
+
+  private static Object get(Field field, MortarScope scope) {
+    try {
+      return field.get(scope);
+    } catch (IllegalAccessException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static int size(Object value) {
+    if (value instanceof Map) return ((Map<?, ?>) value).size();
+    if (value instanceof Collection) return ((Collection<?>) value).size();
+    if (value instanceof Object[]) return ((Object[]) value).length;
+    return 0;
+  }
+
+  private static Object providerOf(MortarScope scope) {
+    // The provider is only reachable through the scope, which is the point.
+    try {
+      Field services = MortarScope.class.getDeclaredField("services");
+      services.setAccessible(true);
+      Object lazy = ((Map<?, ?>) services.get(scope)).get("lazy");
+      Field provider = lazy.getClass().getDeclaredField("provider");
+      provider.setAccessible(true);
+      return provider.get(lazy);
+    } catch (ReflectiveOperationException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void awaitCleared(WeakReference<?> ref) {
+    for (int i = 0; i < 50 && ref.get() != null; i++) {
+      System.gc();
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+    if (ref.get() != null) fail("Still reachable: " + ref.get());
+  }
+
+  private static class FixedProvider implements ServiceProvider<Object> {
+    private final Object service;
+
+    FixedProvider(Object service) {
+      this.service = service;
+    }
+
+    @Override public Object get() {
+      return service;
+    }
+  }
+
+  private static class NoOpScoped implements Scoped {
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+}
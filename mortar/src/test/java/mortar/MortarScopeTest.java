@@ -1,8 +1,12 @@
 package mortar;
 
 import android.content.Context;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -14,6 +18,10 @@ import static org.fest.assertions.api.Assertions.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -63,6 +71,13 @@ public class MortarScopeTest {
     assertThat(childScope.getPath()).isEqualTo("Root" + DIVIDER + "Child");
   }
 
+  @Test public void pathIsComputedOnce() {
+    MortarScope rootScope = scopeBuilder.build("Root");
+    MortarScope grandchild = rootScope.buildChild().build("Child").buildChild().build("Grand");
+    assertThat(grandchild.getPath()).isEqualTo("Root" + DIVIDER + "Child" + DIVIDER + "Grand");
+    assertThat(grandchild.getPath()).isSameAs(grandchild.getPath());
+  }
+
   @Test public void findParentServiceFromChildScope() {
     Object dummyService = new Object();
     MortarScope rootScope = scopeBuilder.withService("ServiceOne", dummyService).build("Root");
@@ -150,6 +165,65 @@ public class MortarScopeTest {
     rootScope.destroy();
   }
 
+  @Test public void registrantsExitInReverseOrder() {
+    MortarScope root = scopeBuilder.build("root");
+    List<String> exits = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      root.register(new RecordingScoped("scoped" + i, exits));
+    }
+
+    root.destroy();
+    for (int i = 0; i < 20; i++) {
+      assertThat(exits.get(i)).isEqualTo("scoped" + (19 - i));
+    }
+  }
+
+  @Test public void higherPriorityRegistrantsExitFirst() {
+    MortarScope root = scopeBuilder.build("root");
+    List<String> exits = new ArrayList<>();
+    root.register(new RecordingScoped("cheap1", exits));
+    root.register(new RecordingScoped("expensive1", exits), 10);
+    root.register(new RecordingScoped("cheap2", exits));
+    root.register(new RecordingScoped("expensive2", exits), 10);
+    root.register(new RecordingScoped("last", exits), -1);
+
+    root.destroy();
+    assertThat(exits).containsExactly("expensive2", "expensive1", "cheap2", "cheap1", "last");
+  }
+
+  @Test public void teardownListenerReportsEachRegistrant() {
+    final List<TeardownReport> reports = new ArrayList<>();
+    MortarScope root = scopeBuilder.withTeardownListener(new TeardownListener() {
+      @Override public void onScopeTornDown(TeardownReport report) {
+        reports.add(report);
+      }
+    }).build("root");
+    MortarScope child = root.buildChild().build("child");
+    List<String> exits = new ArrayList<>();
+    Scoped first = new RecordingScoped("first", exits);
+    Scoped second = new RecordingScoped("second", exits);
+    root.register(first);
+    root.register(second, 5);
+    child.register(scoped);
+
+    root.destroy();
+
+    assertThat(reports).hasSize(2);
+    assertThat(reports.get(0).getScopePath()).isEqualTo(child.getPath());
+    assertThat(reports.get(0).getEntries()).hasSize(1);
+    assertThat(reports.get(0).getEntries().get(0).getScoped()).isSameAs(scoped);
+
+    TeardownReport rootReport = reports.get(1);
+    assertThat(rootReport.getScopePath()).isEqualTo("root");
+    assertThat(rootReport.getEntries()).hasSize(2);
+    assertThat(rootReport.getEntries().get(0).getScoped()).isSameAs(second);
+    assertThat(rootReport.getEntries().get(0).getPriority()).isEqualTo(5);
+    assertThat(rootReport.getEntries().get(1).getScoped()).isSameAs(first);
+    assertThat(rootReport.getEntries().get(1).getElapsedNanos()).isGreaterThanOrEqualTo(0);
+    assertThat(rootReport.getTotalNanos()).isGreaterThanOrEqualTo(0);
+    assertThat(rootReport.toString()).contains("second").contains("first");
+  }
+
   @Test public void getScope() {
     MortarScope root = scopeBuilder.build("root");
     Context context = mockContext(root);
@@ -317,6 +391,494 @@ public class MortarScopeTest {
     }
   }
 
+  @Test public void alreadyRegisteredInSibling() {
+    MortarScope root = scopeBuilder.build("root");
+    MortarScope left = root.buildChild().build("left");
+    MortarScope right = root.buildChild().build("right-123");
+    when(scoped.toString()).thenReturn("scoped-123");
+
+    right.register(scoped);
+
+    try {
+      left.buildChild().build("grandchild").register(scoped);
+      fail("Expected IllegalStateException.");
+    } catch (IllegalStateException ex) {
+      assertThat(ex.getMessage())
+          .contains("already registered")
+          .contains("scoped-123")
+          .contains("right-123");
+    }
+  }
+
+  @Test public void canRegisterAgainAfterScopeDestroyed() {
+    MortarScope root = scopeBuilder.build("root");
+    MortarScope child = root.buildChild().build("child");
+
+    child.register(scoped);
+    child.destroy();
+    root.register(scoped);
+
+    verify(scoped).onEnterScope(child);
+    verify(scoped).onExitScope();
+    verify(scoped).onEnterScope(root);
+  }
+
+  @Test public void canRegisterInSeparateHierarchies() {
+    MortarScope one = scopeBuilder.build("one");
+    MortarScope two = MortarScope.buildRootScope().build("two");
+
+    one.register(scoped);
+    two.register(scoped);
+
+    verify(scoped).onEnterScope(one);
+    verify(scoped).onEnterScope(two);
+  }
+
+  @Test public void redundantRegistrationIsIgnored() {
+    MortarScope root = scopeBuilder.build("root");
+    MortarScope child = root.buildChild().build("child");
+
+    child.register(scoped);
+    child.register(scoped);
+    child.destroy();
+
+    verify(scoped, times(1)).onEnterScope(child);
+    verify(scoped, times(1)).onExitScope();
+  }
+
+  @Test public void equalRegistrantsAreRegisteredSeparately() {
+    List<String> exits = new ArrayList<>();
+    MortarScope root = scopeBuilder.build("root");
+    MortarScope child = root.buildChild().build("child");
+    Scoped first = new EqualRecordingScoped("first", exits);
+    Scoped second = new EqualRecordingScoped("second", exits);
+    assertThat(first).isEqualTo(second);
+
+    root.register(first);
+    child.register(second);
+    root.destroy();
+
+    assertThat(exits).containsExactly("second", "first");
+  }
+
+  @Test public void repeatedLookupsFromDeepScopeResolveToAncestor() {
+    Object high = new Object();
+    MortarScope scope = scopeBuilder.withService("HIGH", high).build("root");
+    for (int i = 0; i < 8; i++) {
+      scope = scope.buildChild().build("child" + i);
+    }
+
+    assertThat(scope.getService("HIGH")).isSameAs(high);
+    assertThat(scope.getService("HIGH")).isSameAs(high);
+    assertThat(scope.hasService("LOW")).isFalse();
+    assertThat(scope.hasService("LOW")).isFalse();
+  }
+
+  @Test public void newChildSeesServiceResolvedByParent() {
+    Object service = new Object();
+    MortarScope root = scopeBuilder.withService("ServiceOne", service).build("root");
+    MortarScope child = root.buildChild().build("child");
+    assertThat(child.getService("ServiceOne")).isSameAs(service);
+
+    MortarScope grandchild = child.buildChild().build("grandchild");
+    assertThat(grandchild.getService("ServiceOne")).isSameAs(service);
+  }
+
+  @Test public void childShadowsResolvedParentService() {
+    Object high = new Object();
+    Object low = new Object();
+    MortarScope root = scopeBuilder.withService("ServiceOne", high).build("root");
+    assertThat(root.getService("ServiceOne")).isSameAs(high);
+
+    MortarScope child = root.buildChild().withService("ServiceOne", low).build("child");
+    assertThat(child.getService("ServiceOne")).isSameAs(low);
+    assertThat(root.getService("ServiceOne")).isSameAs(high);
+  }
+
+  @Test public void builderReuseDoesNotChangeBuiltScope() {
+    MortarScope first = scopeBuilder.withService("ServiceOne", new Object()).build("first");
+    assertThat(first.hasService("ServiceTwo")).isFalse();
+
+    scopeBuilder.withService("ServiceTwo", new Object()).build("second");
+    assertThat(first.hasService("ServiceTwo")).isFalse();
+  }
+
+  @Test public void throwIfResolvedServiceRequestedAfterDestroyed() {
+    Object service = new Object();
+    MortarScope root = scopeBuilder.withService("ServiceOne", service).build("root");
+    MortarScope child = root.buildChild().build("child");
+    assertThat(child.getService("ServiceOne")).isSameAs(service);
+
+    child.destroy();
+    assertThat(child.hasService("ServiceOne")).isTrue();
+    try {
+      child.getService("ServiceOne");
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessageContaining("destroyed");
+    }
+    assertThat(root.getService("ServiceOne")).isSameAs(service);
+  }
+
+  @Test public void contextFindsScopeServicesAndFallsBackToBase() {
+    Object service = new Object();
+    MortarScope root = scopeBuilder.withService("ServiceOne", service).build("root");
+    Context base = mock(Context.class);
+    when(base.getSystemService("Framework")).thenReturn("framework");
+
+    Context context = root.createContext(base);
+    assertThat(context.getSystemService("ServiceOne")).isSameAs(service);
+    assertThat(context.getSystemService("Framework")).isEqualTo("framework");
+    assertThat(MortarScope.getScope(context)).isSameAs(root);
+
+    root.destroy();
+    assertThat(context.getSystemService("Framework")).isEqualTo("framework");
+    try {
+      context.getSystemService("ServiceOne");
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessageContaining("destroyed");
+    }
+  }
+
+  @Test public void serviceKeyBindsNameToo() {
+    ServiceKey<String> key = ServiceKey.create("Greeting", String.class);
+    MortarScope root = scopeBuilder.withService(key, "hello").build("root");
+    MortarScope child = root.buildChild().build("child");
+
+    assertThat(child.getService(key)).isEqualTo("hello");
+    assertThat(child.getService(key)).isEqualTo("hello");
+    assertThat(child.hasService(key)).isTrue();
+    assertThat(child.<String>getService("Greeting")).isEqualTo("hello");
+  }
+
+  @Test public void serviceKeyFindsServiceBoundByName() {
+    Object service = new Object();
+    ServiceKey<Object> key = ServiceKey.create("ServiceOne", Object.class);
+    MortarScope root = scopeBuilder.withService("ServiceOne", service).build("root");
+    assertThat(root.getService(key)).isSameAs(service);
+  }
+
+  @Test public void serviceKeyRejectsWrongType() {
+    ServiceKey<Integer> key = ServiceKey.create("ServiceOne", Integer.class);
+    MortarScope root = scopeBuilder.withService("ServiceOne", "not a number").build("root");
+    try {
+      root.getService(key);
+      fail();
+    } catch (ClassCastException e) {
+      // pass
+    }
+  }
+
+  @Test public void throwIfNoServiceFoundForKey() {
+    ServiceKey<Object> key = ServiceKey.create("SearchThis", Object.class);
+    MortarScope root = scopeBuilder.build("root");
+    assertThat(root.hasService(key)).isFalse();
+    try {
+      root.getService(key);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("No service found named \"SearchThis\"");
+    }
+  }
+
+  @Test public void throwIfServiceKeyUsedAfterDestroyed() {
+    ServiceKey<Object> key = ServiceKey.create("ServiceOne", Object.class);
+    MortarScope root = scopeBuilder.withService(key, new Object()).build("root");
+    root.getService(key);
+    root.destroy();
+    assertThat(root.hasService(key)).isTrue();
+    try {
+      root.getService(key);
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessageContaining("destroyed");
+    }
+  }
+
+  @Test public void scopedServiceBoundByKeyIsRegistered() {
+    ServiceKey<Scoped> key = ServiceKey.create("Scoped", Scoped.class);
+    MortarScope root = scopeBuilder.withService(key, scoped).build("root");
+    verify(scoped).onEnterScope(root);
+    assertThat(root.getService(key)).isSameAs(scoped);
+  }
+
+  @Test public void lazyServiceCreatedOnFirstRequest() {
+    final AtomicInteger created = new AtomicInteger();
+    MortarScope root = scopeBuilder.withLazyService("Lazy", new ServiceProvider<Object>() {
+      @Override public Object get() {
+        created.incrementAndGet();
+        return new Object();
+      }
+    }).build("root");
+    MortarScope child = root.buildChild().build("child");
+
+    assertThat(child.hasService("Lazy")).isTrue();
+    assertThat(created.get()).isEqualTo(0);
+
+    Object service = child.getService("Lazy");
+    assertThat(created.get()).isEqualTo(1);
+    assertThat(root.getService("Lazy")).isSameAs(service);
+    assertThat(child.getService("Lazy")).isSameAs(service);
+    assertThat(created.get()).isEqualTo(1);
+  }
+
+  @Test public void lazyServiceFoundByKey() {
+    ServiceKey<String> key = ServiceKey.create("Lazy", String.class);
+    MortarScope root = scopeBuilder.withLazyService(key, new ServiceProvider<String>() {
+      @Override public String get() {
+        return "lazy";
+      }
+    }).build("root");
+    assertThat(root.getService(key)).isEqualTo("lazy");
+  }
+
+  @Test public void lazyScopedServiceRegisteredWithOwnerWhenCreated() {
+    MortarScope root = scopeBuilder.withLazyService("Lazy", new ServiceProvider<Scoped>() {
+      @Override public Scoped get() {
+        return scoped;
+      }
+    }).build("root");
+    MortarScope child = root.buildChild().build("child");
+    verifyZeroInteractions(scoped);
+
+    child.getService("Lazy");
+    verify(scoped).onEnterScope(root);
+
+    child.destroy();
+    verify(scoped, never()).onExitScope();
+    root.destroy();
+    verify(scoped).onExitScope();
+  }
+
+  @Test public void lazyServiceNeverCreatedForDestroyedScope() {
+    final AtomicBoolean created = new AtomicBoolean();
+    MortarScope root = scopeBuilder.withLazyService("Lazy", new ServiceProvider<Object>() {
+      @Override public Object get() {
+        created.set(true);
+        return new Object();
+      }
+    }).build("root");
+
+    root.destroy();
+    assertThat(root.hasService("Lazy")).isTrue();
+    try {
+      root.getService("Lazy");
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessageContaining("destroyed");
+    }
+    assertThat(created.get()).isFalse();
+  }
+
+  @Test public void lazyServiceMustNotBeNull() {
+    MortarScope root = scopeBuilder.withLazyService("Lazy", new ServiceProvider<Object>() {
+      @Override public Object get() {
+        return null;
+      }
+    }).build("root");
+    try {
+      root.getService("Lazy");
+      fail();
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessageContaining("Lazy");
+    }
+  }
+
+  @Test public void lazyServiceCycleDetected() {
+    final AtomicReference<MortarScope> scope = new AtomicReference<>();
+    scope.set(scopeBuilder.withLazyService("Lazy", new ServiceProvider<Object>() {
+      @Override public Object get() {
+        return scope.get().getService("Lazy");
+      }
+    }).build("root"));
+    try {
+      scope.get().getService("Lazy");
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessageContaining("Cycle");
+    }
+  }
+
+  @Test public void lazyServiceFromContext() {
+    final Object service = new Object();
+    MortarScope root = scopeBuilder.withLazyService("Lazy", new ServiceProvider<Object>() {
+      @Override public Object get() {
+        return service;
+      }
+    }).build("root");
+    Context context = root.createContext(mock(Context.class));
+    assertThat(context.getSystemService("Lazy")).isSameAs(service);
+  }
+
+  @Test public void destroyAsyncDetachesImmediatelyAndDefersBackgroundSafeExits() {
+    List<String> exits = new ArrayList<>();
+    QueueExecutor executor = new QueueExecutor();
+    MortarScope root = MortarScope.buildRootScope().build("root");
+    MortarScope child = root.buildChild().build("child");
+    child.register(new RecordingScoped("ui", exits));
+    child.register(new BackgroundRecordingScoped("disk", exits));
+
+    child.destroyAsync(executor);
+    assertThat(child.isDestroyed()).isTrue();
+    assertThat(root.findChild("child")).isNull();
+    assertThat(exits).containsExactly("ui");
+
+    executor.runAll();
+    assertThat(exits).containsExactly("ui", "disk");
+  }
+
+  @Test public void destroyAsyncSubmitsChildrenFirst() {
+    List<String> exits = new ArrayList<>();
+    QueueExecutor executor = new QueueExecutor();
+    MortarScope root = MortarScope.buildRootScope().build("root");
+    MortarScope child = root.buildChild().build("child");
+    root.register(new BackgroundRecordingScoped("root", exits));
+    child.register(new BackgroundRecordingScoped("child", exits));
+
+    root.destroyAsync(executor);
+    assertThat(child.isDestroyed()).isTrue();
+    assertThat(exits).isEmpty();
+
+    executor.runAll();
+    assertThat(exits).containsExactly("child", "root");
+  }
+
+  @Test public void pendingBackgroundExitStaysRegistered() {
+    List<String> exits = new ArrayList<>();
+    QueueExecutor executor = new QueueExecutor();
+    MortarScope root = MortarScope.buildRootScope().build("root");
+    MortarScope child = root.buildChild().build("child");
+    Scoped disk = new BackgroundRecordingScoped("disk", exits);
+    child.register(disk);
+
+    child.destroyAsync(executor);
+    try {
+      root.register(disk);
+      fail("Expected exception");
+    } catch (IllegalStateException e) {
+      // pass
+    }
+
+    executor.runAll();
+    root.register(disk);
+  }
+
+  @Test public void destroyAsyncReportsAfterBackgroundExits() {
+    final AtomicReference<TeardownReport> report = new AtomicReference<>();
+    QueueExecutor executor = new QueueExecutor();
+    MortarScope root = MortarScope.buildRootScope()
+        .withTeardownListener(new TeardownListener() {
+          @Override public void onScopeTornDown(TeardownReport r) {
+            report.set(r);
+          }
+        })
+        .build("root");
+    Scoped ui = new RecordingScoped("ui", new ArrayList<String>());
+    Scoped disk = new BackgroundRecordingScoped("disk", new ArrayList<String>());
+    root.register(ui);
+    root.register(disk);
+
+    root.destroyAsync(executor);
+    assertThat(report.get()).isNull();
+
+    executor.runAll();
+    List<TeardownReport.Entry> entries = report.get().getEntries();
+    assertThat(entries).hasSize(2);
+    assertThat(entries.get(0).getScoped()).isSameAs(ui);
+    assertThat(entries.get(1).getScoped()).isSameAs(disk);
+  }
+
+  @Test public void destroyAsyncWithNoBackgroundWorkSubmitsNothing() {
+    QueueExecutor executor = new QueueExecutor();
+    MortarScope root = MortarScope.buildRootScope().build("root");
+    root.register(new RecordingScoped("ui", new ArrayList<String>()));
+
+    root.destroyAsync(executor);
+    assertThat(executor.tasks).isEmpty();
+  }
+
+  @Test public void destroyAsyncSubmitsOutsideTheLock() throws InterruptedException {
+    final List<String> exits = new ArrayList<>();
+    final AtomicBoolean finished = new AtomicBoolean(true);
+    // Runs each task on another thread and waits for it, as a saturated executor's caller might.
+    Executor executor = new Executor() {
+      @Override public void execute(Runnable command) {
+        Thread thread = new Thread(command);
+        thread.start();
+        try {
+          thread.join(5000);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        if (thread.isAlive()) finished.set(false);
+      }
+    };
+    MortarScope root = MortarScope.buildRootScope().build("root");
+    root.register(new BackgroundRecordingScoped("disk", exits));
+
+    root.destroyAsync(executor);
+    assertThat(finished.get()).isTrue();
+    assertThat(exits).containsExactly("disk");
+  }
+
+  private static class QueueExecutor implements Executor {
+    final List<Runnable> tasks = new ArrayList<>();
+
+    @Override public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
+  private static class BackgroundRecordingScoped extends RecordingScoped
+      implements BackgroundSafeScoped {
+    BackgroundRecordingScoped(String name, List<String> exits) {
+      super(name, exits);
+    }
+  }
+
+  /** Equal to every other instance, to prove registrations are tracked by identity. */
+  private static class EqualRecordingScoped extends RecordingScoped {
+    EqualRecordingScoped(String name, List<String> exits) {
+      super(name, exits);
+    }
+
+    @Override public boolean equals(Object o) {
+      return o instanceof EqualRecordingScoped;
+    }
+
+    @Override public int hashCode() {
+      return 0;
+    }
+  }
+
+  private static class RecordingScoped implements Scoped {
+    final String name;
+    final List<String> exits;
+
+    RecordingScoped(String name, List<String> exits) {
+      this.name = name;
+      this.exits = exits;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public void onExitScope() {
+      exits.add(name);
+    }
+
+    @Override public String toString() {
+      return name;
+    }
+  }
+
   private Context mockContext(MortarScope root) {
     final MortarScope scope = root;
     Context appContext = mock(Context.class);
@@ -0,0 +1,85 @@
+package mortar;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ScopeLeakWatcherTest {
+  private final ScopeLeakWatcher watcher = new ScopeLeakWatcher(0, SECONDS);
+
+  @Test public void collectedScopeIsNotReported() {
+    MortarScope root = MortarScope.buildRootScope().withLeakWatcher(watcher).build("root");
+    root.buildChild().withService("graph", new Object()).build("child").destroy();
+
+    assertThat(watcher.check()).isEmpty();
+    assertThat(watcher.watchedCount()).isZero();
+    root.destroy();
+  }
+
+  @Test public void reachableScopeIsReportedWithPathAndServices() {
+    MortarScope root = MortarScope.buildRootScope().withLeakWatcher(watcher).build("root");
+    MortarScope leaked = root.buildChild()
+        .withService("b", new Object())
+        .withService("a", new Object())
+        .build("child");
+    leaked.destroy();
+
+    List<ScopeLeakWatcher.Leak> leaks = watcher.check();
+    assertThat(leaks).hasSize(1);
+    ScopeLeakWatcher.Leak leak = leaks.get(0);
+    assertThat(leak.getScopePath()).isEqualTo(leaked.getPath());
+    assertThat(leak.getServiceNames()).containsExactly("a", "b");
+    assertThat(leak.toString()).contains(leaked.getPath());
+  }
+
+  @Test public void leakIsReportedOnceToListener() {
+    final List<ScopeLeakWatcher.Leak> reported = new ArrayList<>();
+    ScopeLeakWatcher watcher = new ScopeLeakWatcher(0, SECONDS, new ScopeLeakWatcher.Listener() {
+      @Override public void onScopeLeaked(ScopeLeakWatcher.Leak leak) {
+        reported.add(leak);
+      }
+    });
+    MortarScope root = MortarScope.buildRootScope().withLeakWatcher(watcher).build("root");
+    root.destroy();
+
+    assertThat(watcher.check()).hasSize(1);
+    assertThat(watcher.check()).isEmpty();
+    assertThat(reported).hasSize(1);
+    assertThat(reported.get(0).getScopePath()).isEqualTo("root");
+  }
+
+  @Test public void scopeIsNotReportedBeforeDelay() {
+    ScopeLeakWatcher watcher = new ScopeLeakWatcher(1, HOURS);
+    MortarScope root = MortarScope.buildRootScope().withLeakWatcher(watcher).build("root");
+    root.destroy();
+
+    assertThat(watcher.check()).isEmpty();
+    assertThat(watcher.watchedCount()).isEqualTo(1);
+  }
+
+  @Test public void descendantsInheritWatcher() {
+    MortarScope root = MortarScope.buildRootScope().withLeakWatcher(watcher).build("root");
+    MortarScope child = root.buildChild().build("child");
+    MortarScope grandchild = child.buildChild().build("grandchild");
+    root.destroy();
+
+    List<String> paths = new ArrayList<>();
+    for (ScopeLeakWatcher.Leak leak : watcher.check()) {
+      paths.add(leak.getScopePath());
+    }
+    // Children are destroyed first.
+    assertThat(paths).containsExactly(grandchild.getPath(), child.getPath(), root.getPath());
+  }
+
+  @Test public void liveScopesAreNotWatched() {
+    MortarScope root = MortarScope.buildRootScope().withLeakWatcher(watcher).build("root");
+    root.buildChild().build("child");
+
+    assertThat(watcher.watchedCount()).isZero();
+    assertThat(watcher.check()).isEmpty();
+  }
+}
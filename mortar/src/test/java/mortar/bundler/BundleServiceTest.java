@@ -608,6 +608,18 @@ import static org.mockito.MockitoAnnotations.initMocks;
     getBundleService(fooScope).register(fooBundler);
   }
 
+  @Test public void rebuiltScopeGetsNewBundleService() {
+    MortarScope fooScope = activityScope.buildChild().build("fooScope");
+    BundleService first = getBundleService(fooScope);
+    assertThat(getBundleService(fooScope)).isSameAs(first);
+
+    fooScope.destroy();
+    fooScope = activityScope.buildChild().build("fooScope");
+    BundleService second = getBundleService(fooScope);
+    assertThat(second).isNotSameAs(first);
+    assertThat(getBundleService(fooScope)).isSameAs(second);
+  }
+
   class FauxActivity {
     final MyBundler rootBundler = new MyBundler("core");
 
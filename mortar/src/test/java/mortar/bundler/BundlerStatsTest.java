@@ -0,0 +1,263 @@
+package mortar.bundler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import mortar.MortarScope;
+import org.junit.Before;
+import org.junit.Test;
+
+import static mortar.bundler.BundleService.getBundleService;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class BundlerStatsTest {
+  private final RecordingStateTracer tracer = new RecordingStateTracer();
+  private BundleServiceRunner runner;
+  private MortarScope activityScope;
+
+  @Before public void setUp() {
+    runner = new BundleServiceRunner();
+    activityScope = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+    runner.restoreState(null);
+  }
+
+  @Test public void tracesNestedSections() {
+    runner.setTracer(tracer);
+    MortarScope child = activityScope.buildChild().build("child");
+    getBundleService(activityScope).register(new ValueBundler("able"));
+    getBundleService(child).register(new ValueBundler("baker"));
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    tracer.clear();
+
+    runner.restoreState(saved);
+    runner.saveState(new InMemoryStateContainer());
+    assertThat(tracer.getOpenCount()).isZero();
+    assertThat(sectionsIndentedByDepth()).containsExactly(
+        "mortar.finishLoading",
+        "  mortar.load:able",
+        "  mortar.load:baker",
+        "mortar.saveState",
+        "  mortar.saveScope:activity",
+        "    mortar.save:able",
+        "  mortar.saveScope:child",
+        "    mortar.save:baker");
+    for (RecordingStateTracer.Section section : tracer.getSections()) {
+      assertThat(section.getDurationNanos()).isGreaterThanOrEqualTo(0);
+    }
+  }
+
+  @Test public void recordsLoadsAndSavesPerBundler() {
+    runner.setProfilingEnabled(true);
+    ValueBundler able = new ValueBundler("able");
+    able.value = "a value";
+    getBundleService(activityScope).register(able);
+    getBundleService(activityScope).register(new CleanBundler());
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    runner.saveState(saved);
+    runner.restoreState(saved);
+
+    BundlerStats stats = runner.getBundlerStats();
+    assertThat(stats.getSavePasses()).isEqualTo(2);
+    assertThat(stats.getLoadPasses()).isEqualTo(3);
+    BundlerStats.Entry entry = entry(stats, "able");
+    assertThat(entry.getScope()).isEqualTo(activityScope.getPath());
+    assertThat(entry.getLoads()).isEqualTo(2);
+    assertThat(entry.getSaves()).isEqualTo(2);
+    assertThat(entry.getLoadBytes()).isGreaterThan(0);
+    assertThat(entry.getSaveBytes()).isGreaterThan(entry.getLoadBytes());
+    assertThat(entry.getSaveNanos()).isGreaterThan(0);
+    assertThat(stats.getSavePassNanos()).isGreaterThanOrEqualTo(entry.getSaveNanos());
+
+    BundlerStats.Entry clean = entry(stats, "clean");
+    assertThat(clean.getSaves()).isEqualTo(1);
+    assertThat(clean.getSkippedSaves()).isEqualTo(1);
+
+    stats.reset();
+    assertThat(stats.getEntries()).isEmpty();
+    assertThat(stats.getLoadPasses()).isZero();
+  }
+
+  @Test public void snapshotSavesAreRecordedWhenPutInPlace() {
+    runner.setProfilingEnabled(true);
+    runner.setTracer(tracer);
+    runner.setSaveExecutor(new Executor() {
+      @Override public void execute(Runnable command) {
+        command.run();
+      }
+    });
+    getBundleService(activityScope).register(new ValueBundler("able"));
+    runner.saveState(new InMemoryStateContainer());
+
+    BundlerStats.Entry entry = entry(runner.getBundlerStats(), "able");
+    assertThat(entry.getSaves()).isEqualTo(1);
+    assertThat(entry.getSaveBytes()).isGreaterThan(0);
+    assertThat(tracer.getOpenCount()).isZero();
+  }
+
+  @Test public void sectionsAreClosedWhenLoadThrows() {
+    runner.setTracer(tracer);
+    try {
+      getBundleService(activityScope).register(new FailingBundler());
+      throw new AssertionError();
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("onLoad");
+    }
+    assertThat(tracer.getOpenCount()).isZero();
+  }
+
+  @Test public void sectionsAreClosedWhenSaveThrows() {
+    runner.setTracer(tracer);
+    FailingBundler failing = new FailingBundler();
+    failing.failLoad = false;
+    getBundleService(activityScope).register(failing);
+    try {
+      runner.saveState(new InMemoryStateContainer());
+      throw new AssertionError();
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("onSave");
+    }
+    assertThat(tracer.getOpenCount()).isZero();
+  }
+
+  @Test public void summaryIsSlowestFirst() {
+    runner.setProfilingEnabled(true);
+    getBundleService(activityScope).register(new ValueBundler("fast"));
+    ValueBundler slow = new ValueBundler("slow");
+    slow.saveMillis = 5;
+    getBundleService(activityScope).register(slow);
+    runner.saveState(new InMemoryStateContainer());
+
+    List<BundlerStats.Entry> entries = runner.getBundlerStats().getEntries();
+    assertThat(entries.get(0).getBundleKey()).isEqualTo("slow");
+    assertThat(entries.get(0).getSaveNanos()).isGreaterThanOrEqualTo(5000000);
+    String[] lines = runner.getBundlerStats().toString().split("\n");
+    assertThat(lines).hasSize(4);
+    assertThat(lines[2]).endsWith(" slow");
+    assertThat(lines[3]).endsWith(" fast");
+  }
+
+  @Test public void offByDefault() {
+    getBundleService(activityScope).register(new ValueBundler("able"));
+    runner.saveState(new InMemoryStateContainer());
+    assertThat(runner.getBundlerStats().getEntries()).isEmpty();
+    assertThat(runner.getBundlerStats().getSavePasses()).isZero();
+  }
+
+  @Test public void unbalancedEndIsRejected() {
+    tracer.beginSection("able");
+    tracer.endSection();
+    try {
+      tracer.endSection();
+      throw new AssertionError();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  private List<String> sectionsIndentedByDepth() {
+    List<String> names = new ArrayList<>();
+    for (RecordingStateTracer.Section section : tracer.getSections()) {
+      StringBuilder name = new StringBuilder();
+      for (int i = 0; i < section.getDepth(); i++) {
+        name.append("  ");
+      }
+      names.add(name.append(section.getName()).toString());
+    }
+    return names;
+  }
+
+  private static BundlerStats.Entry entry(BundlerStats stats, String bundleKey) {
+    for (BundlerStats.Entry entry : stats.getEntries()) {
+      if (entry.getBundleKey().equals(bundleKey)) return entry;
+    }
+    throw new AssertionError("No entry for " + bundleKey);
+  }
+
+  private static class ValueBundler implements SnapshotBundler {
+    final String key;
+    String value = "";
+    long saveMillis;
+
+    ValueBundler(String key) {
+      this.key = key;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return key;
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      if (savedState != null) value = savedState.getString("value");
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      snapshot().writeTo(outState);
+    }
+
+    @Override public Snapshot snapshot() {
+      if (saveMillis > 0) {
+        try {
+          Thread.sleep(saveMillis);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+      final String value = this.value;
+      return new Snapshot() {
+        @Override public void writeTo(StateContainer outState) {
+          outState.putString("value", value);
+        }
+      };
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+
+  private static class FailingBundler implements StateBundler {
+    boolean failLoad = true;
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return "failing";
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      if (failLoad) throw new IllegalStateException("onLoad");
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      throw new IllegalStateException("onSave");
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+
+  private static class CleanBundler implements StateBundler, DirtyTracking {
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return "clean";
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      outState.putInt("count", 1);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+}
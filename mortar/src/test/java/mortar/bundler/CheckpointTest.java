@@ -0,0 +1,536 @@
+package mortar.bundler;
+
+import android.os.Bundle;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import mortar.MortarScope;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static mortar.bundler.BundleService.getBundleService;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+// Robolectric allows us to use Bundles.
+@RunWith(RobolectricTestRunner.class) @Config(manifest = Config.NONE)
+public class CheckpointTest {
+  @Rule public final TemporaryFolder temp = new TemporaryFolder();
+
+  private final QueueExecutor executor = new QueueExecutor();
+  private final List<Integer> written = new ArrayList<>();
+  private final List<Exception> failures = new ArrayList<>();
+  private File file;
+  private BundleServiceRunner runner;
+  private MortarScope activityScope;
+  private Checkpointer checkpointer;
+
+  @Before public void setUp() {
+    file = new File(temp.getRoot(), "checkpoint");
+    newProcess();
+  }
+
+  private void newProcess() {
+    runner = new BundleServiceRunner();
+    activityScope = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+    checkpointer = new Checkpointer(runner, file, executor, 0, SECONDS);
+    checkpointer.setListener(new Checkpointer.Listener() {
+      @Override public void onCheckpointWritten(int bytes) {
+        written.add(bytes);
+      }
+
+      @Override public void onCheckpointFailed(Exception e) {
+        failures.add(e);
+      }
+    });
+  }
+
+  @Test public void crashRecovery() {
+    checkpointer.onCreate(null);
+    CountingBundler able = new CountingBundler("able");
+    CountingBundler baker = new CountingBundler("baker");
+    getBundleService(activityScope).register(able);
+    getBundleService(activityScope.buildChild().build("child")).register(baker);
+    PlainBundler plain = new PlainBundler();
+    getBundleService(activityScope).register(plain);
+    able.count = 3;
+    baker.count = 5;
+    plain.count = 7;
+
+    checkpointer.checkpoint();
+    assertThat(file.exists()).isFalse();
+    executor.runAll();
+    assertThat(written).hasSize(1);
+    assertThat(file.exists()).isTrue();
+
+    // A crash, then a cold start with no saved instance state.
+    newProcess();
+    checkpointer.onCreate(null);
+    CountingBundler newAble = new CountingBundler("able");
+    CountingBundler newBaker = new CountingBundler("baker");
+    PlainBundler newPlain = new PlainBundler();
+    getBundleService(activityScope).register(newAble);
+    getBundleService(activityScope.buildChild().build("child")).register(newBaker);
+    getBundleService(activityScope).register(newPlain);
+    assertThat(newAble.count).isEqualTo(3);
+    assertThat(newBaker.count).isEqualTo(5);
+    assertThat(newPlain.count).isEqualTo(7);
+  }
+
+  @Test public void savedInstanceStateWins() {
+    checkpointer.onCreate(null);
+    CountingBundler able = new CountingBundler("able");
+    getBundleService(activityScope).register(able);
+    able.count = 3;
+    checkpointer.checkpoint();
+    executor.runAll();
+    able.count = 4;
+    Bundle saved = new Bundle();
+    runner.onSaveInstanceState(saved);
+
+    newProcess();
+    checkpointer.onCreate(saved);
+    CountingBundler newAble = new CountingBundler("able");
+    getBundleService(activityScope).register(newAble);
+    assertThat(newAble.count).isEqualTo(4);
+  }
+
+  @Test public void onlyTheLatestPendingCheckpointIsWritten() {
+    checkpointer.onCreate(null);
+    CountingBundler able = new CountingBundler("able");
+    getBundleService(activityScope).register(able);
+    able.count = 1;
+    checkpointer.checkpoint();
+    able.count = 2;
+    checkpointer.checkpoint();
+    assertThat(executor.tasks).hasSize(1);
+    executor.runAll();
+    assertThat(written).hasSize(1);
+
+    newProcess();
+    checkpointer.onCreate(null);
+    CountingBundler newAble = new CountingBundler("able");
+    getBundleService(activityScope).register(newAble);
+    assertThat(newAble.count).isEqualTo(2);
+  }
+
+  @Test public void onIdleRespectsInterval() {
+    checkpointer = new Checkpointer(runner, file, executor, 1, HOURS);
+    checkpointer.onCreate(null);
+    assertThat(checkpointer.onIdle()).isTrue();
+    executor.runAll();
+    assertThat(checkpointer.onIdle()).isTrue();
+    assertThat(executor.tasks).isEmpty();
+
+    checkpointer.checkpoint();
+    assertThat(executor.tasks).hasSize(1);
+  }
+
+  @Test public void checkpointLeavesSpillsAndLastSaveAlone() {
+    FileSpillStore store = new FileSpillStore(new File(temp.getRoot(), "spills"));
+    runner.setSpillStore(store, 100);
+    checkpointer.onCreate(null);
+    PayloadBundler bundler = new PayloadBundler();
+    getBundleService(activityScope).register(bundler);
+    Bundle saved = new Bundle();
+    runner.onSaveInstanceState(saved);
+    String[] spills = new File(temp.getRoot(), "spills").list();
+    assertThat(spills).hasSize(1);
+
+    checkpointer.checkpoint();
+    executor.runAll();
+    assertThat(new File(temp.getRoot(), "spills").list()).isEqualTo(spills);
+    assertThat(runner.rootState.getChild(runner.bundleKey(activityScope))).isNotNull();
+
+    // The checkpoint holds the payload itself.
+    Bundle checkpoint = checkpointer.read();
+    Bundle scopeState = checkpoint.getBundle(runner.bundleKey(activityScope));
+    assertThat(scopeState.getBundle("payload").getByteArray("payload")).hasSize(1000);
+  }
+
+  @Test public void loadAfterCheckpointReadsTheSavedState() {
+    checkpointer.onCreate(null);
+    CountingBundler able = new CountingBundler("able");
+    getBundleService(activityScope).register(able);
+    able.count = 3;
+    runner.onSaveInstanceState(new Bundle());
+    able.count = 5;
+
+    checkpointer.checkpoint();
+    // Loaded while the checkpoint is still waiting to be written.
+    getBundleService(activityScope).register(able);
+    assertThat(able.count).isEqualTo(3);
+    getBundleService(activityScope).register(new CountingBundler("baker"));
+
+    executor.runAll();
+    assertThat(failures).isEmpty();
+    Bundle checkpoint = checkpointer.read();
+    Bundle scopeState = checkpoint.getBundle(runner.bundleKey(activityScope));
+    assertThat(scopeState.getBundle("able").getInt("count")).isEqualTo(5);
+    assertThat(scopeState.containsKey("baker")).isFalse();
+  }
+
+  @Test public void checkpointKeepsLazyStateForLaterLoads() {
+    checkpointer.onCreate(null);
+    CountingBundler able = new CountingBundler("able");
+    getBundleService(activityScope).register(able);
+    able.count = 3;
+    Bundle saved = new Bundle();
+    runner.onSaveInstanceState(saved);
+
+    newProcess();
+    runner.setLazyRestore(true);
+    checkpointer.onCreate(saved);
+    getBundleService(activityScope);
+    checkpointer.checkpoint();
+    CountingBundler newAble = new CountingBundler("able");
+    getBundleService(activityScope).register(newAble);
+    assertThat(newAble.count).isEqualTo(3);
+  }
+
+  @Test public void checkpointDoesNotLoadLazyState() {
+    checkpointer.onCreate(null);
+    MortarScope child = activityScope.buildChild().build("child");
+    CountingBundler able = new CountingBundler("able");
+    getBundleService(child).register(able);
+    able.count = 3;
+    Bundle saved = new Bundle();
+    runner.onSaveInstanceState(saved);
+
+    // E.g. an activity recreated with its scopes kept.
+    able.count = 0;
+    runner.setLazyRestore(true);
+    checkpointer.onCreate(saved);
+    checkpointer.checkpoint();
+    executor.runAll();
+    assertThat(failures).isEmpty();
+    assertThat(able.loads).isEqualTo(1);
+    getBundleService(child);
+    assertThat(able.loads).isEqualTo(2);
+    assertThat(able.count).isEqualTo(3);
+
+    newProcess();
+    checkpointer.onCreate(null);
+    child = activityScope.buildChild().build("child");
+    CountingBundler restored = new CountingBundler("able");
+    getBundleService(child).register(restored);
+    assertThat(restored.count).isEqualTo(3);
+  }
+
+  @Test public void checkpointDoesNotLoadDeferredState() {
+    checkpointer.onCreate(null);
+    DeferrableBundler able = new DeferrableBundler();
+    getBundleService(activityScope).register(able);
+    able.count = 3;
+    Bundle saved = new Bundle();
+    runner.onSaveInstanceState(saved);
+
+    able.count = 0;
+    runner.setIdleScheduler(new IdleScheduler() {
+      @Override public void runWhenIdle(Runnable task) {
+        // Never idle.
+      }
+    });
+    checkpointer.onCreate(saved);
+    checkpointer.checkpoint();
+    executor.runAll();
+    assertThat(failures).isEmpty();
+    assertThat(able.loads).isEqualTo(1);
+    Bundle scopeState = checkpointer.read().getBundle(runner.bundleKey(activityScope));
+    assertThat(scopeState.getBundle("able").getInt("count")).isEqualTo(3);
+  }
+
+  @Test public void checkpointKeepsEncodedScopesEncoded() {
+    runner.setBundleCodec(new CompactStateCodec());
+    checkpointer.onCreate(null);
+    MortarScope child = activityScope.buildChild().build("child");
+    CountingBundler able = new CountingBundler("able");
+    getBundleService(child).register(able);
+    able.count = 3;
+    CountingBundler baker = new CountingBundler("baker");
+    getBundleService(activityScope).register(baker);
+    baker.count = 5;
+    runner.setLazyRestore(true);
+    Bundle saved = new Bundle();
+    runner.onSaveInstanceState(saved);
+
+    checkpointer.onCreate(saved);
+    // Only the activity's scope is used again.
+    getBundleService(activityScope);
+    checkpointer.checkpoint();
+    executor.runAll();
+    assertThat(failures).isEmpty();
+    assertThat(able.loads).isEqualTo(1);
+    Bundle checkpoint = checkpointer.read();
+    assertThat(checkpoint.getBundle(BundleServiceRunner.ENCODED_SCOPES).keySet())
+        .containsOnly(runner.bundleKey(child));
+
+    newProcess();
+    runner.setBundleCodec(new CompactStateCodec());
+    checkpointer.onCreate(null);
+    child = activityScope.buildChild().build("child");
+    CountingBundler restoredAble = new CountingBundler("able");
+    getBundleService(child).register(restoredAble);
+    assertThat(restoredAble.count).isEqualTo(3);
+    CountingBundler restoredBaker = new CountingBundler("baker");
+    getBundleService(activityScope).register(restoredBaker);
+    assertThat(restoredBaker.count).isEqualTo(5);
+  }
+
+  @Test public void clearDeletesCheckpoint() {
+    checkpointer.onCreate(null);
+    checkpointer.checkpoint();
+    executor.runAll();
+    assertThat(file.exists()).isTrue();
+
+    checkpointer.checkpoint();
+    checkpointer.clear();
+    executor.runAll();
+    assertThat(file.exists()).isFalse();
+    assertThat(checkpointer.read()).isNull();
+  }
+
+  @Test public void corruptCheckpointIsIgnored() throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[] { 1, 2, 3 });
+    out.close();
+
+    assertThat(checkpointer.read()).isNull();
+    checkpointer.onCreate(null);
+    CountingBundler able = new CountingBundler("able");
+    getBundleService(activityScope).register(able);
+    assertThat(able.count).isZero();
+  }
+
+  @Test public void deltasAreReplayedOnTopOfTheSnapshot() {
+    checkpointer.setMaxDeltas(10);
+    checkpointer.onCreate(null);
+    List<CountingBundler> bundlers = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      CountingBundler bundler = new CountingBundler("bundler" + i);
+      getBundleService(activityScope).register(bundler);
+      bundlers.add(bundler);
+    }
+    checkpointer.checkpoint();
+    executor.runAll();
+    int snapshotBytes = written.get(0);
+
+    for (int i = 0; i < 5; i++) {
+      bundlers.get(i).count = i + 1;
+      checkpointer.checkpoint();
+      executor.runAll();
+    }
+    assertThat(written).hasSize(6);
+    for (int bytes : written.subList(1, 6)) {
+      assertThat(bytes).isLessThan(snapshotBytes / 4);
+    }
+    checkpointer.checkpoint();
+    executor.runAll();
+    assertThat(written.get(6)).isZero();
+
+    newProcess();
+    checkpointer.onCreate(null);
+    for (int i = 0; i < 20; i++) {
+      CountingBundler bundler = new CountingBundler("bundler" + i);
+      getBundleService(activityScope).register(bundler);
+      assertThat(bundler.count).isEqualTo(i < 5 ? i + 1 : 0);
+    }
+  }
+
+  @Test public void deltasAreCompacted() {
+    checkpointer.setMaxDeltas(2);
+    checkpointer.onCreate(null);
+    CountingBundler able = new CountingBundler("able");
+    getBundleService(activityScope).register(able);
+    getBundleService(activityScope).register(new PayloadBundler());
+    File log = new File(file.getPath() + ".deltas");
+    for (int i = 1; i <= 4; i++) {
+      able.count = i;
+      checkpointer.checkpoint();
+      executor.runAll();
+    }
+    // A snapshot, two deltas, then a snapshot again.
+    assertThat(written.get(0)).isEqualTo(written.get(3));
+    assertThat(written.get(1)).isLessThan(written.get(0));
+    assertThat(log.length()).isEqualTo(12);
+
+    newProcess();
+    checkpointer.onCreate(null);
+    CountingBundler newAble = new CountingBundler("able");
+    getBundleService(activityScope).register(newAble);
+    assertThat(newAble.count).isEqualTo(4);
+  }
+
+  @Test public void removedScopesStayRemoved() {
+    checkpointer.setMaxDeltas(10);
+    checkpointer.onCreate(null);
+    MortarScope child = activityScope.buildChild().build("child");
+    CountingBundler baker = new CountingBundler("baker");
+    getBundleService(child).register(baker);
+    baker.count = 5;
+    getBundleService(activityScope).register(new PayloadBundler());
+    checkpointer.checkpoint();
+    executor.runAll();
+    String childKey = runner.bundleKey(child);
+    child.destroy();
+    checkpointer.checkpoint();
+    executor.runAll();
+    assertThat(written.get(1)).isLessThan(written.get(0));
+
+    Bundle checkpoint = checkpointer.read();
+    assertThat(checkpoint.keySet()).containsOnly(runner.bundleKey(activityScope));
+    assertThat(checkpoint.containsKey(childKey)).isFalse();
+  }
+
+  @Test public void truncatedDeltaIsIgnored() throws IOException {
+    checkpointer.setMaxDeltas(10);
+    checkpointer.onCreate(null);
+    CountingBundler able = new CountingBundler("able");
+    getBundleService(activityScope).register(able);
+    getBundleService(activityScope).register(new PayloadBundler());
+    for (int i = 1; i <= 3; i++) {
+      able.count = i;
+      checkpointer.checkpoint();
+      executor.runAll();
+    }
+    // A crash in the middle of appending the last delta.
+    File log = new File(file.getPath() + ".deltas");
+    byte[] bytes = StateFiles.read(log);
+    byte[] truncated = new byte[bytes.length - 2];
+    System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+    StateFiles.writeAtomically(log, truncated);
+
+    newProcess();
+    checkpointer.onCreate(null);
+    CountingBundler newAble = new CountingBundler("able");
+    getBundleService(activityScope).register(newAble);
+    assertThat(newAble.count).isEqualTo(2);
+  }
+
+  @Test public void deltasForAnOlderSnapshotAreIgnored() throws IOException {
+    checkpointer.setMaxDeltas(10);
+    checkpointer.onCreate(null);
+    CountingBundler able = new CountingBundler("able");
+    getBundleService(activityScope).register(able);
+    checkpointer.checkpoint();
+    executor.runAll();
+    able.count = 1;
+    checkpointer.checkpoint();
+    executor.runAll();
+    File log = new File(file.getPath() + ".deltas");
+    byte[] staleLog = StateFiles.read(log);
+
+    // A crash after a new snapshot is written, but before its log is.
+    newProcess();
+    checkpointer.setMaxDeltas(10);
+    checkpointer.onCreate(null);
+    able = new CountingBundler("able");
+    getBundleService(activityScope).register(able);
+    able.count = 7;
+    checkpointer.checkpoint();
+    executor.runAll();
+    StateFiles.writeAtomically(log, staleLog);
+
+    newProcess();
+    checkpointer.onCreate(null);
+    CountingBundler newAble = new CountingBundler("able");
+    getBundleService(activityScope).register(newAble);
+    assertThat(newAble.count).isEqualTo(7);
+  }
+
+  private static class QueueExecutor implements Executor {
+    final List<Runnable> tasks = new ArrayList<>();
+
+    @Override public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
+  private static class CountingBundler implements StateBundler {
+    final String key;
+    int count;
+    int loads;
+
+    CountingBundler(String key) {
+      this.key = key;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return key;
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      loads++;
+      if (savedState != null) count = savedState.getInt("count");
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      outState.putInt("count", count);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+
+  private static class DeferrableBundler extends CountingBundler implements DeferrableLoad {
+    DeferrableBundler() {
+      super("able");
+    }
+
+    @Override public boolean canDeferLoad() {
+      return true;
+    }
+  }
+
+  private static class PayloadBundler extends CountingBundler {
+    PayloadBundler() {
+      super("payload");
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      outState.putByteArray("payload", new byte[1000]);
+    }
+  }
+
+  private static class PlainBundler implements Bundler {
+    int count;
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return "plain";
+    }
+
+    @Override public void onLoad(Bundle savedInstanceState) {
+      if (savedInstanceState != null) count = savedInstanceState.getInt("count");
+    }
+
+    @Override public void onSave(Bundle outState) {
+      outState.putInt("count", count);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+}
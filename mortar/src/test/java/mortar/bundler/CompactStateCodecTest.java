@@ -0,0 +1,204 @@
+package mortar.bundler;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+import mortar.MortarScope;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static mortar.bundler.BundleService.getBundleService;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+// Robolectric allows us to use Bundles.
+@RunWith(RobolectricTestRunner.class) @Config(manifest = Config.NONE)
+public class CompactStateCodecTest {
+  private final CompactStateCodec codec = new CompactStateCodec();
+  private BundleServiceRunner runner;
+  private MortarScope activityScope;
+
+  @Before public void setUp() {
+    runner = new BundleServiceRunner();
+    runner.setBundleCodec(codec);
+    activityScope = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+  }
+
+  @Test public void roundTrip() {
+    StateContainer state = new InMemoryStateContainer();
+    state.putBoolean("true", true);
+    state.putBoolean("false", false);
+    state.putInt("int", -1);
+    state.putInt("maxInt", Integer.MAX_VALUE);
+    state.putInt("minInt", Integer.MIN_VALUE);
+    state.putLong("long", Long.MIN_VALUE);
+    state.putString("string", "\u00e9t\u00e9");
+    state.putString("null", null);
+    state.putByteArray("bytes", new byte[] { 4, 5 });
+    state.putChild("child").putString("string", "string");
+
+    StateContainer decoded = new InMemoryStateContainer();
+    codec.decode(codec.encode(state), decoded);
+    assertThat(decoded.keySet()).isEqualTo(state.keySet());
+    assertThat(decoded.getBoolean("true")).isTrue();
+    assertThat(decoded.getBoolean("false")).isFalse();
+    assertThat(decoded.getInt("int")).isEqualTo(-1);
+    assertThat(decoded.getInt("maxInt")).isEqualTo(Integer.MAX_VALUE);
+    assertThat(decoded.getInt("minInt")).isEqualTo(Integer.MIN_VALUE);
+    assertThat(decoded.getLong("long")).isEqualTo(Long.MIN_VALUE);
+    assertThat(decoded.getString("string")).isEqualTo("\u00e9t\u00e9");
+    assertThat(decoded.containsKey("null")).isTrue();
+    assertThat(decoded.getString("null")).isNull();
+    assertThat(decoded.getByteArray("bytes")).isEqualTo(new byte[] { 4, 5 });
+    assertThat(decoded.getChild("child").getString("string")).isEqualTo("string");
+  }
+
+  @Test public void repeatedStringsAreWrittenOnce() {
+    StateContainer state = new InMemoryStateContainer();
+    for (int i = 0; i < 100; i++) {
+      state.putChild("com.example.SomeScreen" + i).putChild("com.example.SomePresenter")
+          .putInt("selectedPosition", i);
+    }
+    byte[] compact = codec.encode(state);
+    assertThat(compact.length).isLessThan(new BasicStateCodec().encode(state).length / 2);
+  }
+
+  @Test public void rejectsCorruptBytes() {
+    StateContainer state = new InMemoryStateContainer();
+    state.putString("key", "value");
+    byte[] bytes = codec.encode(state);
+
+    byte[] truncated = new byte[bytes.length - 1];
+    System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+    assertRejected(truncated);
+
+    byte[] badCount = bytes.clone();
+    // The string count follows the magic.
+    badCount[4] = 0x7f;
+    assertRejected(badCount);
+
+    assertRejected(new BasicStateCodec().encode(state));
+  }
+
+  @Test public void savesOneEncodedValue() {
+    runner.onCreate(null);
+    MortarScope child = activityScope.buildChild().build("child");
+    CountingBundler bundler = new CountingBundler();
+    getBundleService(child).register(bundler);
+    bundler.count = 3;
+    PlainBundler plain = new PlainBundler();
+    getBundleService(activityScope).register(plain);
+    plain.count = 5;
+
+    Bundle saved = new Bundle();
+    runner.onSaveInstanceState(saved);
+    assertThat(saved.keySet()).containsOnly(BundleServiceRunner.ENCODED_STATE);
+
+    setUp();
+    runner.onCreate(saved);
+    child = activityScope.buildChild().build("child");
+    CountingBundler restored = new CountingBundler();
+    getBundleService(child).register(restored);
+    assertThat(restored.count).isEqualTo(3);
+    PlainBundler restoredPlain = new PlainBundler();
+    getBundleService(activityScope).register(restoredPlain);
+    assertThat(restoredPlain.count).isEqualTo(5);
+  }
+
+  @Test public void unencodableStateIsSavedNested() {
+    runner.onCreate(null);
+    PlainBundler plain = new PlainBundler();
+    plain.parcelable = mock(Parcelable.class);
+    getBundleService(activityScope).register(plain);
+
+    Bundle saved = new Bundle();
+    runner.onSaveInstanceState(saved);
+    assertThat(saved.containsKey(BundleServiceRunner.ENCODED_STATE)).isFalse();
+
+    setUp();
+    runner.onCreate(saved);
+    PlainBundler restored = new PlainBundler();
+    getBundleService(activityScope).register(restored);
+    assertThat(restored.parcelable).isSameAs(plain.parcelable);
+  }
+
+  @Test public void corruptStateIsDropped() {
+    runner.onCreate(null);
+    CountingBundler bundler = new CountingBundler();
+    getBundleService(activityScope).register(bundler);
+    bundler.count = 3;
+    Bundle saved = new Bundle();
+    runner.onSaveInstanceState(saved);
+    byte[] bytes = saved.getByteArray(BundleServiceRunner.ENCODED_STATE);
+    byte[] truncated = new byte[bytes.length - 1];
+    System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+    saved.putByteArray(BundleServiceRunner.ENCODED_STATE, truncated);
+
+    setUp();
+    runner.onCreate(saved);
+    CountingBundler restored = new CountingBundler();
+    getBundleService(activityScope).register(restored);
+    assertThat(restored.count).isZero();
+  }
+
+  private void assertRejected(byte[] bytes) {
+    try {
+      codec.decode(bytes, new InMemoryStateContainer());
+      throw new AssertionError();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static class CountingBundler implements StateBundler {
+    int count;
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return "counting";
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      if (savedState != null) count = savedState.getInt("count");
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      outState.putInt("count", count);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+
+  private static class PlainBundler implements Bundler {
+    int count;
+    Parcelable parcelable;
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return "plain";
+    }
+
+    @Override public void onLoad(Bundle savedInstanceState) {
+      if (savedInstanceState != null) {
+        count = savedInstanceState.getInt("count");
+        parcelable = savedInstanceState.getParcelable("parcelable");
+      }
+    }
+
+    @Override public void onSave(Bundle outState) {
+      outState.putInt("count", count);
+      if (parcelable != null) outState.putParcelable("parcelable", parcelable);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+}
@@ -0,0 +1,313 @@
+package mortar.bundler;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import mortar.MortarScope;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static mortar.bundler.BundleService.getBundleService;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+// Robolectric allows us to use Bundles.
+@RunWith(RobolectricTestRunner.class) @Config(manifest = Config.NONE)
+public class CompressionTest {
+  private BundleServiceRunner runner;
+  private MortarScope activityScope;
+
+  @Before public void setUp() {
+    runner = new BundleServiceRunner();
+    runner.setCompressionThreshold(500);
+    activityScope = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+    runner.restoreState(null);
+  }
+
+  @Test public void largeStateIsCompressedAndRestored() {
+    DraftBundler bundler = new DraftBundler("draft");
+    bundler.text = repeat("All work and no play. ", 1000);
+    getBundleService(activityScope).register(bundler);
+
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    StateContainer draftState = bundlerState(saved, "draft");
+    assertThat(draftState.keySet()).containsOnly(BundleService.COMPRESSED);
+    assertThat(draftState.getByteArray(BundleService.COMPRESSED).length).isLessThan(1000);
+
+    DraftBundler restored = new DraftBundler("draft");
+    newProcess();
+    runner.restoreState(saved);
+    getBundleService(activityScope).register(restored);
+    assertThat(restored.text).isEqualTo(bundler.text);
+  }
+
+  @Test public void loadingAfterSaveLeavesStateCompressed() {
+    DraftBundler bundler = new DraftBundler("draft");
+    bundler.text = repeat("All work and no play. ", 1000);
+    getBundleService(activityScope).register(bundler);
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    int savedSize = saved.estimateSize();
+
+    // E.g. a presenter taking a view again before the saved state is parceled.
+    bundler.text = null;
+    getBundleService(activityScope).register(bundler);
+    assertThat(bundler.text).startsWith("All work");
+    assertThat(bundlerState(saved, "draft").keySet()).containsOnly(BundleService.COMPRESSED);
+    assertThat(saved.estimateSize()).isEqualTo(savedSize);
+  }
+
+  @Test public void smallStateStaysInline() {
+    DraftBundler bundler = new DraftBundler("draft");
+    bundler.text = "short";
+    getBundleService(activityScope).register(bundler);
+
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    assertThat(bundlerState(saved, "draft").getString("text")).isEqualTo("short");
+    assertThat(runner.getCompressionStats().getEntries()).isEmpty();
+  }
+
+  @Test public void incompressibleStateStaysInline() {
+    DraftBundler bundler = new DraftBundler("noise");
+    bundler.bytes = new byte[2000];
+    new Random(0).nextBytes(bundler.bytes);
+    getBundleService(activityScope).register(bundler);
+
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    assertThat(bundlerState(saved, "noise").getByteArray("bytes")).isEqualTo(bundler.bytes);
+    CompressionStats.Entry entry = runner.getCompressionStats().getEntries().get(0);
+    assertThat(entry.getRatio()).isGreaterThanOrEqualTo(1);
+  }
+
+  @Test public void statsPerBundleKey() {
+    DraftBundler able = new DraftBundler("able");
+    able.text = repeat("able ", 1000);
+    DraftBundler baker = new DraftBundler("baker");
+    baker.text = repeat("baker ", 1000);
+    getBundleService(activityScope).register(able);
+    getBundleService(activityScope).register(baker);
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    runner.saveState(saved);
+    runner.restoreState(saved);
+
+    List<CompressionStats.Entry> entries = runner.getCompressionStats().getEntries();
+    assertThat(entries).hasSize(2);
+    for (CompressionStats.Entry entry : entries) {
+      assertThat(entry.getCompressions()).isEqualTo(2);
+      assertThat(entry.getDecompressions()).isEqualTo(1);
+      assertThat(entry.getRatio()).isLessThan(0.1);
+      assertThat(entry.getCompressNanos()).isGreaterThan(0);
+    }
+
+    runner.getCompressionStats().reset();
+    assertThat(runner.getCompressionStats().getEntries()).isEmpty();
+  }
+
+  @Test public void compressedStateIsSpilledOnlyIfStillLarge() {
+    InMemorySpillStore store = new InMemorySpillStore();
+    runner.setSpillStore(store, 1000);
+    DraftBundler bundler = new DraftBundler("draft");
+    bundler.text = repeat("All work and no play. ", 1000);
+    getBundleService(activityScope).register(bundler);
+    runner.saveState(new InMemoryStateContainer());
+    assertThat(store.writes).isZero();
+
+    bundler.bytes = new byte[5000];
+    new Random(0).nextBytes(bundler.bytes);
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    assertThat(store.writes).isEqualTo(1);
+
+    DraftBundler restored = new DraftBundler("draft");
+    newProcess();
+    runner.setSpillStore(store, 1000);
+    runner.restoreState(saved);
+    getBundleService(activityScope).register(restored);
+    assertThat(restored.text).isEqualTo(bundler.text);
+    assertThat(restored.bytes).isEqualTo(bundler.bytes);
+  }
+
+  @Test public void snapshotsAreCompressedByTheSaveExecutor() {
+    runner.setSaveExecutor(new Executor() {
+      @Override public void execute(Runnable command) {
+        command.run();
+      }
+    });
+    DraftBundler bundler = new DraftBundler("draft");
+    bundler.text = repeat("All work and no play. ", 1000);
+    getBundleService(activityScope).register(bundler);
+
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    assertThat(bundlerState(saved, "draft").keySet()).containsOnly(BundleService.COMPRESSED);
+  }
+
+  @Test public void corruptStateLoadsAsNull() {
+    DraftBundler bundler = new DraftBundler("draft");
+    bundler.text = repeat("All work and no play. ", 1000);
+    getBundleService(activityScope).register(bundler);
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    bundlerState(saved, "draft").putByteArray(BundleService.COMPRESSED, new byte[] { 1, 2, 3 });
+
+    DraftBundler restored = new DraftBundler("draft");
+    newProcess();
+    runner.restoreState(saved);
+    getBundleService(activityScope).register(restored);
+    assertThat(restored.loaded).isTrue();
+    assertThat(restored.text).isNull();
+  }
+
+  @Test public void deflateRoundTrip() throws IOException {
+    DeflateCompressor compressor = new DeflateCompressor();
+    byte[] original = repeat("abc", 10000).getBytes("UTF-8");
+    byte[] compressed = compressor.compress(original);
+    assertThat(compressed.length).isLessThan(original.length / 10);
+    assertThat(compressor.decompress(compressed)).isEqualTo(original);
+    assertThat(compressor.decompress(compressor.compress(new byte[0]))).isEmpty();
+
+    byte[] truncated = new byte[compressed.length / 2];
+    System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+    try {
+      compressor.decompress(truncated);
+      throw new AssertionError();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void stateIsNotMeasuredWhenCompressionIsOff() {
+    runner.setCompressionThreshold(Integer.MAX_VALUE);
+    ParcelableBundler bundler = new ParcelableBundler();
+    bundler.parcelable = mock(Parcelable.class);
+    getBundleService(activityScope).register(bundler);
+
+    runner.onSaveInstanceState(new Bundle());
+    // Measuring a bundle parcels its Parcelables.
+    verify(bundler.parcelable, never()).writeToParcel(any(Parcel.class), anyInt());
+    assertThat(runner.getCompressionStats().getEntries()).isEmpty();
+  }
+
+  private void newProcess() {
+    setUp();
+  }
+
+  private StateContainer bundlerState(StateContainer root, String key) {
+    return root.getChild(runner.bundleKey(activityScope)).getChild(key);
+  }
+
+  private static String repeat(String s, int times) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      builder.append(s);
+    }
+    return builder.toString();
+  }
+
+  private static class DraftBundler implements SnapshotBundler {
+    final String key;
+    String text;
+    byte[] bytes;
+    boolean loaded;
+
+    DraftBundler(String key) {
+      this.key = key;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return key;
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      loaded = true;
+      if (savedState != null) {
+        text = savedState.getString("text");
+        bytes = savedState.getByteArray("bytes");
+      }
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      snapshot().writeTo(outState);
+    }
+
+    @Override public Snapshot snapshot() {
+      final String text = this.text;
+      final byte[] bytes = this.bytes;
+      return new Snapshot() {
+        @Override public void writeTo(StateContainer outState) {
+          if (text != null) outState.putString("text", text);
+          if (bytes != null) outState.putByteArray("bytes", bytes);
+        }
+      };
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+
+  private static class ParcelableBundler implements Bundler {
+    Parcelable parcelable;
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return "parcelable";
+    }
+
+    @Override public void onLoad(Bundle savedInstanceState) {
+    }
+
+    @Override public void onSave(Bundle outState) {
+      outState.putParcelable("parcelable", parcelable);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+
+  private static class InMemorySpillStore implements SpillStore {
+    final Map<String, byte[]> files = new HashMap<>();
+    int writes;
+
+    @Override public String write(byte[] bytes) {
+      String handle = "spill" + writes++;
+      files.put(handle, bytes);
+      return handle;
+    }
+
+    @Override public byte[] read(String handle) {
+      return files.get(handle);
+    }
+
+    @Override public void delete(String handle) {
+      files.remove(handle);
+    }
+
+    @Override public void retainOnly(Set<String> handles) {
+      files.keySet().retainAll(handles);
+    }
+  }
+}
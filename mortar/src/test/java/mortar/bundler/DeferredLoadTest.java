@@ -0,0 +1,183 @@
+package mortar.bundler;
+
+import android.os.Bundle;
+import java.util.ArrayList;
+import java.util.List;
+import mortar.MortarScope;
+import mortar.Presenter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static mortar.bundler.BundleService.getBundleService;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+// Robolectric allows us to use Bundles.
+@RunWith(RobolectricTestRunner.class) @Config(manifest = Config.NONE)
+public class DeferredLoadTest {
+  private final QueueScheduler scheduler = new QueueScheduler();
+  private final List<String> loads = new ArrayList<>();
+  private BundleServiceRunner runner;
+  private MortarScope activityScope;
+
+  @Before public void setUp() {
+    runner = new BundleServiceRunner();
+    runner.setIdleScheduler(scheduler);
+    activityScope = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+    runner.restoreState(null);
+  }
+
+  @Test public void deferrableBundlersLoadWhenIdle() {
+    MortarScope hidden = activityScope.buildChild().build("hidden");
+    getBundleService(activityScope).register(new RecordingBundler("shown", false));
+    getBundleService(hidden).register(new RecordingBundler("hidden", true));
+    getBundleService(activityScope).register(new RecordingBundler("later", true));
+    loads.clear();
+
+    runner.restoreState(new InMemoryStateContainer());
+    assertThat(loads).containsExactly("shown");
+    assertThat(scheduler.tasks).hasSize(1);
+
+    scheduler.runAll();
+    assertThat(loads).containsExactly("shown", "later", "hidden");
+  }
+
+  @Test public void registeringAgainLoadsRightAway() {
+    RecordingBundler bundler = new RecordingBundler("able", true);
+    getBundleService(activityScope).register(bundler);
+    loads.clear();
+
+    runner.restoreState(new InMemoryStateContainer());
+    assertThat(loads).isEmpty();
+    getBundleService(activityScope).register(bundler);
+    assertThat(loads).containsExactly("able");
+
+    scheduler.runAll();
+    assertThat(loads).containsExactly("able");
+  }
+
+  @Test public void saveLoadsDeferredBundlersFirst() {
+    RecordingBundler bundler = new RecordingBundler("able", true);
+    getBundleService(activityScope).register(bundler);
+    bundler.value = 3;
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+
+    bundler.value = 0;
+    runner.restoreState(saved);
+    assertThat(bundler.value).isZero();
+    InMemoryStateContainer resaved = new InMemoryStateContainer();
+    runner.saveState(resaved);
+    StateContainer scopeState = resaved.getChild(runner.bundleKey(activityScope));
+    assertThat(scopeState.getChild("able").getInt("value")).isEqualTo(3);
+
+    loads.clear();
+    scheduler.runAll();
+    assertThat(loads).isEmpty();
+  }
+
+  @Test public void destroyedScopesAreNotLoaded() {
+    MortarScope doomed = activityScope.buildChild().build("doomed");
+    getBundleService(doomed).register(new RecordingBundler("doomed", true));
+    loads.clear();
+
+    runner.restoreState(new InMemoryStateContainer());
+    doomed.destroy();
+    scheduler.runAll();
+    assertThat(loads).isEmpty();
+  }
+
+  @Test public void withoutSchedulerEverythingLoadsRightAway() {
+    runner.setIdleScheduler(null);
+    getBundleService(activityScope).register(new RecordingBundler("able", true));
+    loads.clear();
+
+    runner.restoreState(new InMemoryStateContainer());
+    assertThat(loads).containsExactly("able");
+    assertThat(scheduler.tasks).isEmpty();
+  }
+
+  @Test public void presenterLoadsWhenItTakesAView() {
+    RecordingPresenter presenter = new RecordingPresenter();
+    Object view = new Object();
+    presenter.takeView(view);
+    presenter.value = 3;
+    Bundle saved = new Bundle();
+    runner.onSaveInstanceState(saved);
+    presenter.dropView(view);
+
+    presenter.value = 0;
+    runner.onCreate(saved);
+    assertThat(scheduler.tasks).hasSize(1);
+    presenter.takeView(new Object());
+    assertThat(presenter.value).isEqualTo(3);
+  }
+
+  private static class QueueScheduler implements IdleScheduler {
+    final List<Runnable> tasks = new ArrayList<>();
+
+    @Override public void runWhenIdle(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
+  private class RecordingBundler implements StateBundler, DeferrableLoad {
+    final String key;
+    final boolean deferrable;
+    int value;
+
+    RecordingBundler(String key, boolean deferrable) {
+      this.key = key;
+      this.deferrable = deferrable;
+    }
+
+    @Override public boolean canDeferLoad() {
+      return deferrable;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return key;
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      loads.add(key);
+      if (savedState != null) value = savedState.getInt("value");
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      outState.putInt("value", value);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+
+  private class RecordingPresenter extends Presenter<Object> {
+    int value;
+
+    @Override protected BundleService extractBundleService(Object view) {
+      return getBundleService(activityScope);
+    }
+
+    @Override protected void onLoad(Bundle savedInstanceState) {
+      if (savedInstanceState != null) value = savedInstanceState.getInt("value");
+    }
+
+    @Override protected void onSave(Bundle outState) {
+      outState.putInt("value", value);
+    }
+  }
+}
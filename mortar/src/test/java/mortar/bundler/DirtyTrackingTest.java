@@ -0,0 +1,160 @@
+package mortar.bundler;
+
+import android.os.Bundle;
+import mortar.MortarScope;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static mortar.bundler.BundleService.getBundleService;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+// Robolectric allows us to use Bundles.
+@RunWith(RobolectricTestRunner.class) @Config(manifest = Config.NONE)
+public class DirtyTrackingTest {
+  private BundleServiceRunner runner;
+  private MortarScope activityScope;
+  private BundleService bundleService;
+
+  @Before public void setUp() {
+    runner = new BundleServiceRunner();
+    activityScope = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+    runner.restoreState(null);
+    bundleService = getBundleService(activityScope);
+  }
+
+  @Test public void cleanBundlerIsSkippedAndItsStateReused() {
+    TrackedBundler tracked = new TrackedBundler("tracked");
+    UntrackedBundler untracked = new UntrackedBundler("untracked");
+    bundleService.register(tracked);
+    bundleService.register(untracked);
+
+    tracked.value = 1;
+    InMemoryStateContainer first = new InMemoryStateContainer();
+    runner.saveState(first);
+    assertThat(tracked.saves).isEqualTo(1);
+    assertThat(runner.getLastSaveSavedCount()).isEqualTo(2);
+    assertThat(runner.getLastSaveSkippedCount()).isZero();
+
+    InMemoryStateContainer second = new InMemoryStateContainer();
+    runner.saveState(second);
+    assertThat(tracked.saves).isEqualTo(1);
+    assertThat(untracked.saves).isEqualTo(2);
+    assertThat(runner.getLastSaveSavedCount()).isEqualTo(1);
+    assertThat(runner.getLastSaveSkippedCount()).isEqualTo(1);
+    assertThat(trackedState(second).getInt("value")).isEqualTo(1);
+  }
+
+  @Test public void markDirtyForcesSave() {
+    TrackedBundler tracked = new TrackedBundler("tracked");
+    bundleService.register(tracked);
+    runner.saveState(new InMemoryStateContainer());
+
+    tracked.value = 2;
+    bundleService.markDirty(tracked);
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    assertThat(tracked.saves).isEqualTo(2);
+    assertThat(runner.getLastSaveSkippedCount()).isZero();
+    assertThat(trackedState(saved).getInt("value")).isEqualTo(2);
+  }
+
+  @Test public void loadDirties() {
+    TrackedBundler tracked = new TrackedBundler("tracked");
+    bundleService.register(tracked);
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+
+    runner.restoreState(saved);
+    runner.saveState(new InMemoryStateContainer());
+    assertThat(tracked.saves).isEqualTo(2);
+  }
+
+  @Test public void plainBundlersCanTrackToo() {
+    TrackedPlainBundler tracked = new TrackedPlainBundler();
+    bundleService.register(tracked);
+    runner.onSaveInstanceState(new Bundle());
+    Bundle second = new Bundle();
+    runner.onSaveInstanceState(second);
+    assertThat(tracked.saves).isEqualTo(1);
+    assertThat(runner.getLastSaveSkippedCount()).isEqualTo(1);
+    Bundle scopeBundle = second.getBundle(runner.bundleKey(activityScope));
+    assertThat(scopeBundle.getBundle("plain").getInt("saves")).isEqualTo(1);
+
+    bundleService.markDirty(tracked);
+    runner.onSaveInstanceState(new Bundle());
+    assertThat(tracked.saves).isEqualTo(2);
+  }
+
+  @Test public void stateIsNotReusedAcrossContainerKinds() {
+    TrackedBundler tracked = new TrackedBundler("tracked");
+    bundleService.register(tracked);
+    runner.saveState(new InMemoryStateContainer());
+    runner.onSaveInstanceState(new Bundle());
+    assertThat(tracked.saves).isEqualTo(2);
+  }
+
+  private StateContainer trackedState(StateContainer root) {
+    return root.getChild(runner.bundleKey(activityScope)).getChild("tracked");
+  }
+
+  private static class UntrackedBundler implements StateBundler {
+    final String key;
+    int value;
+    int saves;
+
+    UntrackedBundler(String key) {
+      this.key = key;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return key;
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      if (savedState != null) value = savedState.getInt("value");
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      saves++;
+      outState.putInt("value", value);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+
+  private static class TrackedBundler extends UntrackedBundler implements DirtyTracking {
+    TrackedBundler(String key) {
+      super(key);
+    }
+  }
+
+  private static class TrackedPlainBundler implements Bundler, DirtyTracking {
+    int saves;
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return "plain";
+    }
+
+    @Override public void onLoad(Bundle savedInstanceState) {
+    }
+
+    @Override public void onSave(Bundle outState) {
+      outState.putInt("saves", ++saves);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+}
@@ -0,0 +1,253 @@
+package mortar.bundler;
+
+import android.os.Bundle;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import mortar.MortarScope;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static mortar.bundler.BundleService.getBundleService;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+// Robolectric allows us to use Bundles.
+@RunWith(RobolectricTestRunner.class) @Config(manifest = Config.NONE)
+public class LazyRestoreTest {
+  private final CountingSpillStore store = new CountingSpillStore();
+  private BundleServiceRunner runner;
+  private MortarScope activityScope;
+
+  @Before public void setUp() {
+    runner = new BundleServiceRunner();
+    runner.setLazyRestore(true);
+    runner.setSpillStore(store, 100);
+    activityScope = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+  }
+
+  @Test public void registeredBundlersAreLoadedWhenTheirScopeIsUsed() {
+    runner.restoreState(null);
+    LoadingBundler bundler = new LoadingBundler("able");
+    getBundleService(activityScope).register(bundler);
+    assertThat(bundler.loads).isEqualTo(1);
+    bundler.value = 3;
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    bundler.value = 0;
+
+    runner.restoreState(saved);
+    assertThat(bundler.loads).isEqualTo(1);
+
+    getBundleService(activityScope);
+    assertThat(bundler.loads).isEqualTo(2);
+    assertThat(bundler.value).isEqualTo(3);
+  }
+
+  @Test public void bundlerRegisteredBeforeRestoreIsLoadedWhenItsScopeIsUsed() {
+    LoadingBundler bundler = new LoadingBundler("able");
+    getBundleService(activityScope).register(bundler);
+    bundler.value = 3;
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+
+    // A new process, whose bundler registers before the activity's onCreate.
+    setUp();
+    MortarScope child = activityScope.buildChild().build("child");
+    LoadingBundler early = new LoadingBundler("able");
+    getBundleService(activityScope).register(early);
+    LoadingBundler other = new LoadingBundler("baker");
+    BundleService childService = getBundleService(child);
+    childService.register(other);
+    assertThat(early.loads).isEqualTo(1);
+    runner.restoreState(saved);
+    assertThat(early.loads).isEqualTo(1);
+
+    // Registering another bundler, even through a service already at hand, uses the scope.
+    childService.register(new LoadingBundler("charlie"));
+    assertThat(other.loads).isEqualTo(2);
+    assertThat(early.loads).isEqualTo(1);
+
+    getBundleService(activityScope).register(new LoadingBundler("dog"));
+    assertThat(early.loads).isEqualTo(2);
+    assertThat(early.value).isEqualTo(3);
+  }
+
+  @Test public void pendingBundlersAreLoadedBeforeSaving() {
+    LoadingBundler bundler = new LoadingBundler("able");
+    getBundleService(activityScope).register(bundler);
+    bundler.value = 3;
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+
+    setUp();
+    LoadingBundler early = new LoadingBundler("able");
+    getBundleService(activityScope).register(early);
+    runner.restoreState(saved);
+    InMemoryStateContainer resaved = new InMemoryStateContainer();
+    runner.saveState(resaved);
+    assertThat(early.loads).isEqualTo(2);
+    StateContainer scopeState = resaved.getChild(runner.bundleKey(activityScope));
+    assertThat(scopeState.getChild("able").getInt("value")).isEqualTo(3);
+  }
+
+  @Test public void encodedScopesAreDecodedWhenFirstUsed() {
+    CountingCodec codec = new CountingCodec();
+    runner.setBundleCodec(codec);
+    runner.onCreate(null);
+    MortarScope shown = activityScope.buildChild().build("shown");
+    MortarScope hidden = activityScope.buildChild().build("hidden");
+    LoadingBundler shownBundler = new LoadingBundler("able");
+    shownBundler.value = 3;
+    getBundleService(shown).register(shownBundler);
+    getBundleService(hidden).register(new LoadingBundler("able"));
+    Bundle saved = new Bundle();
+    runner.onSaveInstanceState(saved);
+    assertThat(saved.keySet()).containsOnly(BundleServiceRunner.ENCODED_SCOPES);
+
+    // A new process.
+    setUp();
+    runner.setBundleCodec(codec);
+    codec.decodes = 0;
+    runner.onCreate(saved);
+    shown = activityScope.buildChild().build("shown");
+    getBundleService(activityScope.buildChild().build("hidden"));
+    assertThat(codec.decodes).isZero();
+
+    LoadingBundler restored = new LoadingBundler("able");
+    getBundleService(shown).register(restored);
+    assertThat(restored.value).isEqualTo(3);
+    assertThat(codec.decodes).isEqualTo(1);
+  }
+
+  @Test public void eagerRestoreLoadsEveryone() {
+    runner.setLazyRestore(false);
+    runner.restoreState(null);
+    LoadingBundler bundler = new LoadingBundler("able");
+    getBundleService(activityScope).register(bundler);
+    runner.saveState(new InMemoryStateContainer());
+
+    runner.restoreState(new InMemoryStateContainer());
+    assertThat(bundler.loads).isEqualTo(2);
+  }
+
+  @Test public void spilledStateIsReadOnlyForBundlersThatRegister() {
+    runner.restoreState(null);
+    MortarScope shown = activityScope.buildChild().build("shown");
+    MortarScope hidden = activityScope.buildChild().build("hidden");
+    LoadingBundler shownBundler = new LoadingBundler("able");
+    shownBundler.payload = new byte[1000];
+    getBundleService(shown).register(shownBundler);
+    LoadingBundler hiddenBundler = new LoadingBundler("able");
+    hiddenBundler.payload = new byte[1000];
+    getBundleService(hidden).register(hiddenBundler);
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    assertThat(store.files).hasSize(2);
+
+    // A new process.
+    setUp();
+    runner.restoreState(saved);
+    shown = activityScope.buildChild().build("shown");
+    hidden = activityScope.buildChild().build("hidden");
+    getBundleService(hidden);
+    assertThat(store.reads).isZero();
+
+    LoadingBundler restored = new LoadingBundler("able");
+    getBundleService(shown).register(restored);
+    assertThat(store.reads).isEqualTo(1);
+    assertThat(restored.payload).hasSize(1000);
+  }
+
+  @Test public void saveAfterLazyRestoreKeepsUnloadedState() {
+    runner.restoreState(null);
+    LoadingBundler bundler = new LoadingBundler("able");
+    getBundleService(activityScope).register(bundler);
+    bundler.value = 3;
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+
+    runner.restoreState(saved);
+    InMemoryStateContainer resaved = new InMemoryStateContainer();
+    runner.saveState(resaved);
+    StateContainer scopeState = resaved.getChild(runner.bundleKey(activityScope));
+    assertThat(scopeState.getChild("able").getInt("value")).isEqualTo(3);
+  }
+
+  private static class LoadingBundler implements StateBundler {
+    final String key;
+    int value;
+    byte[] payload;
+    int loads;
+
+    LoadingBundler(String key) {
+      this.key = key;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return key;
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      loads++;
+      if (savedState != null) {
+        value = savedState.getInt("value");
+        payload = savedState.getByteArray("payload");
+      }
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      outState.putInt("value", value);
+      if (payload != null) outState.putByteArray("payload", payload);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+
+  private static class CountingCodec implements StateCodec {
+    final StateCodec delegate = new CompactStateCodec();
+    int decodes;
+
+    @Override public byte[] encode(StateContainer state) {
+      return delegate.encode(state);
+    }
+
+    @Override public void decode(byte[] bytes, StateContainer into) {
+      decodes++;
+      delegate.decode(bytes, into);
+    }
+  }
+
+  private static class CountingSpillStore implements SpillStore {
+    final Map<String, byte[]> files = new HashMap<>();
+    int reads;
+
+    @Override public String write(byte[] bytes) {
+      String handle = UUID.randomUUID().toString();
+      files.put(handle, bytes);
+      return handle;
+    }
+
+    @Override public byte[] read(String handle) {
+      reads++;
+      return files.get(handle);
+    }
+
+    @Override public void delete(String handle) {
+      files.remove(handle);
+    }
+
+    @Override public void retainOnly(Set<String> handles) {
+      files.keySet().retainAll(handles);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package mortar.bundler;
+
+import java.util.ArrayList;
+import java.util.List;
+import mortar.MortarScope;
+import org.junit.Before;
+import org.junit.Test;
+
+import static mortar.bundler.BundleService.getBundleService;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LoadOrderTest {
+  private final List<String> loads = new ArrayList<>();
+  private boolean restoring;
+  private BundleServiceRunner runner;
+  private MortarScope activityScope;
+
+  @Before public void setUp() {
+    runner = new BundleServiceRunner();
+    activityScope = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+    runner.restoreState(null);
+  }
+
+  @Test public void parentsBeforeChildrenRegardlessOfPriority() {
+    MortarScope child = activityScope.buildChild().build("child");
+    getBundleService(child).register(new RecordingBundler("child", 1000));
+    getBundleService(activityScope).register(new RecordingBundler("parent", -1000));
+    restore();
+    assertThat(loads).containsExactly("parent", "child");
+  }
+
+  @Test public void priorityOrdersPeers() {
+    MortarScope able = activityScope.buildChild().build("able");
+    MortarScope baker = activityScope.buildChild().build("baker");
+    getBundleService(able).register(new RecordingBundler("able-low", LoadPriority.DEFAULT));
+    getBundleService(able).register(new RecordingBundler("able-high", LoadPriority.VISIBLE));
+    getBundleService(baker).register(new RecordingBundler("baker-low", LoadPriority.DEFAULT));
+    getBundleService(baker).register(new RecordingBundler("baker-high", LoadPriority.VISIBLE));
+    restore();
+    assertThat(loads).containsExactly("able-high", "baker-high", "able-low", "baker-low");
+  }
+
+  @Test public void equalPriorityLoadsByPathThenRegistration() {
+    MortarScope baker = activityScope.buildChild().build("baker");
+    MortarScope able = activityScope.buildChild().build("able");
+    getBundleService(baker).register(new RecordingBundler("baker-1", 0));
+    getBundleService(able).register(new RecordingBundler("able-2", 0));
+    getBundleService(baker).register(new RecordingBundler("baker-0", 0));
+    getBundleService(able).register(new RecordingBundler("able-1", 0));
+    restore();
+    assertThat(loads).containsExactly("able-2", "able-1", "baker-1", "baker-0");
+  }
+
+  @Test public void bundlerRegisteredWhileLoadingJumpsAheadIfShallower() {
+    final MortarScope child = activityScope.buildChild().build("child");
+    final MortarScope grandchild = child.buildChild().build("grandchild");
+    getBundleService(child).register(new RecordingBundler("child", 0) {
+      @Override public void onLoad(StateContainer savedState) {
+        super.onLoad(savedState);
+        if (restoring && loads.size() == 1) {
+          getBundleService(activityScope).register(new RecordingBundler("late-parent", 0));
+        }
+      }
+    });
+    getBundleService(child).register(new RecordingBundler("child-2", 0));
+    getBundleService(grandchild).register(new RecordingBundler("grandchild", 0));
+
+    restore();
+    assertThat(loads).containsExactly("child", "late-parent", "child-2", "grandchild");
+  }
+
+  @Test public void destroyedScopesAreSkipped() {
+    final MortarScope doomed = activityScope.buildChild().build("doomed");
+    getBundleService(activityScope).register(new RecordingBundler("parent", 0) {
+      @Override public void onLoad(StateContainer savedState) {
+        super.onLoad(savedState);
+        if (restoring) doomed.destroy();
+      }
+    });
+    getBundleService(doomed).register(new RecordingBundler("doomed", 0));
+
+    restore();
+    assertThat(loads).containsExactly("parent");
+  }
+
+  @Test public void manyBundlers() {
+    for (int i = 0; i < 100; i++) {
+      BundleService service = getBundleService(activityScope.buildChild().build("screen" + i));
+      for (int j = 0; j < 100; j++) {
+        service.register(new RecordingBundler("bundler" + j, j % 2));
+      }
+    }
+
+    restore();
+    assertThat(loads).hasSize(100 * 100);
+    // All fifty odd bundlers of each screen before any even one.
+    assertThat(loads.get(100 * 50 - 1)).isEqualTo("bundler99");
+    assertThat(loads.get(100 * 50)).isEqualTo("bundler0");
+  }
+
+  private void restore() {
+    loads.clear();
+    restoring = true;
+    runner.restoreState(new InMemoryStateContainer());
+    restoring = false;
+  }
+
+  private class RecordingBundler implements StateBundler, LoadPriority {
+    final String key;
+    final int priority;
+
+    RecordingBundler(String key, int priority) {
+      this.key = key;
+      this.priority = priority;
+    }
+
+    @Override public int getLoadPriority() {
+      return priority;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return key;
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      loads.add(key);
+    }
+
+    @Override public void onSave(StateContainer outState) {
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+}
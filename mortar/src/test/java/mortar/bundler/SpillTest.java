@@ -0,0 +1,276 @@
+package mortar.bundler;
+
+import java.io.File;
+import java.io.IOException;
+import mortar.MortarScope;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static mortar.bundler.BundleService.getBundleService;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SpillTest {
+  @Rule public final TemporaryFolder temp = new TemporaryFolder();
+
+  private FileSpillStore store;
+  private BundleServiceRunner runner;
+  private MortarScope activityScope;
+
+  @Before public void setUp() {
+    store = new FileSpillStore(temp.getRoot());
+    newProcess();
+  }
+
+  private void newProcess() {
+    runner = new BundleServiceRunner();
+    runner.setSpillStore(store, 500);
+    activityScope = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+  }
+
+  @Test public void largeStateIsSpilledAndRestored() {
+    runner.restoreState(null);
+    PayloadBundler bundler = new PayloadBundler("large");
+    bundler.payload = new byte[1000];
+    bundler.payload[999] = 7;
+    getBundleService(activityScope).register(bundler);
+
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    StateContainer handle = bundlerState(saved, "large");
+    assertThat(handle.keySet()).containsOnly(BundleService.SPILL_HANDLE);
+    assertThat(spillFiles()).hasSize(1);
+
+    newProcess();
+    runner.restoreState(saved);
+    PayloadBundler restored = new PayloadBundler("large");
+    getBundleService(activityScope).register(restored);
+    assertThat(restored.payload).isEqualTo(bundler.payload);
+    assertThat(restored.name).isEqualTo("large");
+  }
+
+  @Test public void loadingAfterSaveLeavesHandleInPlace() {
+    runner.restoreState(null);
+    PayloadBundler bundler = new PayloadBundler("large");
+    bundler.payload = new byte[1000];
+    getBundleService(activityScope).register(bundler);
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    int savedSize = saved.estimateSize();
+
+    // E.g. a presenter taking a view again before the saved state is parceled.
+    getBundleService(activityScope).register(bundler);
+    assertThat(bundler.payload).hasSize(1000);
+    assertThat(bundlerState(saved, "large").keySet()).containsOnly(BundleService.SPILL_HANDLE);
+    assertThat(saved.estimateSize()).isEqualTo(savedSize);
+  }
+
+  @Test public void smallStateStaysInline() {
+    runner.restoreState(null);
+    PayloadBundler bundler = new PayloadBundler("small");
+    bundler.payload = new byte[10];
+    getBundleService(activityScope).register(bundler);
+
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    assertThat(bundlerState(saved, "small").getByteArray("payload")).hasSize(10);
+    assertThat(spillFiles()).isEmpty();
+  }
+
+  @Test public void resavingReplacesSpill() {
+    runner.restoreState(null);
+    PayloadBundler bundler = new PayloadBundler("large");
+    bundler.payload = new byte[1000];
+    getBundleService(activityScope).register(bundler);
+
+    runner.saveState(new InMemoryStateContainer());
+    File[] first = spillFiles();
+    runner.saveState(new InMemoryStateContainer());
+    File[] second = spillFiles();
+    assertThat(second).hasSize(1);
+    assertThat(second[0]).isNotEqualTo(first[0]);
+
+    // Shrinking below the threshold deletes the spill.
+    bundler.payload = new byte[10];
+    runner.saveState(new InMemoryStateContainer());
+    assertThat(spillFiles()).isEmpty();
+  }
+
+  @Test public void spillIsDeletedWhenScopeExits() {
+    runner.restoreState(null);
+    MortarScope child = activityScope.buildChild().build("child");
+    PayloadBundler bundler = new PayloadBundler("large");
+    bundler.payload = new byte[1000];
+    getBundleService(child).register(bundler);
+    runner.saveState(new InMemoryStateContainer());
+    assertThat(spillFiles()).hasSize(1);
+
+    child.destroy();
+    assertThat(spillFiles()).isEmpty();
+  }
+
+  @Test public void restoredSpillIsDeletedWhenScopeExits() {
+    runner.restoreState(null);
+    PayloadBundler bundler = new PayloadBundler("large");
+    bundler.payload = new byte[1000];
+    getBundleService(activityScope).register(bundler);
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+
+    newProcess();
+    runner.restoreState(saved);
+    getBundleService(activityScope).register(new PayloadBundler("large"));
+    activityScope.destroy();
+    assertThat(spillFiles()).isEmpty();
+  }
+
+  @Test public void orphanedSpillsAreSweptOnRestore() throws IOException {
+    runner.restoreState(null);
+    PayloadBundler bundler = new PayloadBundler("large");
+    bundler.payload = new byte[1000];
+    getBundleService(activityScope).register(bundler);
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    File[] referenced = spillFiles();
+    // Spilled by a save whose process died before the state that refers to it was kept.
+    store.write(new byte[1000]);
+    assertThat(new File(temp.getRoot(), "partial.spill.tmp").createNewFile()).isTrue();
+
+    newProcess();
+    runner.restoreState(saved);
+    assertThat(spillFiles()).isEqualTo(referenced);
+    PayloadBundler restored = new PayloadBundler("large");
+    getBundleService(activityScope).register(restored);
+    assertThat(restored.payload).hasSize(1000);
+  }
+
+  @Test public void freshStartSweepsEverything() throws IOException {
+    store.write(new byte[1000]);
+
+    runner.restoreState(null);
+    assertThat(spillFiles()).isEmpty();
+  }
+
+  @Test public void missingSpillLoadsAsNull() {
+    runner.restoreState(null);
+    PayloadBundler bundler = new PayloadBundler("large");
+    bundler.payload = new byte[1000];
+    getBundleService(activityScope).register(bundler);
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    for (File file : spillFiles()) {
+      assertThat(file.delete()).isTrue();
+    }
+
+    newProcess();
+    runner.restoreState(saved);
+    PayloadBundler restored = new PayloadBundler("large");
+    getBundleService(activityScope).register(restored);
+    assertThat(restored.loaded).isTrue();
+    assertThat(restored.payload).isNull();
+  }
+
+  @Test public void storeRejectsForeignHandles() throws IOException {
+    assertThat(store.read("missing")).isNull();
+    try {
+      store.read("../escape");
+    } catch (IllegalArgumentException expected) {
+      return;
+    }
+    throw new AssertionError();
+  }
+
+  @Test public void codecRoundTrip() {
+    StateContainer state = new InMemoryStateContainer();
+    state.putInt("int", 1);
+    state.putLong("long", 2L);
+    state.putBoolean("boolean", true);
+    state.putString("string", "s");
+    state.putByteArray("bytes", new byte[] { 4 });
+    state.putChild("child").putInt("int", 5);
+
+    BasicStateCodec codec = new BasicStateCodec();
+    StateContainer decoded = new InMemoryStateContainer();
+    codec.decode(codec.encode(state), decoded);
+    assertThat(decoded.getInt("int")).isEqualTo(1);
+    assertThat(decoded.getLong("long")).isEqualTo(2L);
+    assertThat(decoded.getBoolean("boolean")).isTrue();
+    assertThat(decoded.getString("string")).isEqualTo("s");
+    assertThat(decoded.getByteArray("bytes")).isEqualTo(new byte[] { 4 });
+    assertThat(decoded.getChild("child").getInt("int")).isEqualTo(5);
+  }
+
+  @Test public void codecHandlesLongAndNullStrings() {
+    StateContainer state = new InMemoryStateContainer();
+    String json = new String(new char[100000]).replace('\0', '\u00e9');
+    state.putString("json", json);
+    state.putString("null", null);
+
+    BasicStateCodec codec = new BasicStateCodec();
+    StateContainer decoded = new InMemoryStateContainer();
+    codec.decode(codec.encode(state), decoded);
+    assertThat(decoded.getString("json")).isEqualTo(json);
+    assertThat(decoded.containsKey("null")).isTrue();
+    assertThat(decoded.getString("null")).isNull();
+  }
+
+  @Test public void codecRejectsCorruptLengths() {
+    StateContainer state = new InMemoryStateContainer();
+    state.putByteArray("bytes", new byte[10]);
+    BasicStateCodec codec = new BasicStateCodec();
+    byte[] bytes = codec.encode(state);
+    // The array's length follows the magic, count, key and tag.
+    bytes[4 + 4 + 2 + "bytes".length() + 1] = 0x7f;
+    try {
+      codec.decode(bytes, new InMemoryStateContainer());
+      throw new AssertionError();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private File[] spillFiles() {
+    File[] files = temp.getRoot().listFiles();
+    return files == null ? new File[0] : files;
+  }
+
+  private StateContainer bundlerState(StateContainer root, String key) {
+    return root.getChild(runner.bundleKey(activityScope)).getChild(key);
+  }
+
+  private static class PayloadBundler implements StateBundler {
+    final String key;
+    byte[] payload;
+    String name;
+    boolean loaded;
+
+    PayloadBundler(String key) {
+      this.key = key;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return key;
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      loaded = true;
+      if (savedState != null) {
+        payload = savedState.getByteArray("payload");
+        name = savedState.getString("name");
+      }
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      outState.putByteArray("payload", payload);
+      outState.putString("name", key);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package mortar.bundler;
+
+import java.util.ArrayList;
+import java.util.List;
+import mortar.MortarScope;
+import org.junit.Before;
+import org.junit.Test;
+
+import static mortar.bundler.BundleService.getBundleService;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class StateBudgetTest {
+  private BundleServiceRunner runner;
+  private MortarScope activityScope;
+  private MortarScope screenScope;
+  private final List<StateSizeReport> reports = new ArrayList<>();
+  private final StateBudget.Listener listener = new StateBudget.Listener() {
+    @Override public void onOverBudget(StateSizeReport report) {
+      reports.add(report);
+    }
+  };
+
+  @Before public void setUp() {
+    runner = new BundleServiceRunner();
+    activityScope = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+    screenScope = activityScope.buildChild().build("screen");
+    runner.restoreState(null);
+    getBundleService(activityScope).register(new SizedBundler("small", 10));
+    getBundleService(screenScope).register(new SizedBundler("large", 1000));
+    getBundleService(screenScope).register(new SizedBundler("medium", 100));
+  }
+
+  @Test public void noBudgetNoReport() {
+    runner.saveState(new InMemoryStateContainer());
+    assertThat(runner.getLastSaveReport()).isNull();
+  }
+
+  @Test public void reportListsLargestFirst() {
+    runner.setStateBudget(StateBudget.warn(Integer.MAX_VALUE, listener));
+    runner.saveState(new InMemoryStateContainer());
+
+    StateSizeReport report = runner.getLastSaveReport();
+    assertThat(report.isOverBudget()).isFalse();
+    assertThat(reports).isEmpty();
+    List<StateSizeReport.Entry> top = report.getTopContributors(2);
+    assertThat(top).hasSize(2);
+    assertThat(top.get(0).getBundleKey()).isEqualTo("large");
+    assertThat(top.get(0).getScopePath()).isEqualTo(screenScope.getPath());
+    assertThat(top.get(0).getBytes()).isGreaterThan(1000);
+    assertThat(top.get(1).getBundleKey()).isEqualTo("medium");
+    assertThat(report.getEntries()).hasSize(3);
+    assertThat(report.getScopeTotals().keySet()).containsExactly(screenScope.getPath(),
+        activityScope.getPath());
+  }
+
+  @Test public void estimateTracksContent() {
+    InMemoryStateContainer state = new InMemoryStateContainer();
+    int empty = state.estimateSize();
+    state.putByteArray("bytes", new byte[1000]);
+    int withBytes = state.estimateSize();
+    assertThat(withBytes - empty).isGreaterThanOrEqualTo(1000);
+    state.putChild("child").putString("string", "0123456789");
+    assertThat(state.estimateSize() - withBytes).isGreaterThanOrEqualTo(20);
+  }
+
+  @Test public void estimateCountsNulls() {
+    InMemoryStateContainer state = new InMemoryStateContainer();
+    int empty = state.estimateSize();
+    state.putString("string", null);
+    assertThat(state.estimateSize() - empty)
+        .isEqualTo(ParcelSizes.string("string") + ParcelSizes.TYPE_TAG);
+  }
+
+  @Test public void warnKeepsEverything() {
+    runner.setStateBudget(StateBudget.warn(500, listener));
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+
+    assertThat(reports).hasSize(1);
+    assertThat(reports.get(0).isOverBudget()).isTrue();
+    assertThat(screenState(saved).containsKey("large")).isTrue();
+  }
+
+  @Test public void trimDropsLargestUntilUnderBudget() {
+    runner.setStateBudget(StateBudget.trim(500, listener));
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+
+    StateSizeReport report = reports.get(0);
+    assertThat(report.getEntries().get(0).isTrimmed()).isTrue();
+    assertThat(report.getEntries().get(1).isTrimmed()).isFalse();
+    assertThat(report.getRetainedBytes()).isLessThanOrEqualTo(500);
+    assertThat(screenState(saved).containsKey("large")).isFalse();
+    assertThat(screenState(saved).containsKey("medium")).isTrue();
+  }
+
+  @Test public void failThrowsWithReport() {
+    runner.setStateBudget(StateBudget.fail(500));
+    try {
+      runner.saveState(new InMemoryStateContainer());
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessageContaining("large");
+    }
+    assertThat(runner.getLastSaveReport().isOverBudget()).isTrue();
+
+    // The runner is still usable.
+    runner.setStateBudget(null);
+    runner.saveState(new InMemoryStateContainer());
+  }
+
+  @Test public void sampling() {
+    runner.setStateBudget(StateBudget.warn(500, listener).sampleEvery(3));
+    for (int i = 0; i < 6; i++) {
+      runner.saveState(new InMemoryStateContainer());
+      assertThat(runner.getLastSaveReport() != null).isEqualTo(i % 3 == 0);
+    }
+    assertThat(reports).hasSize(2);
+  }
+
+  private StateContainer screenState(StateContainer root) {
+    return root.getChild(runner.bundleKey(screenScope));
+  }
+
+  private static class SizedBundler implements StateBundler {
+    private final String key;
+    private final byte[] payload;
+
+    SizedBundler(String key, int size) {
+      this.key = key;
+      this.payload = new byte[size];
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return key;
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      outState.putByteArray("payload", payload);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+}
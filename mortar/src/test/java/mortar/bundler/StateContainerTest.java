@@ -0,0 +1,138 @@
+package mortar.bundler;
+
+import android.os.Bundle;
+import mortar.MortarScope;
+import org.junit.Before;
+import org.junit.Test;
+
+import static mortar.bundler.BundleService.getBundleService;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+/** Runs the load and save engine on {@link InMemoryStateContainer}, without Robolectric. */
+public class StateContainerTest {
+  private BundleServiceRunner runner;
+  private MortarScope activityScope;
+
+  @Before public void setUp() {
+    runner = new BundleServiceRunner();
+    activityScope = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+  }
+
+  @Test public void saveAndRestoreAcrossProcesses() {
+    CountingBundler able = new CountingBundler("able");
+    CountingBundler baker = new CountingBundler("baker");
+    runner.restoreState(null);
+    getBundleService(activityScope).register(able);
+    getBundleService(activityScope.buildChild().build("child")).register(baker);
+    able.count = 3;
+    baker.count = 5;
+
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+
+    // A new process, with new scopes and new bundlers.
+    setUp();
+    runner.restoreState(saved);
+    CountingBundler newAble = new CountingBundler("able");
+    CountingBundler newBaker = new CountingBundler("baker");
+    getBundleService(activityScope).register(newAble);
+    getBundleService(activityScope.buildChild().build("child")).register(newBaker);
+    assertThat(newAble.count).isEqualTo(3);
+    assertThat(newBaker.count).isEqualTo(5);
+  }
+
+  @Test public void destroyedScopeStateIsDropped() {
+    runner.restoreState(null);
+    MortarScope child = activityScope.buildChild().build("child");
+    getBundleService(child).register(new CountingBundler("able"));
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    assertThat(saved.keySet()).hasSize(1);
+
+    child.destroy();
+    assertThat(saved.isEmpty()).isTrue();
+  }
+
+  @Test public void plainBundlerNeedsBundleState() {
+    runner.restoreState(new InMemoryStateContainer());
+    Bundler bundler = new Bundler() {
+      @Override public void onEnterScope(MortarScope scope) {
+      }
+
+      @Override public String getMortarBundleKey() {
+        return "plain";
+      }
+
+      @Override public void onLoad(Bundle savedInstanceState) {
+      }
+
+      @Override public void onSave(Bundle outState) {
+      }
+
+      @Override public void onExitScope() {
+      }
+    };
+    getBundleService(activityScope).register(bundler);
+
+    try {
+      runner.saveState(new InMemoryStateContainer());
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageContaining("StateBundler");
+    }
+  }
+
+  @Test public void typedValues() {
+    StateContainer state = new InMemoryStateContainer();
+    state.putInt("int", 1);
+    state.putLong("long", 2L);
+    state.putBoolean("boolean", true);
+    state.putString("string", "s");
+    state.putByteArray("bytes", new byte[] { 4 });
+    StateContainer child = state.putChild("child");
+    child.putInt("int", 5);
+
+    assertThat(state.getInt("int")).isEqualTo(1);
+    assertThat(state.getLong("long")).isEqualTo(2L);
+    assertThat(state.getBoolean("boolean")).isTrue();
+    assertThat(state.getString("string")).isEqualTo("s");
+    assertThat(state.getByteArray("bytes")).isEqualTo(new byte[] { 4 });
+    assertThat(state.getChild("child").getInt("int")).isEqualTo(5);
+
+    // Like Bundle, missing and mistyped values read as defaults.
+    assertThat(state.getInt("string")).isZero();
+    assertThat(state.getString("missing")).isNull();
+    assertThat(state.getChild("int")).isNull();
+    assertThat(state.keySet()).containsOnly("int", "long", "boolean", "string", "bytes", "child");
+  }
+
+  private static class CountingBundler implements StateBundler {
+    final String key;
+    int count;
+
+    CountingBundler(String key) {
+      this.key = key;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return key;
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      if (savedState != null) count = savedState.getInt("count");
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      outState.putInt("count", count);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package mortar.bundler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class StateDeltaTest {
+  @Test public void changedEntriesOnly() {
+    StateContainer base = new InMemoryStateContainer();
+    StateContainer scope = base.putChild("scope");
+    scope.putChild("able").putInt("count", 1);
+    scope.putChild("baker").putInt("count", 2);
+    base.putChild("other").putChild("charlie").putString("name", "charlie");
+
+    StateContainer current = copy(base);
+    current.getChild("scope").getChild("baker").putInt("count", 3);
+
+    StateContainer delta = new InMemoryStateContainer();
+    assertThat(StateDelta.diff(base, current, delta)).isEqualTo(1);
+    assertThat(delta.keySet()).containsOnly(StateDelta.CHANGED);
+    StateContainer changed = delta.getChild(StateDelta.CHANGED);
+    assertThat(changed.keySet()).containsOnly("scope");
+    assertThat(changed.getChild("scope").keySet()).containsOnly("baker");
+  }
+
+  @Test public void nothingChanged() {
+    StateContainer base = new InMemoryStateContainer();
+    base.putChild("scope").putChild("able").putByteArray("bytes", new byte[] { 1, 2 });
+    StateContainer delta = new InMemoryStateContainer();
+    assertThat(StateDelta.diff(base, copy(base), delta)).isZero();
+    assertThat(delta.isEmpty()).isTrue();
+  }
+
+  @Test public void removalsAndReplacements() {
+    StateContainer base = new InMemoryStateContainer();
+    base.putChild("doomed").putChild("able").putInt("count", 1);
+    StateContainer scope = base.putChild("scope");
+    scope.putChild("able").putInt("count", 1);
+    scope.putChild("baker").putInt("count", 2);
+    scope.putString("nullValue", null);
+    base.putInt("rootValue", 1);
+
+    StateContainer current = copy(base);
+    current.remove("doomed");
+    current.getChild("scope").remove("baker");
+    current.getChild("scope").remove("nullValue");
+    current.putChild("born").putChild("able").putInt("count", 4);
+    current.putInt("rootValue", 2);
+
+    StateContainer delta = new InMemoryStateContainer();
+    assertThat(StateDelta.diff(base, current, delta)).isEqualTo(5);
+    StateContainer replayed = copy(base);
+    StateDelta.apply(delta, replayed);
+    assertThat(StateDelta.equal(replayed, current)).isTrue();
+  }
+
+  @Test public void replayChainOfDeltas() {
+    Random random = new Random(0);
+    StateContainer base = new InMemoryStateContainer();
+    mutate(base, random, 50);
+
+    // Each delta is made against the state before it, and encoded as it would be on disk.
+    StateCodec codec = new BasicStateCodec();
+    List<byte[]> deltas = new ArrayList<>();
+    StateContainer previous = base;
+    for (int i = 0; i < 30; i++) {
+      StateContainer current = copy(previous);
+      mutate(current, random, 5);
+      StateContainer delta = new InMemoryStateContainer();
+      StateDelta.diff(previous, current, delta);
+      deltas.add(codec.encode(delta));
+      previous = current;
+    }
+
+    StateContainer replayed = copy(base);
+    for (byte[] bytes : deltas) {
+      StateContainer delta = new InMemoryStateContainer();
+      codec.decode(bytes, delta);
+      StateDelta.apply(delta, replayed);
+    }
+    assertThat(StateDelta.equal(replayed, previous)).isTrue();
+    assertThat(StateDelta.equal(replayed, base)).isFalse();
+  }
+
+  @Test public void deepEquality() {
+    StateContainer a = new InMemoryStateContainer();
+    a.putChild("child").putByteArray("bytes", new byte[] { 1 });
+    StateContainer b = copy(a);
+    assertThat(StateDelta.equal(a, b)).isTrue();
+    b.getChild("child").putByteArray("bytes", new byte[] { 2 });
+    assertThat(StateDelta.equal(a, b)).isFalse();
+    b.getChild("child").putByteArray("bytes", new byte[] { 1 });
+    b.getChild("child").putString("extra", null);
+    assertThat(StateDelta.equal(a, b)).isFalse();
+    assertThat(StateDelta.equal(1, 1L)).isFalse();
+  }
+
+  /** Adds, changes or removes the given number of bundler entries, in up to ten scopes. */
+  private static void mutate(StateContainer root, Random random, int times) {
+    for (int i = 0; i < times; i++) {
+      String scopeKey = "scope" + random.nextInt(10);
+      String entryKey = "bundler" + random.nextInt(10);
+      StateContainer scope = root.getChild(scopeKey);
+      switch (random.nextInt(5)) {
+        case 0:
+          root.remove(scopeKey);
+          break;
+        case 1:
+          if (scope != null) scope.remove(entryKey);
+          break;
+        default:
+          if (scope == null) scope = root.putChild(scopeKey);
+          StateContainer entry = scope.putChild(entryKey);
+          entry.putInt("count", random.nextInt(3));
+          if (random.nextBoolean()) entry.putString("title", "title" + random.nextInt(3));
+          if (random.nextBoolean()) entry.putChild("nested").putLong("id", random.nextInt(3));
+      }
+    }
+  }
+
+  private static StateContainer copy(StateContainer state) {
+    InMemoryStateContainer copy = new InMemoryStateContainer();
+    ((InMemoryStateContainer) state).copyTo(copy);
+    return copy;
+  }
+}
@@ -0,0 +1,293 @@
+package mortar.bundler;
+
+import android.os.Bundle;
+import mortar.MortarScope;
+import mortar.Presenter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static mortar.bundler.BundleService.getBundleService;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+// Robolectric allows us to use Bundles.
+@RunWith(RobolectricTestRunner.class) @Config(manifest = Config.NONE)
+public class StateMigrationTest {
+  private BundleServiceRunner runner;
+  private MortarScope activityScope;
+  private int migrations;
+
+  @Before public void setUp() {
+    runner = new BundleServiceRunner();
+    activityScope = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+    runner.restoreState(null);
+  }
+
+  @Test public void versionIsSavedNextToTheState() {
+    getBundleService(activityScope).register(new NameBundler(2));
+    getBundleService(activityScope).register(new UnversionedBundler());
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+
+    StateContainer scopeState = saved.getChild(runner.bundleKey(activityScope));
+    assertThat(scopeState.getInt(BundleService.VERSION_PREFIX + "name")).isEqualTo(2);
+    assertThat(scopeState.keySet()).containsOnly("name", "unversioned",
+        BundleService.VERSION_PREFIX + "name");
+  }
+
+  @Test public void migratesThroughEachVersion() {
+    InMemoryStateContainer saved = saveAtVersion(1, "Ada Lovelace");
+
+    newProcess();
+    registerMigrations();
+    runner.restoreState(saved);
+    NameBundler bundler = new NameBundler(3);
+    getBundleService(activityScope).register(bundler);
+    assertThat(bundler.first).isEqualTo("Ada");
+    assertThat(bundler.last).isEqualTo("Lovelace");
+    assertThat(migrations).isEqualTo(2);
+
+    // The restored state is left as it was saved, so loading again upgrades it again.
+    getBundleService(activityScope).register(bundler);
+    assertThat(bundler.first).isEqualTo("Ada");
+    assertThat(migrations).isEqualTo(4);
+  }
+
+  @Test public void migrationLeavesSavedStateAlone() {
+    InMemoryStateContainer saved = saveAtVersion(1, "Ada Lovelace");
+
+    newProcess();
+    registerMigrations();
+    runner.restoreState(saved);
+    getBundleService(activityScope).register(new NameBundler(3));
+    StateContainer scopeState = saved.getChild(runner.bundleKey(activityScope));
+    assertThat(scopeState.getInt(BundleService.VERSION_PREFIX + "name")).isEqualTo(1);
+    assertThat(scopeState.getChild("name").keySet()).containsOnly("name");
+  }
+
+  @Test public void migratesCompressedState() {
+    runner.setCompressionThreshold(0);
+    InMemoryStateContainer saved = saveAtVersion(1, "Ada Lovelace");
+
+    newProcess();
+    runner.setCompressionThreshold(0);
+    registerMigrations();
+    runner.restoreState(saved);
+    NameBundler bundler = new NameBundler(3);
+    getBundleService(activityScope).register(bundler);
+    assertThat(bundler.last).isEqualTo("Lovelace");
+  }
+
+  @Test public void missingMigrationDropsState() {
+    InMemoryStateContainer saved = saveAtVersion(0, "Ada Lovelace");
+
+    newProcess();
+    registerMigrations();
+    runner.restoreState(saved);
+    NameBundler bundler = new NameBundler(3);
+    getBundleService(activityScope).register(bundler);
+    assertThat(bundler.loaded).isTrue();
+    assertThat(bundler.first).isNull();
+    assertThat(migrations).isZero();
+  }
+
+  @Test public void failedMigrationDropsState() {
+    InMemoryStateContainer saved = saveAtVersion(1, "Ada");
+
+    newProcess();
+    registerMigrations();
+    runner.restoreState(saved);
+    NameBundler bundler = new NameBundler(3);
+    getBundleService(activityScope).register(bundler);
+    assertThat(bundler.first).isNull();
+    assertThat(migrations).isEqualTo(2);
+
+    InMemoryStateContainer resaved = new InMemoryStateContainer();
+    runner.saveState(resaved);
+    StateContainer scopeState = resaved.getChild(runner.bundleKey(activityScope));
+    assertThat(scopeState.getInt(BundleService.VERSION_PREFIX + "name")).isEqualTo(3);
+  }
+
+  @Test public void newerStateIsDropped() {
+    InMemoryStateContainer saved = saveAtVersion(3, null);
+
+    newProcess();
+    runner.restoreState(saved);
+    NameBundler bundler = new NameBundler(2);
+    getBundleService(activityScope).register(bundler);
+    assertThat(bundler.loaded).isTrue();
+    assertThat(bundler.name).isNull();
+  }
+
+  @Test public void scopesNotVisitedAreNotMigrated() {
+    MortarScope able = activityScope.buildChild().build("able");
+    MortarScope baker = activityScope.buildChild().build("baker");
+    NameBundler ableBundler = new NameBundler(1);
+    ableBundler.name = "Ada Lovelace";
+    getBundleService(able).register(ableBundler);
+    NameBundler bakerBundler = new NameBundler(1);
+    bakerBundler.name = "Grace Hopper";
+    getBundleService(baker).register(bakerBundler);
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+
+    newProcess();
+    registerMigrations();
+    runner.restoreState(saved);
+    assertThat(migrations).isZero();
+    able = activityScope.buildChild().build("able");
+    NameBundler restored = new NameBundler(3);
+    getBundleService(able).register(restored);
+    assertThat(restored.first).isEqualTo("Ada");
+    assertThat(migrations).isEqualTo(2);
+  }
+
+  @Test public void presenterStateIsMigratedBeforeOnLoad() {
+    NamePresenter presenter = new NamePresenter(1);
+    presenter.takeView(new Object());
+    presenter.name = "Ada Lovelace";
+    Bundle saved = new Bundle();
+    runner.onSaveInstanceState(saved);
+
+    newProcess();
+    runner.registerMigration("name", 1, new StateMigration() {
+      @Override public boolean migrate(StateContainer state) {
+        state.putString("fullName", state.getString("name"));
+        state.remove("name");
+        return true;
+      }
+    });
+    runner.onCreate(saved);
+    NamePresenter restored = new NamePresenter(2);
+    restored.takeView(new Object());
+    assertThat(restored.name).isEqualTo("Ada Lovelace");
+  }
+
+  private void newProcess() {
+    setUp();
+  }
+
+  private InMemoryStateContainer saveAtVersion(int version, String name) {
+    NameBundler bundler = new NameBundler(version);
+    bundler.name = name;
+    getBundleService(activityScope).register(bundler);
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    return saved;
+  }
+
+  /** Version 1 has a name, version 2 renames it, version 3 splits it in two. */
+  private void registerMigrations() {
+    runner.registerMigration("name", 1, new StateMigration() {
+      @Override public boolean migrate(StateContainer state) {
+        migrations++;
+        state.putString("fullName", state.getString("name"));
+        state.remove("name");
+        return true;
+      }
+    });
+    runner.registerMigration("name", 2, new StateMigration() {
+      @Override public boolean migrate(StateContainer state) {
+        migrations++;
+        String[] parts = state.getString("fullName").split(" ");
+        if (parts.length != 2) return false;
+        state.remove("fullName");
+        state.putString("first", parts[0]);
+        state.putString("last", parts[1]);
+        return true;
+      }
+    });
+  }
+
+  private static class NameBundler implements StateBundler, VersionedState {
+    final int version;
+    boolean loaded;
+    String name;
+    String first;
+    String last;
+
+    NameBundler(int version) {
+      this.version = version;
+    }
+
+    @Override public int getStateVersion() {
+      return version;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return "name";
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      loaded = true;
+      if (savedState == null) return;
+      name = savedState.getString("name");
+      first = savedState.getString("first");
+      last = savedState.getString("last");
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      if (name != null) outState.putString("name", name);
+      if (first != null) outState.putString("first", first);
+      if (last != null) outState.putString("last", last);
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+
+  private static class UnversionedBundler implements StateBundler {
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return "unversioned";
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+    }
+
+    @Override public void onSave(StateContainer outState) {
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+
+  private class NamePresenter extends Presenter<Object> {
+    final int version;
+    String name;
+
+    NamePresenter(int version) {
+      this.version = version;
+    }
+
+    @Override protected BundleService extractBundleService(Object view) {
+      return getBundleService(activityScope);
+    }
+
+    @Override protected int getStateVersion() {
+      return version;
+    }
+
+    @Override protected void onLoad(Bundle savedInstanceState) {
+      if (savedInstanceState == null) return;
+      name = savedInstanceState.getString(version == 1 ? "name" : "fullName");
+    }
+
+    @Override protected void onSave(Bundle outState) {
+      outState.putString(version == 1 ? "name" : "fullName", name);
+    }
+
+    @Override public String getMortarBundleKey() {
+      return "name";
+    }
+  }
+}
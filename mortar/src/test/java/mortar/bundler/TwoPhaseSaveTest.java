@@ -0,0 +1,246 @@
+package mortar.bundler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import mortar.MortarScope;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static mortar.bundler.BundleService.getBundleService;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class TwoPhaseSaveTest {
+  @Rule public final TemporaryFolder temp = new TemporaryFolder();
+
+  /** Writes each snapshot on a new thread, before the save can get to it. */
+  private final Executor background = new Executor() {
+    @Override public void execute(Runnable command) {
+      Thread thread = new Thread(command);
+      thread.start();
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+  private BundleServiceRunner runner;
+  private MortarScope activityScope;
+
+  @Before public void setUp() {
+    runner = new BundleServiceRunner();
+    activityScope = MortarScope.buildRootScope()
+        .withService(BundleServiceRunner.SERVICE_NAME, runner)
+        .build("activity");
+    runner.restoreState(null);
+  }
+
+  @Test public void snapshotsAreWrittenInBackground() {
+    runner.setSaveExecutor(background);
+    ModelBundler bundler = new ModelBundler("model");
+    getBundleService(activityScope).register(bundler);
+    bundler.model = "able";
+
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    assertThat(bundler.snapshotThread).isSameAs(Thread.currentThread());
+    assertThat(bundler.writeThread).isNotSameAs(Thread.currentThread());
+    assertThat(bundler.saves).isZero();
+    assertThat(runner.getLastSaveSavedCount()).isEqualTo(1);
+    assertThat(modelState(saved).getString("model")).isEqualTo("able");
+
+    // The snapshot is what was saved, not what the model became afterwards.
+    bundler.model = "baker";
+    assertThat(modelState(saved).getString("model")).isEqualTo("able");
+
+    setUp();
+    runner.restoreState(saved);
+    ModelBundler restored = new ModelBundler("model");
+    getBundleService(activityScope).register(restored);
+    assertThat(restored.model).isEqualTo("able");
+  }
+
+  @Test public void withoutExecutorOnSaveIsCalled() {
+    ModelBundler bundler = new ModelBundler("model");
+    getBundleService(activityScope).register(bundler);
+    bundler.model = "able";
+
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    assertThat(bundler.saves).isEqualTo(1);
+    assertThat(bundler.snapshotThread).isNull();
+    assertThat(modelState(saved).getString("model")).isEqualTo("able");
+  }
+
+  @Test public void poolWritesSnapshots() {
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      runner.setSaveExecutor(pool);
+      List<ModelBundler> bundlers = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        ModelBundler bundler = new ModelBundler("model" + i);
+        bundler.model = "model" + i;
+        getBundleService(activityScope).register(bundler);
+        bundlers.add(bundler);
+      }
+
+      InMemoryStateContainer saved = new InMemoryStateContainer();
+      runner.saveState(saved);
+      StateContainer scopeState = saved.getChild(runner.bundleKey(activityScope));
+      for (ModelBundler bundler : bundlers) {
+        assertThat(bundler.writes).isEqualTo(1);
+        assertThat(scopeState.getChild(bundler.key).getString("model")).isEqualTo(bundler.model);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test public void unstartedSnapshotsAreWrittenBySaver() {
+    QueueExecutor queue = new QueueExecutor();
+    runner.setSaveExecutor(queue);
+    ModelBundler bundler = new ModelBundler("model");
+    getBundleService(activityScope).register(bundler);
+    bundler.model = "able";
+
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    assertThat(bundler.writeThread).isSameAs(Thread.currentThread());
+    assertThat(modelState(saved).getString("model")).isEqualTo("able");
+
+    // Running the task again later is harmless.
+    queue.runAll();
+    assertThat(bundler.writes).isEqualTo(1);
+  }
+
+  @Test public void largeSnapshotsAreSpilledInBackground() {
+    runner.setSaveExecutor(background);
+    FileSpillStore store = new FileSpillStore(temp.getRoot());
+    runner.setSpillStore(store, 100);
+    ModelBundler bundler = new ModelBundler("model");
+    getBundleService(activityScope).register(bundler);
+    bundler.model = new String(new char[1000]).replace('\0', 'x');
+
+    InMemoryStateContainer saved = new InMemoryStateContainer();
+    runner.saveState(saved);
+    assertThat(modelState(saved).keySet()).containsOnly(BundleService.SPILL_HANDLE);
+    assertThat(temp.getRoot().list()).hasSize(1);
+
+    setUp();
+    runner.setSpillStore(store, 100);
+    runner.restoreState(saved);
+    ModelBundler restored = new ModelBundler("model");
+    getBundleService(activityScope).register(restored);
+    assertThat(restored.model).isEqualTo(bundler.model);
+  }
+
+  @Test public void snapshotFailureIsThrownBySave() {
+    runner.setSaveExecutor(background);
+    ModelBundler failing = new ModelBundler("failing");
+    failing.failure = new IllegalStateException("boom");
+    getBundleService(activityScope).register(failing);
+
+    try {
+      runner.saveState(new InMemoryStateContainer());
+      fail();
+    } catch (RuntimeException e) {
+      assertThat(e.getCause()).isSameAs(failing.failure);
+      assertThat(e).hasMessageContaining("failing");
+    }
+
+    // The runner is still usable.
+    failing.failure = null;
+    runner.saveState(new InMemoryStateContainer());
+  }
+
+  @Test public void cleanSnapshotBundlersAreSkipped() {
+    runner.setSaveExecutor(background);
+    ModelBundler bundler = new TrackedModelBundler("model");
+    getBundleService(activityScope).register(bundler);
+    bundler.model = "able";
+
+    runner.saveState(new InMemoryStateContainer());
+    InMemoryStateContainer second = new InMemoryStateContainer();
+    runner.saveState(second);
+    assertThat(bundler.writes).isEqualTo(1);
+    assertThat(runner.getLastSaveSkippedCount()).isEqualTo(1);
+    assertThat(modelState(second).getString("model")).isEqualTo("able");
+  }
+
+  private StateContainer modelState(StateContainer root) {
+    return root.getChild(runner.bundleKey(activityScope)).getChild("model");
+  }
+
+  private static class QueueExecutor implements Executor {
+    final List<Runnable> tasks = new ArrayList<>();
+
+    @Override public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
+  private static class ModelBundler implements SnapshotBundler {
+    final String key;
+    String model;
+    RuntimeException failure;
+    int saves;
+    volatile int writes;
+    volatile Thread snapshotThread;
+    volatile Thread writeThread;
+
+    ModelBundler(String key) {
+      this.key = key;
+    }
+
+    @Override public void onEnterScope(MortarScope scope) {
+    }
+
+    @Override public String getMortarBundleKey() {
+      return key;
+    }
+
+    @Override public void onLoad(StateContainer savedState) {
+      if (savedState != null) model = savedState.getString("model");
+    }
+
+    @Override public void onSave(StateContainer outState) {
+      saves++;
+      outState.putString("model", model);
+    }
+
+    @Override public Snapshot snapshot() {
+      snapshotThread = Thread.currentThread();
+      final String model = this.model;
+      final RuntimeException failure = this.failure;
+      return new Snapshot() {
+        @Override public void writeTo(StateContainer outState) {
+          writeThread = Thread.currentThread();
+          writes++;
+          if (failure != null) throw failure;
+          outState.putString("model", model);
+        }
+      };
+    }
+
+    @Override public void onExitScope() {
+    }
+  }
+
+  private static class TrackedModelBundler extends ModelBundler implements DirtyTracking {
+    TrackedModelBundler(String key) {
+      super(key);
+    }
+  }
+}